@@ -23,9 +23,19 @@ JNIEXPORT jboolean JNICALL Java_jp_co_cyberagent_android_gpuimage_GPUImageNative
         return JNI_FALSE;
     }
 
-    if (BitmapInfo.format != ANDROID_BITMAP_FORMAT_RGBA_8888)
+    // RGB_565 and A_8 bitmaps are filled with texels packed by a shader,
+    // as many RGBA texels as fit into a row of the bitmap
+    if (BitmapInfo.format != ANDROID_BITMAP_FORMAT_RGBA_8888
+            && BitmapInfo.format != ANDROID_BITMAP_FORMAT_RGB_565
+            && BitmapInfo.format != ANDROID_BITMAP_FORMAT_A_8)
     {
-        LOGE("Error - Bitmap format is not RGBA_8888!");
+        LOGE("Error - Bitmap format is not RGBA_8888, RGB_565 or A_8!");
+        return JNI_FALSE;
+    }
+
+    if (BitmapInfo.stride % 4 != 0)
+    {
+        LOGE("Error - Bitmap rows are not a multiple of 4 bytes long!");
         return JNI_FALSE;
     }
 
@@ -35,8 +45,16 @@ JNIEXPORT jboolean JNICALL Java_jp_co_cyberagent_android_gpuimage_GPUImageNative
         return JNI_FALSE;
     }
 
-    glReadPixels(0, 0, BitmapInfo.width, BitmapInfo.height, GL_RGBA, GL_UNSIGNED_BYTE, pPixels);
+    glReadPixels(0, 0, BitmapInfo.stride / 4, BitmapInfo.height, GL_RGBA, GL_UNSIGNED_BYTE, pPixels);
 
     AndroidBitmap_unlockPixels(env, bitmap);
     return JNI_TRUE;
 }
+
+// Reads into the bound GL_PIXEL_PACK_BUFFER, the Java binding taking an offset
+// only exists from API 24
+
+JNIEXPORT void JNICALL Java_jp_co_cyberagent_android_gpuimage_GPUImageNativeLibrary_ReadPixelsToPackBuffer(JNIEnv * env, jclass clazz, jint width, jint height)
+{
+    glReadPixels(0, 0, width, height, GL_RGBA, GL_UNSIGNED_BYTE, (void *) 0);
+}
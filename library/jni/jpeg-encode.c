@@ -0,0 +1,547 @@
+#include "jpeg-encode.h"
+
+#include <stdlib.h>
+#include <string.h>
+
+// Baseline sequential JPEG as in ITU T.81, with the example quantization and
+// Huffman tables of its Annex K. A minimum coded unit is 16x16 pixels: four
+// luma blocks and one block each of Cb and Cr averaged over 2x2 pixels.
+
+#define MCU_SIZE 16
+
+typedef struct {
+    uint16_t code[256];
+    uint8_t  size[256];
+} huffman_table;
+
+struct jpeg_encoder {
+    int             width;
+    int             height;
+    int             padded_width;
+    int             rows_buffered;
+    int             rows_done;
+
+    // One row of MCUs, level shifted to -128 - 127
+    float *         y;
+    float *         cb;
+    float *         cr;
+
+    uint8_t         quant_luma[64];
+    uint8_t         quant_chroma[64];
+    float           divisors_luma[64];
+    float           divisors_chroma[64];
+    huffman_table   dc_luma;
+    huffman_table   ac_luma;
+    huffman_table   dc_chroma;
+    huffman_table   ac_chroma;
+    int             last_dc[3];
+
+    uint32_t        bits;
+    int             bit_count;
+
+    uint8_t *       out;
+    size_t          out_size;
+    size_t          out_capacity;
+    size_t          out_read;
+    int             out_of_memory;
+};
+
+// Natural index of the coefficients in zigzag order
+static const uint8_t ZIGZAG[64] = {
+     0,  1,  8, 16,  9,  2,  3, 10,
+    17, 24, 32, 25, 18, 11,  4,  5,
+    12, 19, 26, 33, 40, 48, 41, 34,
+    27, 20, 13,  6,  7, 14, 21, 28,
+    35, 42, 49, 56, 57, 50, 43, 36,
+    29, 22, 15, 23, 30, 37, 44, 51,
+    58, 59, 52, 45, 38, 31, 39, 46,
+    53, 60, 61, 54, 47, 55, 62, 63
+};
+
+static const uint8_t QUANT_LUMA[64] = {
+    16, 11, 10, 16,  24,  40,  51,  61,
+    12, 12, 14, 19,  26,  58,  60,  55,
+    14, 13, 16, 24,  40,  57,  69,  56,
+    14, 17, 22, 29,  51,  87,  80,  62,
+    18, 22, 37, 56,  68, 109, 103,  77,
+    24, 35, 55, 64,  81, 104, 113,  92,
+    49, 64, 78, 87, 103, 121, 120, 101,
+    72, 92, 95, 98, 112, 100, 103,  99
+};
+
+static const uint8_t QUANT_CHROMA[64] = {
+    17, 18, 24, 47, 99, 99, 99, 99,
+    18, 21, 26, 66, 99, 99, 99, 99,
+    24, 26, 56, 99, 99, 99, 99, 99,
+    47, 66, 99, 99, 99, 99, 99, 99,
+    99, 99, 99, 99, 99, 99, 99, 99,
+    99, 99, 99, 99, 99, 99, 99, 99,
+    99, 99, 99, 99, 99, 99, 99, 99,
+    99, 99, 99, 99, 99, 99, 99, 99
+};
+
+// Number of codes of each length from 1 to 16, followed by the values
+static const uint8_t DC_LUMA_BITS[16] = {0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0};
+static const uint8_t DC_CHROMA_BITS[16] = {0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0};
+static const uint8_t DC_VALUES[12] = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+
+static const uint8_t AC_LUMA_BITS[16] = {0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d};
+static const uint8_t AC_LUMA_VALUES[162] = {
+    0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12, 0x21, 0x31, 0x41, 0x06, 0x13, 0x51,
+    0x61, 0x07, 0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08, 0x23, 0x42, 0xb1, 0xc1,
+    0x15, 0x52, 0xd1, 0xf0, 0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16, 0x17, 0x18,
+    0x19, 0x1a, 0x25, 0x26, 0x27, 0x28, 0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39,
+    0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57,
+    0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a, 0x73, 0x74, 0x75,
+    0x76, 0x77, 0x78, 0x79, 0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89, 0x8a, 0x92,
+    0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
+    0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3,
+    0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8,
+    0xd9, 0xda, 0xe1, 0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf1, 0xf2,
+    0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8, 0xf9, 0xfa
+};
+
+static const uint8_t AC_CHROMA_BITS[16] = {0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77};
+static const uint8_t AC_CHROMA_VALUES[162] = {
+    0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21, 0x31, 0x06, 0x12, 0x41, 0x51, 0x07,
+    0x61, 0x71, 0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91, 0xa1, 0xb1, 0xc1, 0x09,
+    0x23, 0x33, 0x52, 0xf0, 0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34, 0xe1, 0x25,
+    0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26, 0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38,
+    0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49, 0x4a, 0x53, 0x54, 0x55, 0x56,
+    0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a, 0x73, 0x74,
+    0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+    0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5,
+    0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba,
+    0xc2, 0xc3, 0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6,
+    0xd7, 0xd8, 0xd9, 0xda, 0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf2,
+    0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8, 0xf9, 0xfa
+};
+
+// Scale factors of the AAN DCT for each row and column
+static const float AAN_SCALE[8] = {
+    1.0f, 1.387039845f, 1.306562965f, 1.175875602f,
+    1.0f, 0.785694958f, 0.541196100f, 0.275899379f
+};
+
+static void build_huffman(huffman_table * table, const uint8_t * bits, const uint8_t * values)
+{
+    int code = 0;
+    int k = 0;
+    for (int length = 1; length <= 16; length++) {
+        for (int i = 0; i < bits[length - 1]; i++) {
+            table->code[values[k]] = (uint16_t) code;
+            table->size[values[k]] = (uint8_t) length;
+            code++;
+            k++;
+        }
+        code <<= 1;
+    }
+}
+
+static void scale_quantization(uint8_t * quant, float * divisors, const uint8_t * base,
+        int quality)
+{
+    // The scaling of the IJG library, so qualities mean the same as elsewhere
+    int scale = quality < 50 ? 5000 / quality : 200 - quality * 2;
+    for (int i = 0; i < 64; i++) {
+        int q = (base[i] * scale + 50) / 100;
+        quant[i] = (uint8_t) (q < 1 ? 1 : (q > 255 ? 255 : q));
+        divisors[i] = 1.0f / (quant[i] * AAN_SCALE[i / 8] * AAN_SCALE[i % 8] * 8.0f);
+    }
+}
+
+static void put_byte(jpeg_encoder * encoder, uint8_t byte)
+{
+    if (encoder->out_size == encoder->out_capacity) {
+        size_t capacity = encoder->out_capacity > 0 ? encoder->out_capacity * 2 : 65536;
+        uint8_t * out = (uint8_t *) realloc(encoder->out, capacity);
+        if (out == NULL) {
+            encoder->out_of_memory = 1;
+            return;
+        }
+        encoder->out = out;
+        encoder->out_capacity = capacity;
+    }
+    encoder->out[encoder->out_size++] = byte;
+}
+
+static void put_marker(jpeg_encoder * encoder, uint8_t marker, int length)
+{
+    put_byte(encoder, 0xff);
+    put_byte(encoder, marker);
+    if (length > 0) {
+        put_byte(encoder, (uint8_t) (length >> 8));
+        put_byte(encoder, (uint8_t) length);
+    }
+}
+
+static void put_bits(jpeg_encoder * encoder, uint32_t value, int count)
+{
+    encoder->bits = (encoder->bits << count) | (value & ((1u << count) - 1));
+    encoder->bit_count += count;
+    while (encoder->bit_count >= 8) {
+        uint8_t byte = (uint8_t) (encoder->bits >> (encoder->bit_count - 8));
+        put_byte(encoder, byte);
+        if (byte == 0xff) {
+            put_byte(encoder, 0);
+        }
+        encoder->bit_count -= 8;
+    }
+}
+
+static void write_huffman(jpeg_encoder * encoder, uint8_t class_and_id, const uint8_t * bits,
+        const uint8_t * values, int count)
+{
+    put_byte(encoder, class_and_id);
+    for (int i = 0; i < 16; i++) {
+        put_byte(encoder, bits[i]);
+    }
+    for (int i = 0; i < count; i++) {
+        put_byte(encoder, values[i]);
+    }
+}
+
+static void write_headers(jpeg_encoder * encoder)
+{
+    static const uint8_t JFIF[14] = {
+        'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1, 0, 0
+    };
+
+    put_marker(encoder, 0xd8, 0);
+    put_marker(encoder, 0xe0, 2 + sizeof(JFIF));
+    for (size_t i = 0; i < sizeof(JFIF); i++) {
+        put_byte(encoder, JFIF[i]);
+    }
+
+    put_marker(encoder, 0xdb, 2 + 2 * 65);
+    put_byte(encoder, 0);
+    for (int i = 0; i < 64; i++) {
+        put_byte(encoder, encoder->quant_luma[ZIGZAG[i]]);
+    }
+    put_byte(encoder, 1);
+    for (int i = 0; i < 64; i++) {
+        put_byte(encoder, encoder->quant_chroma[ZIGZAG[i]]);
+    }
+
+    put_marker(encoder, 0xc0, 8 + 3 * 3);
+    put_byte(encoder, 8);
+    put_byte(encoder, (uint8_t) (encoder->height >> 8));
+    put_byte(encoder, (uint8_t) encoder->height);
+    put_byte(encoder, (uint8_t) (encoder->width >> 8));
+    put_byte(encoder, (uint8_t) encoder->width);
+    put_byte(encoder, 3);
+    // Component id, sampling factors and quantization table
+    put_byte(encoder, 1);
+    put_byte(encoder, 0x22);
+    put_byte(encoder, 0);
+    put_byte(encoder, 2);
+    put_byte(encoder, 0x11);
+    put_byte(encoder, 1);
+    put_byte(encoder, 3);
+    put_byte(encoder, 0x11);
+    put_byte(encoder, 1);
+
+    put_marker(encoder, 0xc4, 2 + 4 * 17 + 2 * 12 + 2 * 162);
+    write_huffman(encoder, 0x00, DC_LUMA_BITS, DC_VALUES, 12);
+    write_huffman(encoder, 0x10, AC_LUMA_BITS, AC_LUMA_VALUES, 162);
+    write_huffman(encoder, 0x01, DC_CHROMA_BITS, DC_VALUES, 12);
+    write_huffman(encoder, 0x11, AC_CHROMA_BITS, AC_CHROMA_VALUES, 162);
+
+    put_marker(encoder, 0xda, 6 + 2 * 3);
+    put_byte(encoder, 3);
+    put_byte(encoder, 1);
+    put_byte(encoder, 0x00);
+    put_byte(encoder, 2);
+    put_byte(encoder, 0x11);
+    put_byte(encoder, 3);
+    put_byte(encoder, 0x11);
+    // Spectral selection and successive approximation of a baseline scan
+    put_byte(encoder, 0);
+    put_byte(encoder, 63);
+    put_byte(encoder, 0);
+}
+
+// One dimensional AAN forward DCT of 8 values, stride apart
+static void fdct8(float * d, int stride)
+{
+    float tmp0 = d[0] + d[7 * stride];
+    float tmp7 = d[0] - d[7 * stride];
+    float tmp1 = d[stride] + d[6 * stride];
+    float tmp6 = d[stride] - d[6 * stride];
+    float tmp2 = d[2 * stride] + d[5 * stride];
+    float tmp5 = d[2 * stride] - d[5 * stride];
+    float tmp3 = d[3 * stride] + d[4 * stride];
+    float tmp4 = d[3 * stride] - d[4 * stride];
+
+    float tmp10 = tmp0 + tmp3;
+    float tmp13 = tmp0 - tmp3;
+    float tmp11 = tmp1 + tmp2;
+    float tmp12 = tmp1 - tmp2;
+    d[0] = tmp10 + tmp11;
+    d[4 * stride] = tmp10 - tmp11;
+    float z1 = (tmp12 + tmp13) * 0.707106781f;
+    d[2 * stride] = tmp13 + z1;
+    d[6 * stride] = tmp13 - z1;
+
+    tmp10 = tmp4 + tmp5;
+    tmp11 = tmp5 + tmp6;
+    tmp12 = tmp6 + tmp7;
+    float z5 = (tmp10 - tmp12) * 0.382683433f;
+    float z2 = 0.541196100f * tmp10 + z5;
+    float z4 = 1.306562965f * tmp12 + z5;
+    float z3 = tmp11 * 0.707106781f;
+    float z11 = tmp7 + z3;
+    float z13 = tmp7 - z3;
+    d[5 * stride] = z13 + z2;
+    d[3 * stride] = z13 - z2;
+    d[stride] = z11 + z4;
+    d[7 * stride] = z11 - z4;
+}
+
+static int bit_length(int value)
+{
+    int length = 0;
+    while (value > 0) {
+        length++;
+        value >>= 1;
+    }
+    return length;
+}
+
+static void put_coefficient(jpeg_encoder * encoder, const huffman_table * table, int symbol,
+        int value, int length)
+{
+    put_bits(encoder, table->code[symbol], table->size[symbol]);
+    if (length > 0) {
+        // Negative values are sent as their ones' complement
+        put_bits(encoder, (uint32_t) (value < 0 ? value - 1 : value), length);
+    }
+}
+
+static void encode_block(jpeg_encoder * encoder, const float * plane, int stride, int x, int y,
+        const float * divisors, const huffman_table * dc, const huffman_table * ac, int component)
+{
+    float block[64];
+    int quantized[64];
+
+    for (int row = 0; row < 8; row++) {
+        memcpy(block + row * 8, plane + (y + row) * stride + x, 8 * sizeof(float));
+    }
+    for (int i = 0; i < 8; i++) {
+        fdct8(block + i * 8, 1);
+    }
+    for (int i = 0; i < 8; i++) {
+        fdct8(block + i, 8);
+    }
+    for (int i = 0; i < 64; i++) {
+        float value = block[ZIGZAG[i]] * divisors[ZIGZAG[i]];
+        quantized[i] = (int) (value < 0 ? value - 0.5f : value + 0.5f);
+    }
+
+    int diff = quantized[0] - encoder->last_dc[component];
+    encoder->last_dc[component] = quantized[0];
+    int length = bit_length(diff < 0 ? -diff : diff);
+    put_coefficient(encoder, dc, length, diff, length);
+
+    int run = 0;
+    for (int i = 1; i < 64; i++) {
+        int value = quantized[i];
+        if (value == 0) {
+            run++;
+            continue;
+        }
+        while (run > 15) {
+            put_bits(encoder, ac->code[0xf0], ac->size[0xf0]);
+            run -= 16;
+        }
+        length = bit_length(value < 0 ? -value : value);
+        put_coefficient(encoder, ac, (run << 4) | length, value, length);
+        run = 0;
+    }
+    if (run > 0) {
+        put_bits(encoder, ac->code[0x00], ac->size[0x00]);
+    }
+}
+
+static void encode_mcu_row(jpeg_encoder * encoder)
+{
+    int width = encoder->padded_width;
+    int chroma_width = width / 2;
+
+    // Average the chroma over 2x2 pixels in place, into the top left corner
+    // of the row buffers
+    for (int y = 0; y < MCU_SIZE / 2; y++) {
+        const float * cb0 = encoder->cb + 2 * y * width;
+        const float * cr0 = encoder->cr + 2 * y * width;
+        float * cb = encoder->cb + y * chroma_width;
+        float * cr = encoder->cr + y * chroma_width;
+        for (int x = 0; x < chroma_width; x++) {
+            cb[x] = (cb0[2 * x] + cb0[2 * x + 1] + cb0[width + 2 * x] + cb0[width + 2 * x + 1])
+                    * 0.25f;
+            cr[x] = (cr0[2 * x] + cr0[2 * x + 1] + cr0[width + 2 * x] + cr0[width + 2 * x + 1])
+                    * 0.25f;
+        }
+    }
+
+    for (int x = 0; x < width; x += MCU_SIZE) {
+        encode_block(encoder, encoder->y, width, x, 0, encoder->divisors_luma,
+                &encoder->dc_luma, &encoder->ac_luma, 0);
+        encode_block(encoder, encoder->y, width, x + 8, 0, encoder->divisors_luma,
+                &encoder->dc_luma, &encoder->ac_luma, 0);
+        encode_block(encoder, encoder->y, width, x, 8, encoder->divisors_luma,
+                &encoder->dc_luma, &encoder->ac_luma, 0);
+        encode_block(encoder, encoder->y, width, x + 8, 8, encoder->divisors_luma,
+                &encoder->dc_luma, &encoder->ac_luma, 0);
+        encode_block(encoder, encoder->cb, chroma_width, x / 2, 0, encoder->divisors_chroma,
+                &encoder->dc_chroma, &encoder->ac_chroma, 1);
+        encode_block(encoder, encoder->cr, chroma_width, x / 2, 0, encoder->divisors_chroma,
+                &encoder->dc_chroma, &encoder->ac_chroma, 2);
+    }
+    encoder->rows_buffered = 0;
+}
+
+// Converts a row to level shifted YCbCr as in JFIF, repeating the last pixel
+// up to the padded width
+static void convert_row(jpeg_encoder * encoder, const uint8_t * rgba, int row)
+{
+    float * y = encoder->y + row * encoder->padded_width;
+    float * cb = encoder->cb + row * encoder->padded_width;
+    float * cr = encoder->cr + row * encoder->padded_width;
+    for (int x = 0; x < encoder->width; x++) {
+        float r = rgba[4 * x];
+        float g = rgba[4 * x + 1];
+        float b = rgba[4 * x + 2];
+        y[x] = 0.299f * r + 0.587f * g + 0.114f * b - 128.0f;
+        cb[x] = -0.168736f * r - 0.331264f * g + 0.5f * b;
+        cr[x] = 0.5f * r - 0.418688f * g - 0.081312f * b;
+    }
+    for (int x = encoder->width; x < encoder->padded_width; x++) {
+        y[x] = y[encoder->width - 1];
+        cb[x] = cb[encoder->width - 1];
+        cr[x] = cr[encoder->width - 1];
+    }
+}
+
+jpeg_encoder * jpeg_encoder_create(int width, int height, int quality)
+{
+    if (width <= 0 || height <= 0 || width > 65535 || height > 65535) {
+        return NULL;
+    }
+    jpeg_encoder * encoder = (jpeg_encoder *) calloc(1, sizeof(jpeg_encoder));
+    if (encoder == NULL) {
+        return NULL;
+    }
+    encoder->width = width;
+    encoder->height = height;
+    encoder->padded_width = (width + MCU_SIZE - 1) / MCU_SIZE * MCU_SIZE;
+    size_t plane_size = (size_t) encoder->padded_width * MCU_SIZE * sizeof(float);
+    encoder->y = (float *) malloc(plane_size);
+    encoder->cb = (float *) malloc(plane_size);
+    encoder->cr = (float *) malloc(plane_size);
+    if (encoder->y == NULL || encoder->cb == NULL || encoder->cr == NULL) {
+        jpeg_encoder_destroy(encoder);
+        return NULL;
+    }
+
+    quality = quality < 1 ? 1 : (quality > 100 ? 100 : quality);
+    scale_quantization(encoder->quant_luma, encoder->divisors_luma, QUANT_LUMA, quality);
+    scale_quantization(encoder->quant_chroma, encoder->divisors_chroma, QUANT_CHROMA, quality);
+    build_huffman(&encoder->dc_luma, DC_LUMA_BITS, DC_VALUES);
+    build_huffman(&encoder->ac_luma, AC_LUMA_BITS, AC_LUMA_VALUES);
+    build_huffman(&encoder->dc_chroma, DC_CHROMA_BITS, DC_VALUES);
+    build_huffman(&encoder->ac_chroma, AC_CHROMA_BITS, AC_CHROMA_VALUES);
+
+    write_headers(encoder);
+    if (encoder->out_of_memory) {
+        jpeg_encoder_destroy(encoder);
+        return NULL;
+    }
+    return encoder;
+}
+
+int jpeg_encoder_write_rows(jpeg_encoder * encoder, const uint8_t * rgba, int stride, int count)
+{
+    int taken = 0;
+    while (taken < count && encoder->rows_done < encoder->height) {
+        convert_row(encoder, rgba + (size_t) taken * stride, encoder->rows_buffered);
+        encoder->rows_buffered++;
+        encoder->rows_done++;
+        taken++;
+        if (encoder->rows_buffered == MCU_SIZE) {
+            encode_mcu_row(encoder);
+        }
+    }
+    return encoder->out_of_memory ? -1 : taken;
+}
+
+static void copy_row(jpeg_encoder * encoder, int from, int to)
+{
+    int width = encoder->padded_width;
+    memcpy(encoder->y + to * width, encoder->y + from * width, width * sizeof(float));
+    memcpy(encoder->cb + to * width, encoder->cb + from * width, width * sizeof(float));
+    memcpy(encoder->cr + to * width, encoder->cr + from * width, width * sizeof(float));
+}
+
+int jpeg_encoder_finish(jpeg_encoder * encoder)
+{
+    if (encoder->rows_done == 0) {
+        // Nothing was written, the image is black
+        for (int x = 0; x < encoder->padded_width; x++) {
+            encoder->y[x] = -128.0f;
+            encoder->cb[x] = 0.0f;
+            encoder->cr[x] = 0.0f;
+        }
+        encoder->rows_buffered = 1;
+        encoder->rows_done = 1;
+    }
+    // The last row written is still buffered, even after its MCU row has
+    // been encoded. Repeat it down to the bottom of the image, and to the
+    // bottom of the last MCU row.
+    int last = encoder->rows_buffered > 0 ? encoder->rows_buffered - 1 : MCU_SIZE - 1;
+    while (encoder->rows_done < encoder->height && !encoder->out_of_memory) {
+        copy_row(encoder, last, encoder->rows_buffered);
+        encoder->rows_buffered++;
+        encoder->rows_done++;
+        if (encoder->rows_buffered == MCU_SIZE) {
+            encode_mcu_row(encoder);
+        }
+    }
+    if (encoder->rows_buffered > 0) {
+        for (int row = encoder->rows_buffered; row < MCU_SIZE; row++) {
+            copy_row(encoder, last, row);
+        }
+        encode_mcu_row(encoder);
+    }
+    // Fill the last byte with ones
+    put_bits(encoder, 0x7f, 7);
+    encoder->bit_count = 0;
+    put_marker(encoder, 0xd9, 0);
+    return !encoder->out_of_memory;
+}
+
+size_t jpeg_encoder_read(jpeg_encoder * encoder, uint8_t * out, size_t size)
+{
+    size_t available = encoder->out_size - encoder->out_read;
+    if (size > available) {
+        size = available;
+    }
+    memcpy(out, encoder->out + encoder->out_read, size);
+    encoder->out_read += size;
+    if (encoder->out_read == encoder->out_size) {
+        encoder->out_read = 0;
+        encoder->out_size = 0;
+    }
+    return size;
+}
+
+void jpeg_encoder_destroy(jpeg_encoder * encoder)
+{
+    if (encoder == NULL) {
+        return;
+    }
+    free(encoder->y);
+    free(encoder->cb);
+    free(encoder->cr);
+    free(encoder->out);
+    free(encoder);
+}
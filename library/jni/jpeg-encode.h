@@ -0,0 +1,31 @@
+#ifndef GPUIMAGE_JPEG_ENCODE_H
+#define GPUIMAGE_JPEG_ENCODE_H
+
+#include <stddef.h>
+#include <stdint.h>
+
+// A baseline JPEG encoder taking the image a few rows at a time, 4:2:0 with
+// the standard Huffman tables. Only 16 rows are buffered, the encoded bytes
+// are collected until they are taken with jpeg_encoder_read().
+
+typedef struct jpeg_encoder jpeg_encoder;
+
+// Returns NULL if the size is invalid or memory is short.
+jpeg_encoder * jpeg_encoder_create(int width, int height, int quality);
+
+// Adds rows of RGBA pixels, the alpha is ignored. Returns the number of rows
+// taken, which is less than count once the image is complete, or -1 if
+// memory is short.
+int jpeg_encoder_write_rows(jpeg_encoder * encoder, const uint8_t * rgba, int stride,
+        int count);
+
+// Fills the rows not written yet with the last row written, or black if there
+// is none, and ends the image. Returns 0 if memory is short.
+int jpeg_encoder_finish(jpeg_encoder * encoder);
+
+// Moves up to size encoded bytes to out, returns the number moved.
+size_t jpeg_encoder_read(jpeg_encoder * encoder, uint8_t * out, size_t size);
+
+void jpeg_encoder_destroy(jpeg_encoder * encoder);
+
+#endif
@@ -0,0 +1,87 @@
+#include <jni.h>
+#include <stdint.h>
+#include <android/log.h>
+#include <android/bitmap.h>
+
+#include "jpeg-encode.h"
+
+#define LOGE(...) __android_log_print(ANDROID_LOG_ERROR  , "libgpuimage", __VA_ARGS__)
+
+static void throwException(JNIEnv * env, const char * className, const char * message)
+{
+    jclass clazz = (*env)->FindClass(env, className);
+    if (clazz != NULL) {
+        (*env)->ThrowNew(env, clazz, message);
+    }
+}
+
+JNIEXPORT jlong JNICALL Java_jp_co_cyberagent_android_gpuimage_GPUImageNativeLibrary_JpegEncoderCreate(JNIEnv * env, jclass clazz, jint width, jint height, jint quality)
+{
+    jpeg_encoder * encoder = jpeg_encoder_create(width, height, quality);
+    if (encoder == NULL) {
+        throwException(env, "java/lang/IllegalArgumentException", "Can't encode the image size");
+        return 0;
+    }
+    return (jlong) (intptr_t) encoder;
+}
+
+JNIEXPORT jint JNICALL Java_jp_co_cyberagent_android_gpuimage_GPUImageNativeLibrary_JpegEncoderWriteRows(JNIEnv * env, jclass clazz, jlong handle, jobject bitmap, jint count)
+{
+    jpeg_encoder * encoder = (jpeg_encoder *) (intptr_t) handle;
+    AndroidBitmapInfo info;
+    void * pixels;
+    int ret;
+
+    if ((ret = AndroidBitmap_getInfo(env, bitmap, &info)) < 0) {
+        LOGE("Error - AndroidBitmap_getInfo() Failed! error: %d", ret);
+        throwException(env, "java/lang/IllegalArgumentException", "Invalid bitmap");
+        return 0;
+    }
+    if (info.format != ANDROID_BITMAP_FORMAT_RGBA_8888) {
+        throwException(env, "java/lang/IllegalArgumentException", "Bitmap is not ARGB_8888");
+        return 0;
+    }
+    if (count < 0 || (uint32_t) count > info.height) {
+        throwException(env, "java/lang/IllegalArgumentException", "Row count out of range");
+        return 0;
+    }
+    if ((ret = AndroidBitmap_lockPixels(env, bitmap, &pixels)) < 0) {
+        LOGE("Error - AndroidBitmap_lockPixels() Failed! error: %d", ret);
+        throwException(env, "java/lang/IllegalArgumentException", "Can't lock the bitmap");
+        return 0;
+    }
+
+    int taken = jpeg_encoder_write_rows(encoder, (const uint8_t *) pixels, info.stride, count);
+
+    AndroidBitmap_unlockPixels(env, bitmap);
+    if (taken < 0) {
+        throwException(env, "java/lang/OutOfMemoryError", "Out of memory encoding the JPEG");
+        return 0;
+    }
+    return taken;
+}
+
+JNIEXPORT void JNICALL Java_jp_co_cyberagent_android_gpuimage_GPUImageNativeLibrary_JpegEncoderFinish(JNIEnv * env, jclass clazz, jlong handle)
+{
+    if (!jpeg_encoder_finish((jpeg_encoder *) (intptr_t) handle)) {
+        throwException(env, "java/lang/OutOfMemoryError", "Out of memory encoding the JPEG");
+    }
+}
+
+JNIEXPORT jint JNICALL Java_jp_co_cyberagent_android_gpuimage_GPUImageNativeLibrary_JpegEncoderRead(JNIEnv * env, jclass clazz, jlong handle, jbyteArray buffer)
+{
+    jsize length = (*env)->GetArrayLength(env, buffer);
+    jbyte * bytes = (*env)->GetByteArrayElements(env, buffer, NULL);
+    if (bytes == NULL) {
+        return 0;
+    }
+    size_t read = jpeg_encoder_read((jpeg_encoder *) (intptr_t) handle, (uint8_t *) bytes,
+            (size_t) length);
+    (*env)->ReleaseByteArrayElements(env, buffer, bytes, 0);
+    return (jint) read;
+}
+
+JNIEXPORT void JNICALL Java_jp_co_cyberagent_android_gpuimage_GPUImageNativeLibrary_JpegEncoderDestroy(JNIEnv * env, jclass clazz, jlong handle)
+{
+    jpeg_encoder_destroy((jpeg_encoder *) (intptr_t) handle);
+}
@@ -0,0 +1,324 @@
+#include "yuv-convert.h"
+
+#include <pthread.h>
+#include <unistd.h>
+
+#if defined(__ARM_NEON__) || defined(__ARM_NEON)
+#include <arm_neon.h>
+#define HAVE_NEON 1
+#endif
+
+// The conversion is the fixed point ITU-R BT.601 approximation the library
+// always used, bit for bit:
+//
+// R = Y' + 1.59375 * V
+// G = Y' - 0.8125 * V - 0.375 * U
+// B = Y' + 2.015625 * U
+//
+// with Y' = 1.1406 * Y. Bytes of 128 and above map one lower than the plain
+// unsigned value, a quirk of the original signed byte handling.
+
+#define MAX_THREADS       4
+#define MIN_ROWS_PER_BAND 16
+
+static inline int luma(int y)
+{
+    y -= y >> 7;
+    return y + (y >> 3) + (y >> 5) + (y >> 7);
+}
+
+static inline int chroma(int c)
+{
+    return c - 128 - (c >> 7);
+}
+
+static inline uint8_t clamp(int x)
+{
+    return (uint8_t) (x < 0 ? 0 : (x > 255 ? 255 : x));
+}
+
+static inline uint32_t pack(int Y, int rc, int gc, int bc, int rs, int bs)
+{
+    return (uint32_t) clamp(Y + rc) << rs | (uint32_t) clamp(Y + gc) << 8
+           | (uint32_t) clamp(Y + bc) << bs | 0xff000000u;
+}
+
+// Works on pixel pairs sharing their chroma sample, without branches. The
+// body is instantiated for every chroma layout and byte order below, so all
+// strides and shifts are constants and the compiler can vectorize it on
+// targets without a hand written path. Pixels are written as little endian
+// words.
+static inline __attribute__((always_inline))
+void convert_row_generic(const uint8_t * restrict y, const uint8_t * restrict u,
+                         const uint8_t * restrict v, const int uv_pixel_stride,
+                         uint32_t * restrict out, const int rs, const int bs,
+                         int begin, int width)
+{
+    int pairs = width >> 1;
+    int p;
+    for (p = begin >> 1; p < pairs; p++) {
+        int U = chroma(u[p * uv_pixel_stride]);
+        int V = chroma(v[p * uv_pixel_stride]);
+        int rc = V + (V >> 1) + (V >> 4) + (V >> 5);
+        int gc = -V + (V >> 3) + (V >> 4) - (U >> 1) + (U >> 3);
+        int bc = U * 2 + (U >> 6);
+        out[p * 2] = pack(luma(y[p * 2]), rc, gc, bc, rs, bs);
+        out[p * 2 + 1] = pack(luma(y[p * 2 + 1]), rc, gc, bc, rs, bs);
+    }
+    if (width & 1) {
+        int i = width - 1;
+        int c = (i >> 1) * uv_pixel_stride;
+        int U = chroma(u[c]);
+        int V = chroma(v[c]);
+        out[i] = pack(luma(y[i]), V + (V >> 1) + (V >> 4) + (V >> 5),
+                      -V + (V >> 3) + (V >> 4) - (U >> 1) + (U >> 3), U * 2 + (U >> 6), rs, bs);
+    }
+}
+
+static void convert_row_portable(const uint8_t * y, const uint8_t * u, const uint8_t * v,
+                                 int uv_pixel_stride, uint32_t * out, int order,
+                                 int begin, int width)
+{
+    if (uv_pixel_stride == 2) {
+        if (order == RGB_ORDER_RGBA) {
+            convert_row_generic(y, u, v, 2, out, 0, 16, begin, width);
+        } else {
+            convert_row_generic(y, u, v, 2, out, 16, 0, begin, width);
+        }
+    } else {
+        if (order == RGB_ORDER_RGBA) {
+            convert_row_generic(y, u, v, 1, out, 0, 16, begin, width);
+        } else {
+            convert_row_generic(y, u, v, 1, out, 16, 0, begin, width);
+        }
+    }
+}
+
+#ifdef HAVE_NEON
+static inline int16x8_t neon_chroma(uint8x8_t c)
+{
+    c = vsub_u8(c, vshr_n_u8(c, 7));
+    return vsubq_s16(vreinterpretq_s16_u16(vmovl_u8(c)), vdupq_n_s16(128));
+}
+
+static inline int16x8_t neon_luma(uint8x8_t y)
+{
+    int16x8_t Y = vreinterpretq_s16_u16(vmovl_u8(vsub_u8(y, vshr_n_u8(y, 7))));
+    return vaddq_s16(vaddq_s16(Y, vshrq_n_s16(Y, 3)),
+                     vaddq_s16(vshrq_n_s16(Y, 5), vshrq_n_s16(Y, 7)));
+}
+
+static inline void neon_store(uint8_t * out, int16x8_t Y, int16x8_t rc, int16x8_t gc,
+                              int16x8_t bc, int order)
+{
+    uint8x8x4_t px;
+    uint8x8_t r = vqmovun_s16(vaddq_s16(Y, rc));
+    uint8x8_t b = vqmovun_s16(vaddq_s16(Y, bc));
+    px.val[0] = order == RGB_ORDER_RGBA ? r : b;
+    px.val[1] = vqmovun_s16(vaddq_s16(Y, gc));
+    px.val[2] = order == RGB_ORDER_RGBA ? b : r;
+    px.val[3] = vdup_n_u8(255);
+    vst4_u8(out, px);
+}
+
+// Converts 16 pixels per iteration, returns the number of pixels done.
+static int convert_row_neon(const uint8_t * y, const uint8_t * u, const uint8_t * v,
+                            int uv_pixel_stride, uint8_t * out, int order, int width)
+{
+    int i;
+    for (i = 0; i + 16 <= width; i += 16) {
+        uint8x8_t uu;
+        uint8x8_t vv;
+        if (uv_pixel_stride == 2) {
+            int u_first = u < v;
+            uint8x8x2_t uv = vld2_u8((u_first ? u : v) + i);
+            uu = uv.val[u_first ? 0 : 1];
+            vv = uv.val[u_first ? 1 : 0];
+        } else {
+            uu = vld1_u8(u + (i >> 1));
+            vv = vld1_u8(v + (i >> 1));
+        }
+        int16x8_t U = neon_chroma(uu);
+        int16x8_t V = neon_chroma(vv);
+
+        int16x8_t rc = vaddq_s16(vaddq_s16(V, vshrq_n_s16(V, 1)),
+                                 vaddq_s16(vshrq_n_s16(V, 4), vshrq_n_s16(V, 5)));
+        int16x8_t gc = vsubq_s16(vaddq_s16(vshrq_n_s16(V, 3), vshrq_n_s16(V, 4)), V);
+        gc = vaddq_s16(gc, vsubq_s16(vshrq_n_s16(U, 3), vshrq_n_s16(U, 1)));
+        int16x8_t bc = vaddq_s16(vshlq_n_s16(U, 1), vshrq_n_s16(U, 6));
+
+        // Every chroma sample covers two neighbouring pixels
+        int16x8x2_t r2 = vzipq_s16(rc, rc);
+        int16x8x2_t g2 = vzipq_s16(gc, gc);
+        int16x8x2_t b2 = vzipq_s16(bc, bc);
+
+        uint8x16_t yy = vld1q_u8(y + i);
+        neon_store(out + i * 4, neon_luma(vget_low_u8(yy)),
+                   r2.val[0], g2.val[0], b2.val[0], order);
+        neon_store(out + i * 4 + 32, neon_luma(vget_high_u8(yy)),
+                   r2.val[1], g2.val[1], b2.val[1], order);
+    }
+    return i;
+}
+#endif
+
+void yuv_convert_rows(const yuv_frame * frame, int row_begin, int row_end)
+{
+    int j;
+    for (j = row_begin; j < row_end; j++) {
+        const uint8_t * y = frame->y + (long) j * frame->y_stride;
+        const uint8_t * u = frame->u + (long) (j >> 1) * frame->uv_stride;
+        const uint8_t * v = frame->v + (long) (j >> 1) * frame->uv_stride;
+        uint8_t * out = frame->out + (long) j * frame->out_stride;
+        int done = 0;
+#ifdef HAVE_NEON
+        done = convert_row_neon(y, u, v, frame->uv_pixel_stride, out, frame->out_order,
+                                frame->width);
+#endif
+        convert_row_portable(y, u, v, frame->uv_pixel_stride, (uint32_t *) out,
+                             frame->out_order, done,
+                             frame->width);
+    }
+}
+
+long yuv_frame_init(yuv_frame * frame, const uint8_t * data, int format,
+                    int width, int height, int y_stride, int uv_stride)
+{
+    int chroma_width = (width + 1) / 2;
+    int chroma_height = (height + 1) / 2;
+    long y_size = (long) y_stride * height;
+
+    if (width <= 0 || height <= 0 || y_stride < width) {
+        return -1;
+    }
+    frame->y = data;
+    frame->y_stride = y_stride;
+    frame->uv_stride = uv_stride;
+    frame->width = width;
+    frame->height = height;
+
+    switch (format) {
+        case YUV_FORMAT_NV21:
+        case YUV_FORMAT_NV12:
+            if (uv_stride < chroma_width * 2) {
+                return -1;
+            }
+            frame->uv_pixel_stride = 2;
+            frame->v = data + y_size + (format == YUV_FORMAT_NV21 ? 0 : 1);
+            frame->u = data + y_size + (format == YUV_FORMAT_NV21 ? 1 : 0);
+            return y_size + (long) uv_stride * (chroma_height - 1) + chroma_width * 2;
+        case YUV_FORMAT_I420:
+            if (uv_stride < chroma_width) {
+                return -1;
+            }
+            frame->uv_pixel_stride = 1;
+            frame->u = data + y_size;
+            frame->v = data + y_size + (long) uv_stride * chroma_height;
+            return y_size + (long) uv_stride * (2 * chroma_height - 1) + chroma_width;
+        default:
+            return -1;
+    }
+}
+
+// A small pool of worker threads the rows of a frame are split across. The
+// calling thread takes bands of rows as well, so there are never more threads
+// busy than cores.
+
+static pthread_once_t   s_pool_once = PTHREAD_ONCE_INIT;
+static pthread_mutex_t  s_convert_lock = PTHREAD_MUTEX_INITIALIZER;
+static pthread_mutex_t  s_pool_lock = PTHREAD_MUTEX_INITIALIZER;
+static pthread_cond_t   s_work_cond = PTHREAD_COND_INITIALIZER;
+static pthread_cond_t   s_done_cond = PTHREAD_COND_INITIALIZER;
+static int              s_workers;
+static unsigned         s_generation;
+static int              s_active;
+
+static const yuv_frame * s_frame;
+static int              s_band_rows;
+static int              s_band_count;
+static volatile int     s_next_band;
+
+static void run_bands(void)
+{
+    int band;
+    while ((band = __sync_fetch_and_add(&s_next_band, 1)) < s_band_count) {
+        int begin = band * s_band_rows;
+        int end = begin + s_band_rows;
+        yuv_convert_rows(s_frame, begin, end < s_frame->height ? end : s_frame->height);
+    }
+}
+
+static void * worker_main(void * arg)
+{
+    unsigned seen = 0;
+    (void) arg;
+    pthread_mutex_lock(&s_pool_lock);
+    for (;;) {
+        while (s_generation == seen) {
+            pthread_cond_wait(&s_work_cond, &s_pool_lock);
+        }
+        seen = s_generation;
+        pthread_mutex_unlock(&s_pool_lock);
+
+        run_bands();
+
+        pthread_mutex_lock(&s_pool_lock);
+        if (--s_active == 0) {
+            pthread_cond_signal(&s_done_cond);
+        }
+    }
+    return NULL;
+}
+
+static void start_pool(void)
+{
+    long cores = sysconf(_SC_NPROCESSORS_ONLN);
+    int threads = cores < 1 ? 1 : (cores > MAX_THREADS ? MAX_THREADS : (int) cores);
+    int i;
+    for (i = 0; i < threads - 1; i++) {
+        pthread_t thread;
+        pthread_attr_t attr;
+        pthread_attr_init(&attr);
+        pthread_attr_setdetachstate(&attr, PTHREAD_CREATE_DETACHED);
+        if (pthread_create(&thread, &attr, worker_main, NULL) == 0) {
+            s_workers++;
+        }
+        pthread_attr_destroy(&attr);
+    }
+}
+
+void yuv_convert(const yuv_frame * frame)
+{
+    pthread_once(&s_pool_once, start_pool);
+    if (s_workers == 0 || frame->height < MIN_ROWS_PER_BAND * 2) {
+        yuv_convert_rows(frame, 0, frame->height);
+        return;
+    }
+
+    pthread_mutex_lock(&s_convert_lock);
+    // A few bands per thread, so a preempted thread doesn't hold up the frame
+    s_band_rows = frame->height / ((s_workers + 1) * 4);
+    if (s_band_rows < MIN_ROWS_PER_BAND) {
+        s_band_rows = MIN_ROWS_PER_BAND;
+    }
+    s_band_rows = (s_band_rows + 1) & ~1;
+    s_band_count = (frame->height + s_band_rows - 1) / s_band_rows;
+    s_next_band = 0;
+    s_frame = frame;
+
+    pthread_mutex_lock(&s_pool_lock);
+    s_generation++;
+    s_active = s_workers;
+    pthread_cond_broadcast(&s_work_cond);
+    pthread_mutex_unlock(&s_pool_lock);
+
+    run_bands();
+
+    pthread_mutex_lock(&s_pool_lock);
+    while (s_active > 0) {
+        pthread_cond_wait(&s_done_cond, &s_pool_lock);
+    }
+    pthread_mutex_unlock(&s_pool_lock);
+    s_frame = NULL;
+    pthread_mutex_unlock(&s_convert_lock);
+}
@@ -0,0 +1,40 @@
+#ifndef GPUIMAGE_YUV_CONVERT_H
+#define GPUIMAGE_YUV_CONVERT_H
+
+#include <stdint.h>
+
+// Layouts of the YUV 4:2:0 frames, the values match GPUImageNativeLibrary.FORMAT_*
+#define YUV_FORMAT_NV21 0
+#define YUV_FORMAT_NV12 1
+#define YUV_FORMAT_I420 2
+
+// Byte order of the converted pixels in memory
+#define RGB_ORDER_RGBA 0
+#define RGB_ORDER_BGRA 1
+
+typedef struct {
+    const uint8_t * y;
+    const uint8_t * u;
+    const uint8_t * v;
+    int             y_stride;
+    int             uv_stride;
+    int             uv_pixel_stride;   // 1 for planar chroma, 2 for interleaved
+    int             width;
+    int             height;
+    uint8_t *       out;
+    int             out_stride;
+    int             out_order;
+} yuv_frame;
+
+// Sets up the planes of a frame stored in one block of memory. Returns the
+// number of bytes the frame needs, or -1 if the parameters are invalid.
+long yuv_frame_init(yuv_frame * frame, const uint8_t * data, int format,
+                    int width, int height, int y_stride, int uv_stride);
+
+// Converts the rows [row_begin, row_end) on the calling thread.
+void yuv_convert_rows(const yuv_frame * frame, int row_begin, int row_end);
+
+// Converts the whole frame, split across the native worker threads.
+void yuv_convert(const yuv_frame * frame);
+
+#endif
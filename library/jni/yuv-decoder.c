@@ -1,115 +1,115 @@
 #include <jni.h>
 #include <android/log.h>
 
+#include "yuv-convert.h"
 
-JNIEXPORT void JNICALL Java_jp_co_cyberagent_android_gpuimage_GPUImageNativeLibrary_YUVtoRBGA(JNIEnv * env, jobject obj, jbyteArray yuv420sp, jint width, jint height, jintArray rgbOut)
+#define LOGE(...) __android_log_print(ANDROID_LOG_ERROR  , "libgpuimage", __VA_ARGS__)
+
+static void throwIllegalArgument(JNIEnv * env, const char * message)
 {
-    int             sz;
-    int             i;
-    int             j;
-    int             Y;
-    int             Cr = 0;
-    int             Cb = 0;
-    int             pixPtr = 0;
-    int             jDiv2 = 0;
-    int             R = 0;
-    int             G = 0;
-    int             B = 0;
-    int             cOff;
-    int w = width;
-    int h = height;
-    sz = w * h;
+    jclass clazz = (*env)->FindClass(env, "java/lang/IllegalArgumentException");
+    if (clazz != NULL) {
+        (*env)->ThrowNew(env, clazz, message);
+    }
+}
 
-    jint *rgbData = (jint*) ((*env)->GetPrimitiveArrayCritical(env, rgbOut, 0));
-    jbyte* yuv = (jbyte*) (*env)->GetPrimitiveArrayCritical(env, yuv420sp, 0);
+// Checks the output buffer and sets it up as RGBA rows without padding.
+static int setOutput(JNIEnv * env, yuv_frame * frame, jobject out)
+{
+    jlong capacity = (*env)->GetDirectBufferCapacity(env, out);
+    frame->out = (uint8_t *) (*env)->GetDirectBufferAddress(env, out);
+    if (frame->out == NULL) {
+        throwIllegalArgument(env, "Output must be a direct buffer");
+        return 0;
+    }
+    if (capacity < (jlong) frame->width * frame->height * 4) {
+        throwIllegalArgument(env, "Output buffer too small");
+        return 0;
+    }
+    frame->out_stride = frame->width * 4;
+    frame->out_order = RGB_ORDER_RGBA;
+    return 1;
+}
 
-    for(j = 0; j < h; j++) {
-             pixPtr = j * w;
-             jDiv2 = j >> 1;
-             for(i = 0; i < w; i++) {
-                     Y = yuv[pixPtr];
-                     if(Y < 0) Y += 255;
-                     if((i & 0x1) != 1) {
-                             cOff = sz + jDiv2 * w + (i >> 1) * 2;
-                             Cb = yuv[cOff];
-                             if(Cb < 0) Cb += 127; else Cb -= 128;
-                             Cr = yuv[cOff + 1];
-                             if(Cr < 0) Cr += 127; else Cr -= 128;
-                     }
-                     
-                     //ITU-R BT.601 conversion
-                     //
-                     //R = 1.164*(Y-16) + 2.018*(Cr-128);
-                     //G = 1.164*(Y-16) - 0.813*(Cb-128) - 0.391*(Cr-128);
-                     //B = 1.164*(Y-16) + 1.596*(Cb-128);
-                     //
-                     Y = Y + (Y >> 3) + (Y >> 5) + (Y >> 7);
-                     R = Y + (Cr << 1) + (Cr >> 6);
-                     if(R < 0) R = 0; else if(R > 255) R = 255;
-                     G = Y - Cb + (Cb >> 3) + (Cb >> 4) - (Cr >> 1) + (Cr >> 3);
-                     if(G < 0) G = 0; else if(G > 255) G = 255;
-                     B = Y + Cb + (Cb >> 1) + (Cb >> 4) + (Cb >> 5);
-                     if(B < 0) B = 0; else if(B > 255) B = 255;
-                     rgbData[pixPtr++] = 0xff000000 + (R << 16) + (G << 8) + B;
-             }
+JNIEXPORT void JNICALL Java_jp_co_cyberagent_android_gpuimage_GPUImageNativeLibrary_YUVtoRGBA(JNIEnv * env, jclass clazz, jbyteArray yuv, jint format, jint width, jint height, jint yStride, jint uvStride, jobject out)
+{
+    yuv_frame frame;
+    long size = yuv_frame_init(&frame, NULL, format, width, height, yStride, uvStride);
+    if (size < 0) {
+        throwIllegalArgument(env, "Invalid frame layout");
+        return;
+    }
+    if ((*env)->GetArrayLength(env, yuv) < size) {
+        throwIllegalArgument(env, "YUV data too small");
+        return;
+    }
+    if (!setOutput(env, &frame, out)) {
+        return;
     }
 
-    (*env)->ReleasePrimitiveArrayCritical(env, rgbOut, rgbData, 0);
-    (*env)->ReleasePrimitiveArrayCritical(env, yuv420sp, yuv, 0);
+    // The output is a direct buffer, so only the input has to be pinned
+    jbyte * data = (jbyte *) (*env)->GetPrimitiveArrayCritical(env, yuv, 0);
+    if (data == NULL) {
+        return;
+    }
+    yuv_frame_init(&frame, (const uint8_t *) data, format, width, height, yStride, uvStride);
+    yuv_convert(&frame);
+    (*env)->ReleasePrimitiveArrayCritical(env, yuv, data, JNI_ABORT);
 }
 
-JNIEXPORT void JNICALL Java_jp_co_cyberagent_android_gpuimage_GPUImageNativeLibrary_YUVtoARBG(JNIEnv * env, jobject obj, jbyteArray yuv420sp, jint width, jint height, jintArray rgbOut)
+JNIEXPORT void JNICALL Java_jp_co_cyberagent_android_gpuimage_GPUImageNativeLibrary_YUVBufferToRGBA(JNIEnv * env, jclass clazz, jobject yuv, jint format, jint width, jint height, jint yStride, jint uvStride, jobject out)
 {
-    int             sz;
-    int             i;
-    int             j;
-    int             Y;
-    int             Cr = 0;
-    int             Cb = 0;
-    int             pixPtr = 0;
-    int             jDiv2 = 0;
-    int             R = 0;
-    int             G = 0;
-    int             B = 0;
-    int             cOff;
-    int w = width;
-    int h = height;
-    sz = w * h;
+    yuv_frame frame;
+    const uint8_t * data = (const uint8_t *) (*env)->GetDirectBufferAddress(env, yuv);
+    if (data == NULL) {
+        throwIllegalArgument(env, "YUV data must be a direct buffer");
+        return;
+    }
+    long size = yuv_frame_init(&frame, data, format, width, height, yStride, uvStride);
+    if (size < 0) {
+        throwIllegalArgument(env, "Invalid frame layout");
+        return;
+    }
+    if ((*env)->GetDirectBufferCapacity(env, yuv) < size) {
+        throwIllegalArgument(env, "YUV data too small");
+        return;
+    }
+    if (!setOutput(env, &frame, out)) {
+        return;
+    }
+    yuv_convert(&frame);
+}
 
-    jint *rgbData = (jint*) ((*env)->GetPrimitiveArrayCritical(env, rgbOut, 0));
-    jbyte* yuv = (jbyte*) (*env)->GetPrimitiveArrayCritical(env, yuv420sp, 0);
+// The original entry points, converting NV21 frames without row padding into
+// an int array. Both arrays have to be pinned for the whole conversion.
 
-    for(j = 0; j < h; j++) {
-             pixPtr = j * w;
-             jDiv2 = j >> 1;
-             for(i = 0; i < w; i++) {
-                     Y = yuv[pixPtr];
-                     if(Y < 0) Y += 255;
-                     if((i & 0x1) != 1) {
-                             cOff = sz + jDiv2 * w + (i >> 1) * 2;
-                             Cb = yuv[cOff];
-                             if(Cb < 0) Cb += 127; else Cb -= 128;
-                             Cr = yuv[cOff + 1];
-                             if(Cr < 0) Cr += 127; else Cr -= 128;
-                     }
-                     
-                     //ITU-R BT.601 conversion
-                     //
-                     //R = 1.164*(Y-16) + 2.018*(Cr-128);
-                     //G = 1.164*(Y-16) - 0.813*(Cb-128) - 0.391*(Cr-128);
-                     //B = 1.164*(Y-16) + 1.596*(Cb-128);
-                     //
-                     Y = Y + (Y >> 3) + (Y >> 5) + (Y >> 7);
-                     R = Y + (Cr << 1) + (Cr >> 6);
-                     if(R < 0) R = 0; else if(R > 255) R = 255;
-                     G = Y - Cb + (Cb >> 3) + (Cb >> 4) - (Cr >> 1) + (Cr >> 3);
-                     if(G < 0) G = 0; else if(G > 255) G = 255;
-                     B = Y + Cb + (Cb >> 1) + (Cb >> 4) + (Cb >> 5);
-                     if(B < 0) B = 0; else if(B > 255) B = 255;
-                     rgbData[pixPtr++] = 0xff000000 + (B << 16) + (G << 8) + R;
-             }
+static void convertToIntArray(JNIEnv * env, jbyteArray yuv420sp, jint width, jint height, jintArray rgbOut, int order)
+{
+    yuv_frame frame;
+    if (yuv_frame_init(&frame, NULL, YUV_FORMAT_NV21, width, height, width, width + (width & 1)) < 0) {
+        LOGE("Error - Invalid frame size %dx%d", width, height);
+        return;
     }
 
+    jint * rgbData = (jint *) (*env)->GetPrimitiveArrayCritical(env, rgbOut, 0);
+    jbyte * yuv = (jbyte *) (*env)->GetPrimitiveArrayCritical(env, yuv420sp, 0);
+
+    yuv_frame_init(&frame, (const uint8_t *) yuv, YUV_FORMAT_NV21, width, height, width, width + (width & 1));
+    frame.out = (uint8_t *) rgbData;
+    frame.out_stride = width * 4;
+    frame.out_order = order;
+    yuv_convert(&frame);
+
+    (*env)->ReleasePrimitiveArrayCritical(env, yuv420sp, yuv, JNI_ABORT);
     (*env)->ReleasePrimitiveArrayCritical(env, rgbOut, rgbData, 0);
-    (*env)->ReleasePrimitiveArrayCritical(env, yuv420sp, yuv, 0);
-}
\ No newline at end of file
+}
+
+JNIEXPORT void JNICALL Java_jp_co_cyberagent_android_gpuimage_GPUImageNativeLibrary_YUVtoRBGA(JNIEnv * env, jobject obj, jbyteArray yuv420sp, jint width, jint height, jintArray rgbOut)
+{
+    convertToIntArray(env, yuv420sp, width, height, rgbOut, RGB_ORDER_RGBA);
+}
+
+JNIEXPORT void JNICALL Java_jp_co_cyberagent_android_gpuimage_GPUImageNativeLibrary_YUVtoARBG(JNIEnv * env, jobject obj, jbyteArray yuv420sp, jint width, jint height, jintArray rgbOut)
+{
+    convertToIntArray(env, yuv420sp, width, height, rgbOut, RGB_ORDER_BGRA);
+}
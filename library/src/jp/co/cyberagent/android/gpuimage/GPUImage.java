@@ -42,6 +42,8 @@ import android.view.WindowManager;
 import java.io.*;
 import java.net.URL;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.Semaphore;
 
 /**
@@ -49,6 +51,12 @@ import java.util.concurrent.Semaphore;
  * tasks through a simple interface.
  */
 public class GPUImage {
+    // Larger images are filtered tile by tile, every device supports
+    // textures and pbuffers of this size
+    private static final int MAX_UNTILED_SIZE = 2048;
+
+    private static GPUImageEngine sEngine;
+
     private final Context mContext;
     private final GPUImageRenderer mRenderer;
     private GLSurfaceView mGlSurfaceView;
@@ -143,7 +151,7 @@ public class GPUImage {
         if (Build.VERSION.SDK_INT > Build.VERSION_CODES.GINGERBREAD_MR1) {
             setUpCameraGingerbread(camera);
         } else {
-            camera.setPreviewCallback(mRenderer);
+            mRenderer.getFrameIntake().attach(camera, mRenderer);
             camera.startPreview();
         }
         Rotation rotation = Rotation.NORMAL;
@@ -161,6 +169,49 @@ public class GPUImage {
         mRenderer.setRotationCamera(rotation, flipHorizontal, flipVertical);
     }
 
+    /**
+     * Connects a synthetic frame source instead of a camera, e.g. to measure
+     * the preview pipeline on a device without one.
+     *
+     * @param source the source, which is started right away
+     */
+    public void setUpFrameSource(final GPUImageSyntheticFrameSource source) {
+        mGlSurfaceView.setRenderMode(GLSurfaceView.RENDERMODE_CONTINUOUSLY);
+        source.start(mRenderer.getFrameIntake());
+    }
+
+    /**
+     * Gets the intake passing preview frames to the renderer, with counters
+     * of received, converted and dropped frames.
+     *
+     * @return the frame intake
+     */
+    public GPUImageFrameIntake getFrameIntake() {
+        return mRenderer.getFrameIntake();
+    }
+
+    /**
+     * Sets whether the camera preview is drawn straight from the texture of
+     * its SurfaceTexture, without preview callbacks and without copying the
+     * frames to the CPU. Only used on API level 11 and higher, has to be set
+     * before the camera is set up.
+     *
+     * @param externalTextureInput true to sample the camera texture directly
+     */
+    public void setExternalTextureInput(final boolean externalTextureInput) {
+        mRenderer.setExternalTextureInput(externalTextureInput);
+    }
+
+    /**
+     * Sets whether camera preview frames are converted to RGB by a shader on
+     * the GPU instead of by the native library on the OpenGL thread.
+     *
+     * @param convertOnGpu true to convert preview frames on the GPU
+     */
+    public void setConvertPreviewOnGpu(final boolean convertOnGpu) {
+        mRenderer.setConvertPreviewOnGpu(convertOnGpu);
+    }
+
     @TargetApi(11)
     private void setUpCameraGingerbread(final Camera camera) {
         mRenderer.setUpSurfaceTexture(camera);
@@ -273,7 +324,10 @@ public class GPUImage {
     }
 
     /**
-     * Gets the given bitmap with current filter applied as a Bitmap.
+     * Gets the given bitmap with current filter applied as a Bitmap. Unless
+     * the image is flipped, it is drawn by a {@link GPUImageEngine} shared by
+     * all instances, and images larger than a texture are filtered tile by
+     * tile with a {@link GPUImageTiledProcessor} if the filter allows it.
      *
      * @param bitmap the bitmap on which the current filter should be applied
      * @return the bitmap with filter applied
@@ -286,7 +340,7 @@ public class GPUImage {
                 @Override
                 public void run() {
                     synchronized(mFilter) {
-                        mFilter.destroy();
+                        mFilter.releaseGL();
                         mFilter.notify();
                     }
                 }
@@ -301,17 +355,22 @@ public class GPUImage {
             }
         }
 
-        GPUImageRenderer renderer = new GPUImageRenderer(mFilter);
-        renderer.setRotation(Rotation.NORMAL,
-                mRenderer.isFlippedHorizontally(), mRenderer.isFlippedVertically());
-        renderer.setScaleType(mScaleType);
-        PixelBuffer buffer = new PixelBuffer(bitmap.getWidth(), bitmap.getHeight());
-        buffer.setRenderer(renderer);
-        renderer.setImageBitmap(bitmap, false);
-        Bitmap result = buffer.getBitmap();
-        mFilter.destroy();
-        renderer.deleteImage();
-        buffer.destroy();
+        Bitmap result;
+        if (!mRenderer.isFlippedHorizontally() && !mRenderer.isFlippedVertically()) {
+            result = applyOnSharedEngine(bitmap, mFilter);
+        } else {
+            GPUImageRenderer renderer = new GPUImageRenderer(mFilter);
+            renderer.setRotation(Rotation.NORMAL,
+                    mRenderer.isFlippedHorizontally(), mRenderer.isFlippedVertically());
+            renderer.setScaleType(mScaleType);
+            PixelBuffer buffer = new PixelBuffer(bitmap.getWidth(), bitmap.getHeight());
+            buffer.setRenderer(renderer);
+            renderer.setImageBitmap(bitmap, false);
+            result = buffer.getBitmap();
+            mFilter.releaseGL();
+            renderer.deleteImage();
+            buffer.destroy();
+        }
 
         mRenderer.setFilter(mFilter);
         if (mCurrentBitmap != null) {
@@ -322,12 +381,70 @@ public class GPUImage {
         return result;
     }
 
+    /**
+     * Applies the filter with the engine shared by all instances, which keeps
+     * its context and framebuffers between calls. Images larger than a
+     * texture are filtered tile by tile if the filter allows it. The filter is
+     * released from the engine before this returns.
+     *
+     * @param bitmap the image, it is not modified
+     * @param filter the filter to apply
+     * @return a new bitmap with the filter applied, or null if the calling
+     *         thread was interrupted
+     */
+    static Bitmap applyOnSharedEngine(final Bitmap bitmap, final GPUImageFilter filter) {
+        GPUImageEngine engine = getSharedEngine();
+        try {
+            if (shouldTile(bitmap, filter)) {
+                return new GPUImageTiledProcessor(engine, GPUImageTiledProcessor.DEFAULT_TILE_SIZE)
+                        .process(bitmap, filter);
+            }
+            return engine.process(bitmap, filter);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            waitUninterruptibly(engine.release(filter));
+        }
+    }
+
+    private static synchronized GPUImageEngine getSharedEngine() {
+        if (sEngine == null) {
+            sEngine = new GPUImageEngine();
+        }
+        return sEngine;
+    }
+
+    private static boolean shouldTile(final Bitmap bitmap, final GPUImageFilter filter) {
+        return (bitmap.getWidth() > MAX_UNTILED_SIZE || bitmap.getHeight() > MAX_UNTILED_SIZE)
+                && filter.getSamplingRadius() != GPUImageFilter.SAMPLING_RADIUS_UNBOUNDED;
+    }
+
+    // The filter must not be handed to another context while the engine uses it
+    private static void waitUninterruptibly(final Future<?> future) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                future.get();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     /**
      * Gets the images for multiple filters on a image. This can be used to
      * quickly get thumbnail images for filters. <br>
      * Whenever a new Bitmap is ready, the listener will be called with the
      * bitmap. The order of the calls to the listener will be the same as the
-     * filter order.
+     * filter order. To apply filters to many images use
+     * {@link GPUImageBatchProcessor}.
      *
      * @param bitmap the bitmap on which the filters will be applied
      * @param filters the filters which will be applied on the bitmap
@@ -380,7 +497,8 @@ public class GPUImage {
      * be stored on the default Picture folder on the phone below the given
      * folerName and fileName. <br>
      * This method is async and will notify when the image was saved through the
-     * listener.
+     * listener. Images too large to be held in memory twice can be exported
+     * with {@link GPUImageRegionExporter}.
      *
      * @param bitmap the bitmap
      * @param folderName the folder name
@@ -402,6 +520,10 @@ public class GPUImage {
         mRenderer.runOnDrawEnd(runnable);
     }
 
+    GPUImageRenderer getRenderer() {
+        return mRenderer;
+    }
+
     private int getOutputWidth() {
         if (mRenderer != null && mRenderer.getFrameWidth() != 0) {
             return mRenderer.getFrameWidth();
@@ -117,4 +117,11 @@ public class GPUImage3x3TextureSamplingFilter extends GPUImageFilter {
         setFloat(mUniformTexelWidthLocation, mTexelWidth);
         setFloat(mUniformTexelHeightLocation, mTexelHeight);
     }
+
+    @Override
+    public int getSamplingRadius() {
+        // Texel sizes set directly are relative to the image, not in pixels
+        return mHasOverriddenImageSizeFactor
+                ? SAMPLING_RADIUS_UNBOUNDED : (int) Math.ceil(mLineSize);
+    }
 }
@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.opengl.GLES20;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Applies a 4x5 color matrix, the layout is described in
+ * {@link GPUImageFilter#getAffineColorTransform(float[])}.<br>
+ * <br>
+ * This is also used to fold runs of affine color filters, like brightness,
+ * contrast, saturation or sepia, into a single pass. The composed matrix is
+ * recalculated on the CPU whenever one of the folded filters changes a
+ * parameter, so only the uniforms change and the program is never rebuilt.
+ * The result only differs from drawing the filters one after another where an
+ * intermediate pass would have clipped colors outside of 0 - 1.
+ */
+public class GPUImageAffineColorFilter extends GPUImageFilter {
+    public static final String AFFINE_COLOR_FRAGMENT_SHADER = "" +
+            "varying highp vec2 textureCoordinate;\n" +
+            "\n" +
+            "uniform sampler2D inputImageTexture;\n" +
+            "\n" +
+            "uniform mediump mat4 colorMatrix;\n" +
+            "uniform mediump vec4 colorOffset;\n" +
+            "\n" +
+            "void main()\n" +
+            "{\n" +
+            "    mediump vec4 textureColor = texture2D(inputImageTexture, textureCoordinate);\n" +
+            "    \n" +
+            "    gl_FragColor = textureColor * colorMatrix + colorOffset;\n" +
+            "}";
+
+    private static final float[] IDENTITY = new float[] {
+            1.0f, 0.0f, 0.0f, 0.0f, 0.0f,
+            0.0f, 1.0f, 0.0f, 0.0f, 0.0f,
+            0.0f, 0.0f, 1.0f, 0.0f, 0.0f,
+            0.0f, 0.0f, 0.0f, 1.0f, 0.0f
+    };
+
+    private final float[] mTransform = new float[20];
+    private final float[] mColorMatrix = new float[16];
+    private final float[] mColorOffset = new float[4];
+    private int mColorMatrixLocation;
+    private int mColorOffsetLocation;
+
+    private final List<GPUImageFilter> mStages;
+    private final int[] mStageVersions;
+    private final float[] mStageTransform = new float[20];
+    private final float[] mComposedTransform = new float[20];
+    private final float[] mConcatTransform = new float[20];
+    private final int[] mCurrentProgram = new int[1];
+
+    public GPUImageAffineColorFilter() {
+        this(IDENTITY);
+    }
+
+    /**
+     * @param transform the 4x5 color matrix, see
+     *                  {@link GPUImageFilter#getAffineColorTransform(float[])}
+     */
+    public GPUImageAffineColorFilter(final float[] transform) {
+        super(NO_FILTER_VERTEX_SHADER, AFFINE_COLOR_FRAGMENT_SHADER);
+        System.arraycopy(transform, 0, mTransform, 0, 20);
+        mStages = null;
+        mStageVersions = null;
+    }
+
+    private GPUImageAffineColorFilter(final List<GPUImageFilter> stages) {
+        super(NO_FILTER_VERTEX_SHADER, AFFINE_COLOR_FRAGMENT_SHADER);
+        mStages = stages;
+        mStageVersions = new int[stages.size()];
+        for (int i = 0; i < mStageVersions.length; i++) {
+            // Forces the pending tasks of the stages to be drained on the first draw
+            mStageVersions[i] = stages.get(i).getParameterVersion() - 1;
+        }
+        compose();
+    }
+
+    /**
+     * Replaces every run of at least two affine color filters in the given
+     * list with a single {@link GPUImageAffineColorFilter}. The filters in the
+     * list have to be initialized, the returned folded filters are initialized
+     * as well.
+     *
+     * @param filters the merged filters of a filter group
+     * @return the filters to draw, either the original ones or folded ones
+     */
+    public static List<GPUImageFilter> fold(final List<GPUImageFilter> filters) {
+        List<GPUImageFilter> result = new ArrayList<GPUImageFilter>();
+        List<GPUImageFilter> run = new ArrayList<GPUImageFilter>();
+        float[] transform = new float[20];
+        for (GPUImageFilter filter : filters) {
+            if (filter.isInitialized() && filter.getAffineColorTransform(transform)) {
+                run.add(filter);
+                continue;
+            }
+            flushRun(run, result);
+            result.add(filter);
+        }
+        flushRun(run, result);
+        return result;
+    }
+
+    private static void flushRun(final List<GPUImageFilter> run, final List<GPUImageFilter> result) {
+        if (run.size() > 1) {
+            GPUImageAffineColorFilter folded =
+                    new GPUImageAffineColorFilter(new ArrayList<GPUImageFilter>(run));
+            folded.init();
+            result.add(folded);
+        } else {
+            result.addAll(run);
+        }
+        run.clear();
+    }
+
+    /**
+     * Concatenates two color transforms.
+     *
+     * @param result the array the transform applying first and then second is
+     *               written into, it must be neither first nor second
+     * @param first the transform applied first
+     * @param second the transform applied second
+     */
+    public static void concat(final float[] result, final float[] first, final float[] second) {
+        if (result == first || result == second) {
+            throw new IllegalArgumentException("result must be a separate array");
+        }
+        for (int row = 0; row < 4; row++) {
+            for (int column = 0; column < 5; column++) {
+                float value = column == 4 ? second[row * 5 + 4] : 0.0f;
+                for (int k = 0; k < 4; k++) {
+                    value += second[row * 5 + k] * first[k * 5 + column];
+                }
+                result[row * 5 + column] = value;
+            }
+        }
+    }
+
+    /**
+     * Writes a transform scaling every channel and adding an offset to the
+     * color channels into a caller's array, without allocating.
+     *
+     * @param transform the array of 20 floats written into
+     * @param red the factor of red
+     * @param green the factor of green
+     * @param blue the factor of blue
+     * @param alpha the factor of alpha
+     * @param offset added to red, green and blue
+     */
+    static void setScale(final float[] transform, final float red, final float green,
+            final float blue, final float alpha, final float offset) {
+        Arrays.fill(transform, 0, 20, 0.0f);
+        transform[0] = red;
+        transform[6] = green;
+        transform[12] = blue;
+        transform[18] = alpha;
+        transform[4] = offset;
+        transform[9] = offset;
+        transform[14] = offset;
+    }
+
+    @Override
+    public void onInit() {
+        super.onInit();
+        mColorMatrixLocation = GLES20.glGetUniformLocation(getProgram(), "colorMatrix");
+        mColorOffsetLocation = GLES20.glGetUniformLocation(getProgram(), "colorOffset");
+    }
+
+    @Override
+    public void onInitialized() {
+        super.onInitialized();
+        updateUniforms();
+    }
+
+    public void setTransform(final float[] transform) {
+        System.arraycopy(transform, 0, mTransform, 0, 20);
+        updateUniforms();
+    }
+
+    public float[] getTransform() {
+        return mTransform;
+    }
+
+    /**
+     * Gets the filters which have been folded into this filter.
+     *
+     * @return the folded filters or null, if this filter was created directly
+     */
+    public List<GPUImageFilter> getStages() {
+        return mStages;
+    }
+
+    @Override
+    public boolean getAffineColorTransform(final float[] transform) {
+        System.arraycopy(mTransform, 0, transform, 0, 20);
+        return true;
+    }
+
+    @Override
+    protected void runPendingOnDrawTasks() {
+        if (mStages != null && drainStages()) {
+            compose();
+            updateUniforms();
+        }
+        super.runPendingOnDrawTasks();
+    }
+
+    /**
+     * Runs the pending tasks of the folded filters on their own programs, so
+     * they don't pile up and the filters stay usable on their own.
+     *
+     * @return true, if any of the folded filters changed a parameter
+     */
+    private boolean drainStages() {
+        boolean changed = false;
+        for (int i = 0; i < mStageVersions.length; i++) {
+            GPUImageFilter stage = mStages.get(i);
+            int version = stage.getParameterVersion();
+            if (version == mStageVersions[i]) {
+                continue;
+            }
+            if (!changed) {
+                GLES20.glGetIntegerv(GLES20.GL_CURRENT_PROGRAM, mCurrentProgram, 0);
+                changed = true;
+            }
+            stage.useProgram();
+            stage.runPendingOnDrawTasks();
+            mStageVersions[i] = version;
+        }
+        if (changed) {
+            GLES20.glUseProgram(mCurrentProgram[0]);
+        }
+        return changed;
+    }
+
+    private void compose() {
+        System.arraycopy(IDENTITY, 0, mComposedTransform, 0, 20);
+        for (GPUImageFilter stage : mStages) {
+            if (stage.getAffineColorTransform(mStageTransform)) {
+                concat(mConcatTransform, mComposedTransform, mStageTransform);
+                System.arraycopy(mConcatTransform, 0, mComposedTransform, 0, 20);
+            }
+        }
+        System.arraycopy(mComposedTransform, 0, mTransform, 0, 20);
+    }
+
+    private void updateUniforms() {
+        // textureColor * colorMatrix reads the uploaded array row by row
+        for (int row = 0; row < 4; row++) {
+            System.arraycopy(mTransform, row * 5, mColorMatrix, row * 4, 4);
+            mColorOffset[row] = mTransform[row * 5 + 4];
+        }
+        setUniformMatrix4f(mColorMatrixLocation, mColorMatrix);
+        setFloatVec4(mColorOffsetLocation, mColorOffset);
+    }
+
+    @Override
+    public boolean isIdentity() {
+        if (mStages != null) {
+            // The transform is only updated when drawn
+            for (GPUImageFilter stage : mStages) {
+                if (!stage.isIdentity()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        for (int i = 0; i < 20; i++) {
+            if (mTransform[i] != (i % 6 == 0 ? 1.0f : 0.0f)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int getSamplingRadius() {
+        return 0;
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.graphics.Bitmap;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Applies M filter chains to N images on several OpenGL contexts at once.<br>
+ * <br>
+ * The work runs in three stages: the images are decoded one after another on
+ * a thread of their own, rendered by a number of {@link GPUImageEngine}s which
+ * each own an OpenGL context and a set of filters, and handed to a
+ * {@link ResultListener} on the calling thread in the order of the images,
+ * which is where they would be encoded or stored. Only a limited number of
+ * images is in flight between decoding and the listener, so a slow stage
+ * makes the ones before it wait instead of piling up bitmaps.
+ */
+public class GPUImageBatchProcessor {
+    private static final String TAG = "GPUImageBatchProcessor";
+
+    /**
+     * Creates the filters of the chains. Every worker has its own filters, so
+     * this is called once per chain and worker.
+     */
+    public interface FilterFactory {
+        GPUImageFilter createFilter(int chain);
+    }
+
+    /**
+     * Decodes the images, called on the decoding thread.
+     */
+    public interface ImageSource {
+        /**
+         * @param index the index of the image
+         * @return a new bitmap, which is recycled once it has been rendered
+         */
+        Bitmap decode(int index) throws IOException;
+    }
+
+    /**
+     * Receives the results, called on the thread running
+     * {@link #process(int, ImageSource, ResultListener)} in the order of the
+     * images.
+     */
+    public interface ResultListener {
+        /**
+         * @param index the index of the image
+         * @param results the image with every chain applied, in the order of
+         *                the chains
+         */
+        void onResult(int index, Bitmap[] results) throws IOException;
+    }
+
+    private final GPUImageEngine[] mEngines;
+    private final GPUImageFilter[][] mFilters;
+    private final AtomicInteger[] mOutstanding;
+    private final int mMaxInFlight;
+
+    /**
+     * @param workerCount the number of OpenGL contexts rendering in parallel
+     * @param chainCount the number of filter chains applied to every image
+     * @param factory creates the filters of the chains
+     */
+    public GPUImageBatchProcessor(final int workerCount, final int chainCount,
+            final FilterFactory factory) {
+        this(workerCount, chainCount, factory, workerCount * 2);
+    }
+
+    /**
+     * @param workerCount the number of OpenGL contexts rendering in parallel
+     * @param chainCount the number of filter chains applied to every image
+     * @param factory creates the filters of the chains
+     * @param maxInFlight the number of images which may be decoded but not yet
+     *                    handed to the listener
+     */
+    public GPUImageBatchProcessor(final int workerCount, final int chainCount,
+            final FilterFactory factory, final int maxInFlight) {
+        if (workerCount < 1 || chainCount < 1) {
+            throw new IllegalArgumentException("Needs at least one worker and one chain");
+        }
+        mMaxInFlight = Math.max(workerCount, maxInFlight);
+        mEngines = new GPUImageEngine[workerCount];
+        mFilters = new GPUImageFilter[workerCount][chainCount];
+        mOutstanding = new AtomicInteger[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            for (int chain = 0; chain < chainCount; chain++) {
+                mFilters[i][chain] = factory.createFilter(chain);
+            }
+            mEngines[i] = new GPUImageEngine(
+                    Math.max(chainCount, GPUImageEngine.DEFAULT_MAX_RESIDENT_FILTERS),
+                    GPUImageEngine.DEFAULT_FRAMEBUFFER_BUDGET);
+            mOutstanding[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * Processes the images and waits until the listener has received all of
+     * them. Stops at the first failing image.
+     *
+     * @param imageCount the number of images
+     * @param source decodes the images
+     * @param listener receives the results on the calling thread
+     * @return the time spent in the stages
+     * @throws IOException if decoding or the listener failed
+     * @throws InterruptedException if the calling thread was interrupted
+     */
+    public Stats process(final int imageCount, final ImageSource source,
+            final ResultListener listener) throws IOException, InterruptedException {
+        final Stats stats = new Stats();
+        final Batch batch = new Batch(imageCount);
+        long start = System.nanoTime();
+
+        Thread decoder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                decode(imageCount, source, batch, stats);
+            }
+        }, TAG + "-decode");
+        decoder.start();
+        try {
+            for (int index = 0; index < imageCount; index++) {
+                Bitmap[] results = batch.takeResult(index);
+                long encodeStart = System.nanoTime();
+                listener.onResult(index, results);
+                stats.mEncodeNanos.addAndGet(System.nanoTime() - encodeStart);
+                stats.mImageCount.incrementAndGet();
+                batch.mPermits.release();
+            }
+        } finally {
+            decoder.interrupt();
+            decoder.join();
+            stats.mElapsedNanos = System.nanoTime() - start;
+        }
+        return stats;
+    }
+
+    /**
+     * Destroys the filters and the OpenGL contexts of all workers.
+     */
+    public void shutdown() {
+        for (GPUImageEngine engine : mEngines) {
+            engine.shutdown();
+        }
+    }
+
+    private void decode(final int imageCount, final ImageSource source, final Batch batch,
+            final Stats stats) {
+        for (int index = 0; index < imageCount; index++) {
+            try {
+                batch.mPermits.acquire();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                long decodeStart = System.nanoTime();
+                Bitmap bitmap = source.decode(index);
+                stats.mDecodeNanos.addAndGet(System.nanoTime() - decodeStart);
+                render(index, bitmap, batch, stats);
+            } catch (IOException e) {
+                batch.fail(index, e);
+                return;
+            } catch (RuntimeException e) {
+                batch.fail(index, e);
+                return;
+            }
+        }
+    }
+
+    private void render(final int index, final Bitmap bitmap, final Batch batch,
+            final Stats stats) {
+        final int worker = leastBusyWorker();
+        mOutstanding[worker].incrementAndGet();
+        mEngines[worker].submitAll(bitmap, mFilters[worker], true,
+                new GPUImagePendingResult<Bitmap[]>() {
+                    @Override
+                    protected void done() {
+                        if (mStartNanos != 0) {
+                            stats.mRenderNanos.addAndGet(System.nanoTime() - mStartNanos);
+                        }
+                        mOutstanding[worker].decrementAndGet();
+                        batch.complete(index, this);
+                    }
+                });
+    }
+
+    private int leastBusyWorker() {
+        int best = 0;
+        for (int i = 1; i < mOutstanding.length; i++) {
+            if (mOutstanding[i].get() < mOutstanding[best].get()) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * The results of one call to process, which are completed in any order
+     * and taken in the order of the images.
+     */
+    private final class Batch {
+        final Semaphore mPermits = new Semaphore(mMaxInFlight);
+        private final Map<Integer, Future<Bitmap[]>> mCompleted =
+                new HashMap<Integer, Future<Bitmap[]>>();
+        private int mFailedIndex;
+        private Exception mFailure;
+
+        Batch(final int imageCount) {
+            mFailedIndex = imageCount;
+        }
+
+        synchronized void complete(final int index, final Future<Bitmap[]> result) {
+            mCompleted.put(index, result);
+            notifyAll();
+        }
+
+        synchronized void fail(final int index, final Exception e) {
+            mFailedIndex = index;
+            mFailure = e;
+            notifyAll();
+        }
+
+        synchronized Bitmap[] takeResult(final int index)
+                throws IOException, InterruptedException {
+            while (!mCompleted.containsKey(index)) {
+                if (index >= mFailedIndex) {
+                    rethrow(mFailure);
+                }
+                wait();
+            }
+            try {
+                return mCompleted.remove(index).get();
+            } catch (ExecutionException e) {
+                rethrow(e.getCause());
+                return null;
+            }
+        }
+
+        private void rethrow(final Throwable cause) throws IOException {
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * The time spent in the stages of one call to
+     * {@link #process(int, ImageSource, ResultListener)}. The rendering time
+     * is summed over all workers.
+     */
+    public static class Stats {
+        private final AtomicInteger mImageCount = new AtomicInteger();
+        private final AtomicLong mDecodeNanos = new AtomicLong();
+        private final AtomicLong mRenderNanos = new AtomicLong();
+        private final AtomicLong mEncodeNanos = new AtomicLong();
+        private volatile long mElapsedNanos;
+
+        /**
+         * @return the number of images handed to the listener
+         */
+        public int getImageCount() {
+            return mImageCount.get();
+        }
+
+        public long getDecodeNanos() {
+            return mDecodeNanos.get();
+        }
+
+        public long getRenderNanos() {
+            return mRenderNanos.get();
+        }
+
+        public long getEncodeNanos() {
+            return mEncodeNanos.get();
+        }
+
+        public long getElapsedNanos() {
+            return mElapsedNanos;
+        }
+
+        /**
+         * @return the images per second the whole batch achieved
+         */
+        public float getThroughput() {
+            return perSecond(mElapsedNanos);
+        }
+
+        /**
+         * @return the images per second decoding alone could achieve
+         */
+        public float getDecodeThroughput() {
+            return perSecond(mDecodeNanos.get());
+        }
+
+        /**
+         * @return the images per second a single worker could render
+         */
+        public float getRenderThroughput() {
+            return perSecond(mRenderNanos.get());
+        }
+
+        /**
+         * @return the images per second the listener could take
+         */
+        public float getEncodeThroughput() {
+            return perSecond(mEncodeNanos.get());
+        }
+
+        private float perSecond(final long nanos) {
+            return nanos > 0 ? mImageCount.get() * 1e9f / nanos : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d images, %.1f/s (decode %.1f/s, render %.1f/s per worker,"
+                            + " encode %.1f/s)", getImageCount(), getThroughput(),
+                    getDecodeThroughput(), getRenderThroughput(), getEncodeThroughput());
+        }
+    }
+}
@@ -152,4 +152,9 @@ public class GPUImageBilateralFilter extends GPUImageFilter {
         super.onOutputSizeChanged(width, height);
         setTexelSize(width, height);
     }
+
+	@Override
+	public int getSamplingRadius() {
+		return 4;
+	}
 }
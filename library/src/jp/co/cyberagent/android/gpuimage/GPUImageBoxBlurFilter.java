@@ -110,4 +110,16 @@ public class GPUImageBoxBlurFilter extends GPUImageTwoPassTextureSamplingFilter
     public float getHorizontalTexelOffsetRatio() {
         return blurSize;
     }
+
+    @Override
+    protected int getPassSamplingRadius() {
+        // The outermost samples sit between the 3rd and 4th pixel
+        return 4;
+    }
+
+    @Override
+    public boolean isIdentity() {
+        // All samples are taken from the pixel itself
+        return blurSize == 0.0f;
+    }
 }
@@ -63,4 +63,20 @@ public class GPUImageBrightnessFilter extends GPUImageFilter {
         mBrightness = brightness;
         setFloat(mBrightnessLocation, mBrightness);
     }
+
+    @Override
+    public boolean getAffineColorTransform(final float[] transform) {
+        GPUImageAffineColorFilter.setScale(transform, 1.0f, 1.0f, 1.0f, 1.0f, mBrightness);
+        return true;
+    }
+
+    @Override
+    public boolean isIdentity() {
+        return mBrightness == 0.0f;
+    }
+
+    @Override
+    public int getSamplingRadius() {
+        return 0;
+    }
 }
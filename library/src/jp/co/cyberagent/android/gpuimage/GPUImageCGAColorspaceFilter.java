@@ -64,4 +64,9 @@ public class GPUImageCGAColorspaceFilter extends GPUImageFilter {
     public GPUImageCGAColorspaceFilter() {
         super(NO_FILTER_VERTEX_SHADER, CGACOLORSPACE_FRAGMENT_SHADER);
     }
+
+    @Override
+    public int getSamplingRadius() {
+        return SAMPLING_RADIUS_UNBOUNDED;
+    }
 }
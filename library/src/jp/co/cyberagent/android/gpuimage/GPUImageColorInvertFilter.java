@@ -35,4 +35,15 @@ public class GPUImageColorInvertFilter extends GPUImageFilter {
     public GPUImageColorInvertFilter() {
         super(NO_FILTER_VERTEX_SHADER, COLOR_INVERT_FRAGMENT_SHADER);
     }
+
+    @Override
+    public boolean getAffineColorTransform(final float[] transform) {
+        GPUImageAffineColorFilter.setScale(transform, -1.0f, -1.0f, -1.0f, 1.0f, 1.0f);
+        return true;
+    }
+
+    @Override
+    public int getSamplingRadius() {
+        return 0;
+    }
 }
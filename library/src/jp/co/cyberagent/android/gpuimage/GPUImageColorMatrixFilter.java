@@ -81,4 +81,37 @@ public class GPUImageColorMatrixFilter extends GPUImageFilter {
         mColorMatrix = colorMatrix;
         setUniformMatrix4f(mColorMatrixLocation, colorMatrix);
     }
+
+    @Override
+    public boolean getAffineColorTransform(final float[] transform) {
+        // textureColor * colorMatrix reads the uploaded array row by row,
+        // mixed with the identity by intensity
+        for (int row = 0; row < 4; row++) {
+            for (int column = 0; column < 4; column++) {
+                float identity = row == column ? 1.0f : 0.0f;
+                transform[row * 5 + column] = mIntensity * mColorMatrix[row * 4 + column]
+                        + (1.0f - mIntensity) * identity;
+            }
+            transform[row * 5 + 4] = 0.0f;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isIdentity() {
+        if (mIntensity == 0.0f) {
+            return true;
+        }
+        for (int i = 0; i < 16; i++) {
+            if (mColorMatrix[i] != (i % 5 == 0 ? 1.0f : 0.0f)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int getSamplingRadius() {
+        return 0;
+    }
 }
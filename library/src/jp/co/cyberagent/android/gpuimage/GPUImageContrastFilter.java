@@ -65,4 +65,21 @@ public class GPUImageContrastFilter extends GPUImageFilter {
         mContrast = contrast;
         setFloat(mContrastLocation, mContrast);
     }
+
+    @Override
+    public boolean getAffineColorTransform(final float[] transform) {
+        GPUImageAffineColorFilter.setScale(transform, mContrast, mContrast, mContrast, 1.0f,
+                0.5f * (1.0f - mContrast));
+        return true;
+    }
+
+    @Override
+    public boolean isIdentity() {
+        return mContrast == 1.0f;
+    }
+
+    @Override
+    public int getSamplingRadius() {
+        return 0;
+    }
 }
@@ -127,4 +127,9 @@ public class GPUImageCrosshatchFilter extends GPUImageFilter {
         mLineWidth = lineWidth;
         setFloat(mLineWidthLocation, mLineWidth);
     }
+
+    @Override
+    public int getSamplingRadius() {
+        return SAMPLING_RADIUS_UNBOUNDED;
+    }
 }
@@ -257,6 +257,8 @@ public class GPUImageDilationFilter extends GPUImageTwoPassTextureSamplingFilter
                     "}\n";
 
 
+    private int mRadius;
+
     public GPUImageDilationFilter() {
         this(1);
     }
@@ -269,12 +271,18 @@ public class GPUImageDilationFilter extends GPUImageTwoPassTextureSamplingFilter
      */
     public GPUImageDilationFilter(int radius) {
         this(getVertexShader(radius), getFragmentShader(radius));
+        mRadius = Math.max(1, Math.min(radius, 4));
     }
 
     private GPUImageDilationFilter(String vertexShader, String fragmentShader) {
         super(vertexShader, fragmentShader, vertexShader, fragmentShader);
     }
 
+    @Override
+    protected int getPassSamplingRadius() {
+        return mRadius;
+    }
+
     private static String getVertexShader(int radius) {
         switch (radius) {
             case 0:
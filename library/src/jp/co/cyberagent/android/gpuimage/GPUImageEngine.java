@@ -0,0 +1,607 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.opengl.GLES20;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Applies filters to bitmaps offscreen without a view, for batches of images.<br>
+ * <br>
+ * Unlike {@link GPUImage#getBitmapWithFilterApplied(Bitmap)}, which sets up a
+ * new OpenGL context for every image, the engine keeps one context on a
+ * thread of its own until {@link #shutdown()} is called. Jobs are queued and
+ * run in order on that thread. Filters stay initialized between jobs, so a
+ * filter used for many images is only compiled once, and the images are drawn
+ * into framebuffers of a few size classes which are reused for images of
+ * similar size.<br>
+ * <br>
+ * With OpenGL ES 3.0 the pixels are read back asynchronously. While a job is
+ * drawn, the pixels of the jobs before it are still on their way, so the GPU
+ * isn't idle while the CPU uploads or copies images. Results are completed
+ * when the next job needs their buffer or the queue runs empty.<br>
+ * <br>
+ * A filter passed to the engine belongs to the engine's context until it is
+ * given back with {@link #release(GPUImageFilter)}, it must not be used by a
+ * {@link GPUImage} or another engine at the same time.
+ */
+public class GPUImageEngine {
+    private static final String TAG = "GPUImageEngine";
+
+    // Render targets are rounded up to a multiple of this in both directions
+    private static final int SIZE_CLASS = 128;
+    // Images uploaded in a row alternate between these, so an upload doesn't
+    // have to wait for the draw calls reading the previous image
+    private static final int INPUT_TEXTURES = 2;
+    private static final int READBACK_BUFFERS = 3;
+    static final int DEFAULT_MAX_RESIDENT_FILTERS = 8;
+    static final long DEFAULT_FRAMEBUFFER_BUDGET = 32L * 1024 * 1024;
+
+    private final BlockingQueue<FutureTask<?>> mJobs = new LinkedBlockingQueue<FutureTask<?>>();
+    private final FutureTask<Void> mShutdownJob = new FutureTask<Void>(new Runnable() {
+        @Override
+        public void run() {
+        }
+    }, null);
+    private final Thread mThread;
+    private final int mMaxResidentFilters;
+    private final long mFramebufferBudget;
+    private boolean mShutdown;
+    private volatile boolean mPipelined = true;
+
+    // Only touched on the engine thread
+    private PixelBuffer mPixelBuffer;
+    private final LinkedHashMap<GPUImageFilter, GPUImageFilter> mResidentFilters =
+            new LinkedHashMap<GPUImageFilter, GPUImageFilter>(16, 0.75f, true);
+    private GPUImagePixelPackBuffers mPixelPackBuffers;
+    private final int[] mInputTextures = new int[INPUT_TEXTURES];
+    private int mInputIndex;
+    private int mInputWidth;
+    private int mInputHeight;
+
+    public GPUImageEngine() {
+        this(DEFAULT_MAX_RESIDENT_FILTERS, DEFAULT_FRAMEBUFFER_BUDGET);
+    }
+
+    /**
+     * @param maxResidentFilters the number of filters kept initialized, the
+     *                           least recently used one is released when
+     *                           another one is needed
+     * @param framebufferBudget the texture memory in bytes unused render
+     *                          targets may hold before they are deleted
+     */
+    public GPUImageEngine(final int maxResidentFilters, final long framebufferBudget) {
+        mMaxResidentFilters = Math.max(1, maxResidentFilters);
+        mFramebufferBudget = framebufferBudget;
+        Arrays.fill(mInputTextures, OpenGlUtils.NO_TEXTURE);
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, TAG);
+        mThread.start();
+    }
+
+    /**
+     * Queues a job applying the filter to the bitmap.
+     *
+     * @param bitmap the image, it is not modified
+     * @param filter the filter to apply
+     * @return the future result, a new bitmap of the same size
+     */
+    public Future<Bitmap> submit(final Bitmap bitmap, final GPUImageFilter filter) {
+        return submit(bitmap, filter, null);
+    }
+
+    /**
+     * Queues a job applying the filter to the bitmap, writing the result into
+     * a bitmap of the caller.
+     *
+     * @param bitmap the image, it is not modified
+     * @param filter the filter to apply
+     * @param output a mutable ARGB_8888 bitmap of the same size receiving the
+     *               result, or null to create one
+     * @return the future result, which is output if it was given
+     */
+    public Future<Bitmap> submit(final Bitmap bitmap, final GPUImageFilter filter,
+            final Bitmap output) {
+        if (output != null && (output.getWidth() != bitmap.getWidth()
+                || output.getHeight() != bitmap.getHeight())) {
+            throw new IllegalArgumentException("Output has to be "
+                    + bitmap.getWidth() + "x" + bitmap.getHeight());
+        }
+        GPUImagePendingResult<Bitmap> result = new GPUImagePendingResult<Bitmap>();
+        queueRender(new RenderJob(bitmap, new GPUImageFilter[]{
+                filter
+        }, new Bitmap[]{
+                output
+        }, false, true, result));
+        return result;
+    }
+
+    /**
+     * Queues a job applying the filter to the bitmap and converting the result
+     * with an output stage, e.g. to YUV for an encoder. Only the converted
+     * pixels are read back, 1.5 bytes per pixel for NV21 and I420.
+     *
+     * @param bitmap the image, it is not modified
+     * @param filter the filter to apply
+     * @param output the output stage, which belongs to the engine like the
+     *               filter
+     * @param out a direct buffer with at least
+     *            {@link GPUImageOutputFilter#getBufferSize(int, int, int)}
+     *            bytes remaining, which are written from its position on
+     * @return the future result, which is out
+     */
+    public Future<ByteBuffer> submit(final Bitmap bitmap, final GPUImageFilter filter,
+            final GPUImageOutputFilter output, final ByteBuffer out) {
+        if (out.remaining() < GPUImageOutputFilter.getBufferSize(output.getFormat(),
+                bitmap.getWidth(), bitmap.getHeight())) {
+            throw new IllegalArgumentException("Buffer too small for "
+                    + bitmap.getWidth() + "x" + bitmap.getHeight());
+        }
+        GPUImagePendingResult<ByteBuffer> result = new GPUImagePendingResult<ByteBuffer>();
+        queueRender(new RenderJob(bitmap, filter, output, out, result));
+        return result;
+    }
+
+    /**
+     * Queues a job applying every filter to the bitmap, uploading it only
+     * once.
+     *
+     * @param bitmap the image
+     * @param filters the filters to apply
+     * @param recycleInput whether the image is recycled once it is uploaded
+     * @param result completed with a new bitmap for every filter
+     */
+    void submitAll(final Bitmap bitmap, final GPUImageFilter[] filters,
+            final boolean recycleInput, final GPUImagePendingResult<Bitmap[]> result) {
+        queueRender(new RenderJob(bitmap, filters, new Bitmap[filters.length], recycleInput,
+                false, result));
+    }
+
+    /**
+     * Queues a job applying the filter to a part of a raw image and writing
+     * the middle of the result into another one. The pixels go from the
+     * mapping of the input to a texture and from the framebuffer to the
+     * mapping of the output without being copied on the heap.
+     *
+     * @param input the image, it is not modified
+     * @param source the part of the input drawn
+     * @param filter the filter to apply
+     * @param output the image receiving the result at the same position
+     * @param target the part of the output written, inside source
+     * @return the future which is done once the pixels are in the output
+     */
+    Future<Void> submit(final GPUImageRawImage input, final Rect source,
+            final GPUImageFilter filter, final GPUImageRawImage output, final Rect target) {
+        FutureTask<Void> job = new FutureTask<Void>(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                int width = source.width();
+                int height = source.height();
+                uploadInput(input, source);
+                prepareFilter(filter, width, height);
+                GPUImageFramebufferCache cache = GPUImageFramebufferCache.getInstance();
+                GPUImageFramebuffer framebuffer = cache.fetchFramebuffer(
+                        roundUpToSizeClass(width), roundUpToSizeClass(height));
+                try {
+                    drawInput(filter, framebuffer, width, height);
+                    output.readFramebuffer(target.left - source.left, target.top - source.top,
+                            target, false);
+                } finally {
+                    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+                    cache.returnFramebuffer(framebuffer);
+                }
+                if (cache.getSizeInBytes() > mFramebufferBudget) {
+                    cache.purgeUnused();
+                }
+                return null;
+            }
+        });
+        queue(job);
+        return job;
+    }
+
+    /**
+     * Applies the filter to the bitmap and waits for the result.
+     *
+     * @param bitmap the image, it is not modified
+     * @param filter the filter to apply
+     * @return a new bitmap with the filter applied
+     * @throws InterruptedException if the calling thread was interrupted
+     */
+    public Bitmap process(final Bitmap bitmap, final GPUImageFilter filter)
+            throws InterruptedException {
+        try {
+            return submit(bitmap, filter).get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Releases the OpenGL objects of the filter in the engine's context, after
+     * all jobs queued before. The filter can be used anywhere else once the
+     * returned future is done.
+     *
+     * @param filter the filter
+     * @return the future which is done once the filter has been released
+     */
+    public Future<?> release(final GPUImageFilter filter) {
+        FutureTask<Void> job = new FutureTask<Void>(new Runnable() {
+            @Override
+            public void run() {
+                if (mResidentFilters.remove(filter) != null) {
+                    filter.releaseGL();
+                    // The engine may live as long as the process, programs
+                    // generated per parameter mustn't pile up
+                    GPUImageProgramCache.getInstance().purgeUnused();
+                }
+            }
+        }, null);
+        queue(job);
+        return job;
+    }
+
+    /**
+     * Sets whether pixels are read back asynchronously when OpenGL ES 3.0 is
+     * available. Turning it off reads every image back before the next one is
+     * drawn, which is mostly useful for comparison.
+     *
+     * @param pipelined true to overlap readback with drawing, the default
+     */
+    public void setPipelined(final boolean pipelined) {
+        mPipelined = pipelined;
+    }
+
+    public boolean isPipelined() {
+        return mPipelined;
+    }
+
+    /**
+     * Runs the jobs queued so far, then releases all resident filters and the
+     * OpenGL context. Jobs submitted afterwards are rejected.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            if (mShutdown) {
+                return;
+            }
+            mShutdown = true;
+            mJobs.add(mShutdownJob);
+        }
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queues a job to run on the engine thread.
+     *
+     * @param job the job
+     */
+    synchronized void queue(final FutureTask<?> job) {
+        if (mShutdown) {
+            throw new IllegalStateException("The engine has been shut down");
+        }
+        mJobs.add(job);
+    }
+
+    private void queueRender(final RenderJob job) {
+        queue(new FutureTask<Void>(job, null) {
+            @Override
+            protected void done() {
+                if (isCancelled()) {
+                    job.cancel();
+                }
+            }
+        });
+    }
+
+    private void loop() {
+        mPixelBuffer = new PixelBuffer(1, 1);
+        GPUImageFramebufferCache.onContextCreated();
+        GPUImageProgramCache.onContextCreated();
+        GPUImageVertexBuffers.onContextCreated();
+        GLES20.glDisable(GLES20.GL_DEPTH_TEST);
+        if (GPUImagePixelPackBuffers.isSupported()) {
+            mPixelPackBuffers = new GPUImagePixelPackBuffers(READBACK_BUFFERS);
+        }
+        try {
+            while (true) {
+                FutureTask<?> job = mJobs.poll();
+                if (job == null) {
+                    // Nothing left to overlap with, don't keep anyone waiting
+                    finishReadbacks();
+                    job = mJobs.take();
+                }
+                if (job == mShutdownJob) {
+                    break;
+                }
+                job.run();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            releaseResources();
+        }
+    }
+
+    private void finishReadbacks() {
+        if (mPixelPackBuffers != null) {
+            mPixelPackBuffers.finishAll();
+        }
+    }
+
+    private void draw(final GPUImageFilter filter, final int width, final int height,
+            final RenderJob job, final int index) {
+        prepareFilter(filter, width, height);
+
+        GPUImageFramebufferCache cache = GPUImageFramebufferCache.getInstance();
+        // The output stage samples the whole texture, so it needs the exact size
+        GPUImageFramebuffer target = job.mOutputFilter != null
+                ? cache.fetchFramebuffer(width, height)
+                : cache.fetchFramebuffer(roundUpToSizeClass(width), roundUpToSizeClass(height));
+        try {
+            drawInput(filter, target, width, height);
+            if (job.mOutputFilter != null) {
+                readOutput(target, width, height, job);
+            } else if (mPipelined && mPixelPackBuffers != null) {
+                // The target can be reused right away, the read is queued
+                // before anything drawn into it later
+                mPixelPackBuffers.read(width, height, job.mOutputs[index], job);
+            } else {
+                GPUImageNativeLibrary.CopyToBitmap(job.mOutputs[index]);
+                job.onReadback(null);
+            }
+        } finally {
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+            cache.returnFramebuffer(target);
+        }
+        if (cache.getSizeInBytes() > mFramebufferBudget) {
+            cache.purgeUnused();
+        }
+    }
+
+    private void drawInput(final GPUImageFilter filter, final GPUImageFramebuffer target,
+            final int width, final int height) {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, target.getFrameBuffer());
+        // Only the corner of the size class the image covers is drawn and read
+        GLES20.glViewport(0, 0, width, height);
+        GLES20.glClearColor(0, 0, 0, 1);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        // Flipped, so the top row is drawn into the first row and read back
+        // first
+        filter.onDraw(mInputTextures[mInputIndex], GPUImageVertexBuffers.getCube(),
+                GPUImageVertexBuffers.getTextureCoordinates(Rotation.NORMAL, false, true));
+    }
+
+    private void readOutput(final GPUImageFramebuffer target, final int width, final int height,
+            final RenderJob job) {
+        GPUImageOutputFilter output = job.mOutputFilter;
+        makeResident(output);
+        output.convert(target.getTexture(), width, height);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, output.getFramebuffer().getFrameBuffer());
+        if (mPipelined && mPixelPackBuffers != null) {
+            mPixelPackBuffers.read(output.getOutputWidth(), output.getOutputHeight(),
+                    job.mBuffer, job);
+        } else {
+            GLES20.glReadPixels(0, 0, output.getOutputWidth(), output.getOutputHeight(),
+                    GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, job.mBuffer);
+            job.onReadback(null);
+        }
+    }
+
+    private void prepareFilter(final GPUImageFilter filter, final int width, final int height) {
+        makeResident(filter);
+        if (filter.getOutputWidth() != width || filter.getOutputHeight() != height) {
+            filter.onOutputSizeChanged(width, height);
+        }
+    }
+
+    private void makeResident(final GPUImageFilter filter) {
+        if (mResidentFilters.get(filter) == null) {
+            boolean evicted = evictFilters(mMaxResidentFilters - 1);
+            mResidentFilters.put(filter, filter);
+            filter.init();
+            if (evicted) {
+                // Programs of the evicted filters have been reused by now if
+                // possible
+                GPUImageProgramCache.getInstance().purgeUnused();
+            }
+        }
+    }
+
+    private boolean evictFilters(final int maxCount) {
+        boolean evicted = false;
+        Iterator<GPUImageFilter> iterator = mResidentFilters.keySet().iterator();
+        while (mResidentFilters.size() > maxCount && iterator.hasNext()) {
+            GPUImageFilter filter = iterator.next();
+            iterator.remove();
+            // Groups keep their filters, the caller may still draw them
+            filter.releaseGL();
+            evicted = true;
+        }
+        return evicted;
+    }
+
+    private void uploadInput(final Bitmap bitmap) {
+        if (bitmap.getWidth() != mInputWidth || bitmap.getHeight() != mInputHeight) {
+            deleteInputTextures();
+        }
+        mInputIndex = (mInputIndex + 1) % INPUT_TEXTURES;
+        mInputTextures[mInputIndex] = OpenGlUtils.loadTexture(bitmap,
+                mInputTextures[mInputIndex], false);
+        mInputWidth = bitmap.getWidth();
+        mInputHeight = bitmap.getHeight();
+    }
+
+    private void uploadInput(final GPUImageRawImage image, final Rect rect)
+            throws IOException {
+        if (rect.width() != mInputWidth || rect.height() != mInputHeight) {
+            deleteInputTextures();
+        }
+        mInputIndex = (mInputIndex + 1) % INPUT_TEXTURES;
+        mInputTextures[mInputIndex] = image.loadTexture(rect, mInputTextures[mInputIndex]);
+        mInputWidth = rect.width();
+        mInputHeight = rect.height();
+    }
+
+    private void deleteInputTextures() {
+        for (int i = 0; i < INPUT_TEXTURES; i++) {
+            if (mInputTextures[i] != OpenGlUtils.NO_TEXTURE) {
+                GLES20.glDeleteTextures(1, mInputTextures, i);
+                mInputTextures[i] = OpenGlUtils.NO_TEXTURE;
+            }
+        }
+        mInputWidth = 0;
+        mInputHeight = 0;
+    }
+
+    private void releaseResources() {
+        List<FutureTask<?>> pending = new ArrayList<FutureTask<?>>();
+        mJobs.drainTo(pending);
+        for (FutureTask<?> job : pending) {
+            job.cancel(false);
+        }
+        if (mPixelPackBuffers != null) {
+            mPixelPackBuffers.release();
+            mPixelPackBuffers = null;
+        }
+        evictFilters(0);
+        deleteInputTextures();
+        mPixelBuffer.destroy();
+        mPixelBuffer = null;
+    }
+
+    private static int roundUpToSizeClass(final int size) {
+        return (size + SIZE_CLASS - 1) / SIZE_CLASS * SIZE_CLASS;
+    }
+
+    /**
+     * Draws one image with one or more filters. The job is completed once the
+     * pixels of the last filter have been read back.
+     */
+    private final class RenderJob implements Runnable, GPUImagePixelPackBuffers.Callback {
+        private final Bitmap mBitmap;
+        private final GPUImageFilter[] mFilters;
+        final Bitmap[] mOutputs;
+        final GPUImageOutputFilter mOutputFilter;
+        final ByteBuffer mBuffer;
+        private final boolean mRecycleInput;
+        // Whether the result is the only output bitmap rather than the array
+        private final boolean mSingleOutput;
+        private final GPUImagePendingResult<?> mResult;
+        private int mRemaining;
+
+        RenderJob(final Bitmap bitmap, final GPUImageFilter[] filters, final Bitmap[] outputs,
+                final boolean recycleInput, final boolean singleOutput,
+                final GPUImagePendingResult<?> result) {
+            this(bitmap, filters, outputs, null, null, recycleInput, singleOutput, result);
+        }
+
+        RenderJob(final Bitmap bitmap, final GPUImageFilter filter,
+                final GPUImageOutputFilter outputFilter, final ByteBuffer buffer,
+                final GPUImagePendingResult<ByteBuffer> result) {
+            this(bitmap, new GPUImageFilter[]{
+                    filter
+            }, null, outputFilter, buffer, false, false, result);
+        }
+
+        private RenderJob(final Bitmap bitmap, final GPUImageFilter[] filters,
+                final Bitmap[] outputs, final GPUImageOutputFilter outputFilter,
+                final ByteBuffer buffer, final boolean recycleInput,
+                final boolean singleOutput, final GPUImagePendingResult<?> result) {
+            mBitmap = bitmap;
+            mFilters = filters;
+            mOutputs = outputs;
+            mOutputFilter = outputFilter;
+            mBuffer = buffer;
+            mRecycleInput = recycleInput;
+            mSingleOutput = singleOutput;
+            mResult = result;
+            mRemaining = filters.length;
+        }
+
+        @Override
+        public void run() {
+            mResult.mStartNanos = System.nanoTime();
+            try {
+                int width = mBitmap.getWidth();
+                int height = mBitmap.getHeight();
+                uploadInput(mBitmap);
+                if (mRecycleInput) {
+                    mBitmap.recycle();
+                }
+                for (int i = 0; i < mFilters.length; i++) {
+                    if (mOutputs != null && mOutputs[i] == null) {
+                        mOutputs[i] = Bitmap.createBitmap(width, height,
+                                Bitmap.Config.ARGB_8888);
+                    }
+                    draw(mFilters[i], width, height, this, i);
+                }
+            } catch (RuntimeException e) {
+                mResult.fail(e);
+            }
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void onReadback(final RuntimeException error) {
+            if (error != null) {
+                mResult.fail(error);
+            } else if (--mRemaining == 0) {
+                Object value;
+                if (mBuffer != null) {
+                    value = mBuffer;
+                } else if (mSingleOutput) {
+                    value = mOutputs[0];
+                } else {
+                    value = mOutputs;
+                }
+                ((GPUImagePendingResult<Object>) mResult).complete(value);
+            }
+        }
+
+        void cancel() {
+            mResult.cancel(false);
+        }
+    }
+}
@@ -63,4 +63,21 @@ public class GPUImageExposureFilter extends GPUImageFilter {
         mExposure = exposure;
         setFloat(mExposureLocation, mExposure);
     }
+
+    @Override
+    public boolean getAffineColorTransform(final float[] transform) {
+        final float scale = (float) Math.pow(2.0, mExposure);
+        GPUImageAffineColorFilter.setScale(transform, scale, scale, scale, 1.0f, 0.0f);
+        return true;
+    }
+
+    @Override
+    public boolean isIdentity() {
+        return mExposure == 0.0f;
+    }
+
+    @Override
+    public int getSamplingRadius() {
+        return 0;
+    }
 }
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.annotation.TargetApi;
+import android.graphics.SurfaceTexture;
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+
+/**
+ * Draws the external texture of a {@link SurfaceTexture}, e.g. the camera
+ * preview, into a texture of its own.<br>
+ * <br>
+ * The frames never leave the GPU, there are no preview callbacks and no
+ * conversion on the CPU. The transform matrix of the SurfaceTexture is applied
+ * in the vertex shader, and the frame is stored with its top row first like an
+ * uploaded image, so the filter chain doesn't need to know where it came from.
+ */
+@TargetApi(11)
+public class GPUImageExternalTextureInputFilter extends GPUImageInputFilter {
+    public static final String EXTERNAL_VERTEX_SHADER = "" +
+            "attribute vec4 position;\n" +
+            "attribute vec4 inputTextureCoordinate;\n" +
+            " \n" +
+            "uniform mat4 textureTransform;\n" +
+            " \n" +
+            "varying vec2 textureCoordinate;\n" +
+            " \n" +
+            "void main()\n" +
+            "{\n" +
+            "    gl_Position = position;\n" +
+            "    textureCoordinate = (textureTransform * inputTextureCoordinate).xy;\n" +
+            "}";
+    public static final String EXTERNAL_FRAGMENT_SHADER = "" +
+            "#extension GL_OES_EGL_image_external : require\n" +
+            "varying highp vec2 textureCoordinate;\n" +
+            " \n" +
+            "uniform samplerExternalOES inputImageTexture;\n" +
+            " \n" +
+            "void main()\n" +
+            "{\n" +
+            "     gl_FragColor = texture2D(inputImageTexture, textureCoordinate);\n" +
+            "}";
+
+    private int mTextureTransformUniform;
+    private final float[] mTextureTransform = new float[16];
+    private int mTexture = OpenGlUtils.NO_TEXTURE;
+
+    public GPUImageExternalTextureInputFilter() {
+        super(EXTERNAL_VERTEX_SHADER, EXTERNAL_FRAGMENT_SHADER);
+    }
+
+    @Override
+    public void onInit() {
+        super.onInit();
+        mTextureTransformUniform = GLES20.glGetUniformLocation(getProgram(), "textureTransform");
+    }
+
+    /**
+     * Creates the external texture a SurfaceTexture can be attached to. The
+     * texture is owned by this filter and deleted with it.
+     *
+     * @return the external texture
+     */
+    public int createTexture() {
+        if (!isInitialized()) {
+            init();
+        }
+        if (mTexture == OpenGlUtils.NO_TEXTURE) {
+            int[] textures = new int[1];
+            GLES20.glGenTextures(1, textures, 0);
+            GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textures[0]);
+            GLES20.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
+                    GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+            GLES20.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
+                    GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+            GLES20.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
+                    GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+            GLES20.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
+                    GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+            GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, 0);
+            mTexture = textures[0];
+        }
+        return mTexture;
+    }
+
+    /**
+     * Latches the latest frame of the SurfaceTexture and draws it. Has to be
+     * called on the OpenGL thread.
+     *
+     * @param surfaceTexture the SurfaceTexture attached to
+     *                       {@link #createTexture()}
+     * @param width the width of the frames
+     * @param height the height of the frames
+     * @return the texture holding the frame, owned by this filter
+     */
+    public int convert(final SurfaceTexture surfaceTexture, final int width, final int height) {
+        surfaceTexture.updateTexImage();
+        surfaceTexture.getTransformMatrix(mTextureTransform);
+        setUniformMatrix4f(mTextureTransformUniform, mTextureTransform);
+        // The transform expects the bottom row at t = 0, so the unflipped
+        // coordinates put the top row into the first row of the framebuffer
+        return drawToFramebuffer(OpenGlUtils.NO_TEXTURE, width, height,
+                GPUImageVertexBuffers.getTextureCoordinates(Rotation.NORMAL, false, false));
+    }
+
+    @Override
+    protected void onDrawArraysPre() {
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, mTexture);
+        GLES20.glUniform1i(getUniformTexture(), 0);
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (mTexture != OpenGlUtils.NO_TEXTURE) {
+            GLES20.glDeleteTextures(1, new int[]{
+                    mTexture
+            }, 0);
+            mTexture = OpenGlUtils.NO_TEXTURE;
+        }
+    }
+}
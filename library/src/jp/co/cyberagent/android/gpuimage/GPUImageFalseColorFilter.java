@@ -81,4 +81,9 @@ public class GPUImageFalseColorFilter extends GPUImageFilter {
         mSecondColor = secondColor;
         setFloatVec3(mSecondColorLocation, secondColor);
     }
+
+    @Override
+    public int getSamplingRadius() {
+        return 0;
+    }
 }
@@ -20,12 +20,21 @@ import android.content.Context;
 import android.content.res.AssetManager;
 import android.graphics.PointF;
 import android.opengl.GLES20;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
 
 import java.io.InputStream;
 import java.nio.FloatBuffer;
-import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class GPUImageFilter {
+    /**
+     * Returned by {@link #getSamplingRadius()} by filters whose result depends
+     * on where a pixel is in the image, e.g. a vignette, or which aren't known
+     * to only read the pixels around it.
+     */
+    public static final int SAMPLING_RADIUS_UNBOUNDED = -1;
+
     public static final String NO_FILTER_VERTEX_SHADER = "" +
             "attribute vec4 position;\n" +
             "attribute vec4 inputTextureCoordinate;\n" +
@@ -47,35 +56,48 @@ public class GPUImageFilter {
             "     gl_FragColor = texture2D(inputImageTexture, textureCoordinate);\n" +
             "}";
 
-    private final LinkedList<Runnable> mRunOnDraw;
+    private final GPUImageTaskQueue mRunOnDraw;
+    private final SparseArray<Uniform> mUniforms = new SparseArray<Uniform>();
+    private boolean mUniformsDirty;
     private final String mVertexShader;
     private final String mFragmentShader;
     protected int mGLProgId;
+    private GPUImageProgramCache.Program mProgram;
+    private GPUImageVertexBuffers mVertexBuffers;
     protected int mGLAttribPosition;
     protected int mGLUniformTexture;
     protected int mGLAttribTextureCoordinate;
     protected int mOutputWidth;
     protected int mOutputHeight;
     private boolean mIsInitialized;
+    private boolean mReleasingGL;
+    private SparseIntArray mUniformLocationRemap;
+    private final AtomicInteger mParameterVersion = new AtomicInteger();
 
     public GPUImageFilter() {
         this(NO_FILTER_VERTEX_SHADER, NO_FILTER_FRAGMENT_SHADER);
     }
 
     public GPUImageFilter(final String vertexShader, final String fragmentShader) {
-        mRunOnDraw = new LinkedList<Runnable>();
+        mRunOnDraw = new GPUImageTaskQueue();
         mVertexShader = vertexShader;
         mFragmentShader = fragmentShader;
     }
 
     public final void init() {
         onInit();
+        invalidateUniforms();
         mIsInitialized = true;
         onInitialized();
     }
 
     public void onInit() {
-        mGLProgId = OpenGlUtils.loadProgram(mVertexShader, mFragmentShader);
+        if (mProgram != null) {
+            mProgram.release(this);
+        }
+        mProgram = GPUImageProgramCache.getInstance().acquire(mVertexShader, mFragmentShader);
+        mGLProgId = mProgram != null ? mProgram.getHandle() : 0;
+        mVertexBuffers = GPUImageVertexBuffers.getInstance();
         mGLAttribPosition = GLES20.glGetAttribLocation(mGLProgId, "position");
         mGLUniformTexture = GLES20.glGetUniformLocation(mGLProgId, "inputImageTexture");
         mGLAttribTextureCoordinate = GLES20.glGetAttribLocation(mGLProgId,
@@ -88,13 +110,51 @@ public class GPUImageFilter {
 
     public final void destroy() {
         mIsInitialized = false;
-        GLES20.glDeleteProgram(mGLProgId);
+        if (mProgram != null) {
+            mProgram.release(this);
+            mProgram = null;
+        }
         onDestroy();
     }
 
     public void onDestroy() {
     }
 
+    /**
+     * Releases the OpenGL objects of this filter like {@link #destroy()}, but
+     * composite filters keep their filters, so {@link #init()} makes it usable
+     * again. Used to evict filters which may be drawn later.
+     */
+    final void releaseGL() {
+        mReleasingGL = true;
+        try {
+            destroy();
+        } finally {
+            mReleasingGL = false;
+        }
+    }
+
+    /**
+     * @return true, if {@link #onDestroy()} is called by {@link #releaseGL()}
+     */
+    boolean isReleasingGL() {
+        return mReleasingGL;
+    }
+
+    /**
+     * Destroys a filter owned by this one from {@link #onDestroy()}, or only
+     * releases its OpenGL objects if this filter is released that way.
+     *
+     * @param filter the owned filter
+     */
+    void destroyOwned(final GPUImageFilter filter) {
+        if (mReleasingGL) {
+            filter.releaseGL();
+        } else {
+            filter.destroy();
+        }
+    }
+
     public void onOutputSizeChanged(final int width, final int height) {
         mOutputWidth = width;
         mOutputHeight = height;
@@ -102,18 +162,15 @@ public class GPUImageFilter {
 
     public void onDraw(final int textureId, final FloatBuffer cubeBuffer,
                        final FloatBuffer textureBuffer) {
-        GLES20.glUseProgram(mGLProgId);
+        useProgram();
         runPendingOnDrawTasks();
         if (!mIsInitialized) {
             return;
         }
 
-        cubeBuffer.position(0);
-        GLES20.glVertexAttribPointer(mGLAttribPosition, 2, GLES20.GL_FLOAT, false, 0, cubeBuffer);
+        mVertexBuffers.setAttribute(mGLAttribPosition, cubeBuffer);
         GLES20.glEnableVertexAttribArray(mGLAttribPosition);
-        textureBuffer.position(0);
-        GLES20.glVertexAttribPointer(mGLAttribTextureCoordinate, 2, GLES20.GL_FLOAT, false, 0,
-                textureBuffer);
+        mVertexBuffers.setAttribute(mGLAttribTextureCoordinate, textureBuffer);
         GLES20.glEnableVertexAttribArray(mGLAttribTextureCoordinate);
         if (textureId != OpenGlUtils.NO_TEXTURE) {
             GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
@@ -129,9 +186,59 @@ public class GPUImageFilter {
 
     protected void onDrawArraysPre() {}
 
+    /**
+     * Makes the program of this filter current. The program might be shared
+     * with other filters using the same shaders, so the uniforms of this
+     * filter are uploaded again if another filter has used it in between.
+     */
+    void useProgram() {
+        GLES20.glUseProgram(mGLProgId);
+        if (mProgram != null && mProgram.claim(this)) {
+            restoreUniforms();
+        }
+    }
+
+    /**
+     * Uploads the last value set for every uniform of this filter again.
+     */
+    void restoreUniforms() {
+        synchronized (mUniforms) {
+            for (int i = 0; i < mUniforms.size(); i++) {
+                mUniforms.valueAt(i).upload(remapUniformLocation(mUniforms.keyAt(i)));
+            }
+        }
+    }
+
     protected void runPendingOnDrawTasks() {
-        while (!mRunOnDraw.isEmpty()) {
-            mRunOnDraw.removeFirst().run();
+        mRunOnDraw.runAll();
+        uploadDirtyUniforms();
+    }
+
+    /**
+     * Marks all uniforms to be uploaded on the next draw, e.g. because the
+     * program they are uploaded to has changed.
+     */
+    private void invalidateUniforms() {
+        synchronized (mUniforms) {
+            for (int i = 0; i < mUniforms.size(); i++) {
+                mUniforms.valueAt(i).mDirty = true;
+            }
+            mUniformsDirty = mUniforms.size() > 0;
+        }
+    }
+
+    private void uploadDirtyUniforms() {
+        synchronized (mUniforms) {
+            if (!mUniformsDirty) {
+                return;
+            }
+            mUniformsDirty = false;
+            for (int i = 0; i < mUniforms.size(); i++) {
+                Uniform uniform = mUniforms.valueAt(i);
+                if (uniform.mDirty) {
+                    uniform.upload(remapUniformLocation(mUniforms.keyAt(i)));
+                }
+            }
         }
     }
 
@@ -151,6 +258,10 @@ public class GPUImageFilter {
         return mGLProgId;
     }
 
+    GPUImageVertexBuffers getVertexBuffers() {
+        return mVertexBuffers;
+    }
+
     public int getAttribPosition() {
         return mGLAttribPosition;
     }
@@ -164,96 +275,177 @@ public class GPUImageFilter {
     }
 
     protected void setInteger(final int location, final int intValue) {
-        runOnDraw(new Runnable() {
-            @Override
-            public void run() {
-                GLES20.glUniform1i(location, intValue);
-            }
-        });
+        synchronized (mUniforms) {
+            Uniform uniform = getUniform(location, Uniform.TYPE_INT, 0);
+            uniform.mIntValue = intValue;
+            markDirty(uniform);
+        }
     }
 
     protected void setFloat(final int location, final float floatValue) {
-        runOnDraw(new Runnable() {
-            @Override
-            public void run() {
-                GLES20.glUniform1f(location, floatValue);
-            }
-        });
+        synchronized (mUniforms) {
+            Uniform uniform = getUniform(location, Uniform.TYPE_FLOAT, 1);
+            uniform.mValues[0] = floatValue;
+            markDirty(uniform);
+        }
     }
 
     protected void setFloatVec2(final int location, final float[] arrayValue) {
-        runOnDraw(new Runnable() {
-            @Override
-            public void run() {
-                GLES20.glUniform2fv(location, 1, FloatBuffer.wrap(arrayValue));
-            }
-        });
+        setFloats(location, Uniform.TYPE_VEC2, arrayValue, 2);
     }
 
     protected void setFloatVec3(final int location, final float[] arrayValue) {
-        runOnDraw(new Runnable() {
-            @Override
-            public void run() {
-                GLES20.glUniform3fv(location, 1, FloatBuffer.wrap(arrayValue));
-            }
-        });
+        setFloats(location, Uniform.TYPE_VEC3, arrayValue, 3);
     }
 
     protected void setFloatVec4(final int location, final float[] arrayValue) {
-        runOnDraw(new Runnable() {
-            @Override
-            public void run() {
-                GLES20.glUniform4fv(location, 1, FloatBuffer.wrap(arrayValue));
-            }
-        });
+        setFloats(location, Uniform.TYPE_VEC4, arrayValue, 4);
     }
 
     protected void setFloatArray(final int location, final float[] arrayValue) {
-        runOnDraw(new Runnable() {
-            @Override
-            public void run() {
-                GLES20.glUniform1fv(location, arrayValue.length, FloatBuffer.wrap(arrayValue));
-            }
-        });
+        setFloats(location, Uniform.TYPE_FLOAT_ARRAY, arrayValue, arrayValue.length);
     }
 
     protected void setPoint(final int location, final PointF point) {
-        runOnDraw(new Runnable() {
-
-            @Override
-            public void run() {
-                float[] vec2 = new float[2];
-                vec2[0] = point.x;
-                vec2[1] = point.y;
-                GLES20.glUniform2fv(location, 1, vec2, 0);
-            }
-        });
+        synchronized (mUniforms) {
+            Uniform uniform = getUniform(location, Uniform.TYPE_VEC2, 2);
+            uniform.mValues[0] = point.x;
+            uniform.mValues[1] = point.y;
+            markDirty(uniform);
+        }
     }
 
     protected void setUniformMatrix3f(final int location, final float[] matrix) {
-        runOnDraw(new Runnable() {
-
-            @Override
-            public void run() {
-                GLES20.glUniformMatrix3fv(location, 1, false, matrix, 0);
-            }
-        });
+        setFloats(location, Uniform.TYPE_MAT3, matrix, 9);
     }
 
     protected void setUniformMatrix4f(final int location, final float[] matrix) {
-        runOnDraw(new Runnable() {
+        setFloats(location, Uniform.TYPE_MAT4, matrix, 16);
+    }
 
-            @Override
-            public void run() {
-                GLES20.glUniformMatrix4fv(location, 1, false, matrix, 0);
-            }
-        });
+    private void setFloats(final int location, final int type, final float[] values,
+                           final int length) {
+        synchronized (mUniforms) {
+            Uniform uniform = getUniform(location, type, length);
+            System.arraycopy(values, 0, uniform.mValues, 0, length);
+            markDirty(uniform);
+        }
     }
 
-    protected void runOnDraw(final Runnable runnable) {
-        synchronized (mRunOnDraw) {
-            mRunOnDraw.addLast(runnable);
+    /**
+     * Gets the slot holding the value of the uniform at the given location,
+     * the slot is only allocated the first time a uniform is set.
+     */
+    private Uniform getUniform(final int location, final int type, final int length) {
+        Uniform uniform = mUniforms.get(location);
+        if (uniform == null) {
+            uniform = new Uniform();
+            mUniforms.put(location, uniform);
         }
+        uniform.mType = type;
+        if (uniform.mValues == null || uniform.mValues.length != length) {
+            uniform.mValues = new float[length];
+        }
+        return uniform;
+    }
+
+    private void markDirty(final Uniform uniform) {
+        uniform.mDirty = true;
+        mUniformsDirty = true;
+        mParameterVersion.incrementAndGet();
+    }
+
+    /**
+     * Redirects the uniforms set through the setters of this filter to other
+     * locations. This is used when the shader of this filter has been merged
+     * into the program of another filter.
+     *
+     * @param remap maps the locations of this filter's program to the locations
+     *              to be used instead, or null to use the own locations
+     */
+    void setUniformLocationRemap(final SparseIntArray remap) {
+        mUniformLocationRemap = remap;
+        invalidateUniforms();
+    }
+
+    private int remapUniformLocation(final int location) {
+        if (mUniformLocationRemap == null) {
+            return location;
+        }
+        return mUniformLocationRemap.get(location, -1);
+    }
+
+    String getVertexShader() {
+        return mVertexShader;
+    }
+
+    String getFragmentShader() {
+        return mFragmentShader;
+    }
+
+    /**
+     * Gets the version of the parameters of this filter. It is incremented
+     * every time a change is scheduled to be run on the next draw, e.g. by
+     * setting a uniform.
+     *
+     * @return the current parameter version
+     */
+    public int getParameterVersion() {
+        return mParameterVersion.get();
+    }
+
+    /**
+     * Gets the transform of this filter if it only applies an affine transform
+     * to the color of each pixel with its current parameters. The transform is
+     * a 4x5 matrix in row-major order like {@link android.graphics.ColorMatrix},
+     * but with the offsets in the last column normalized to 0 - 1:
+     * <pre>
+     *   R' = a*R + b*G + c*B + d*A + e;
+     *   G' = f*R + g*G + h*B + i*A + j;
+     *   B' = k*R + l*G + m*B + n*A + o;
+     *   A' = p*R + q*G + r*B + s*A + t;
+     * </pre>
+     *
+     * @param transform array of 20 floats the transform is written into
+     * @return true, if this filter is an affine color transform and the
+     *         transform was written
+     */
+    public boolean getAffineColorTransform(final float[] transform) {
+        return false;
+    }
+
+    /**
+     * Checks whether this filter leaves every pixel as it is with its current
+     * parameters, e.g. a brightness filter set to 0.
+     * {@link GPUImageFilterGroup} doesn't draw such filters.
+     *
+     * @return true, if drawing this filter only copies its input
+     */
+    public boolean isIdentity() {
+        return getClass() == GPUImageFilter.class
+                && NO_FILTER_VERTEX_SHADER.equals(mVertexShader)
+                && NO_FILTER_FRAGMENT_SHADER.equals(mFragmentShader);
+    }
+
+    /**
+     * Gets how far from a pixel this filter reads its input with its current
+     * parameters, e.g. the radius of a blur. A part of the image can be
+     * filtered on its own if it is extended by this many pixels on every side,
+     * see {@link GPUImageTiledProcessor}.
+     *
+     * @return the radius in pixels, 0 if every pixel only depends on itself,
+     *         or {@link #SAMPLING_RADIUS_UNBOUNDED}, the default for
+     *         subclasses which don't override this
+     */
+    public int getSamplingRadius() {
+        // An identity only reads the pixel itself, anything else may be
+        // drawn by a shader of a subclass
+        return isIdentity() ? 0 : SAMPLING_RADIUS_UNBOUNDED;
+    }
+
+    protected void runOnDraw(final Runnable runnable) {
+        mParameterVersion.incrementAndGet();
+        mRunOnDraw.offer(runnable);
     }
 
     public static String loadShader(String file, Context context) {
@@ -275,4 +467,53 @@ public class GPUImageFilter {
         java.util.Scanner s = new java.util.Scanner(is).useDelimiter("\\A");
         return s.hasNext() ? s.next() : "";
     }
+
+    /**
+     * The last value set for a uniform, uploaded on the next draw when dirty.
+     */
+    private static final class Uniform {
+        static final int TYPE_INT = 0;
+        static final int TYPE_FLOAT = 1;
+        static final int TYPE_VEC2 = 2;
+        static final int TYPE_VEC3 = 3;
+        static final int TYPE_VEC4 = 4;
+        static final int TYPE_FLOAT_ARRAY = 5;
+        static final int TYPE_MAT3 = 6;
+        static final int TYPE_MAT4 = 7;
+
+        int mType;
+        int mIntValue;
+        float[] mValues;
+        boolean mDirty;
+
+        void upload(final int location) {
+            mDirty = false;
+            switch (mType) {
+                case TYPE_INT:
+                    GLES20.glUniform1i(location, mIntValue);
+                    break;
+                case TYPE_FLOAT:
+                    GLES20.glUniform1f(location, mValues[0]);
+                    break;
+                case TYPE_VEC2:
+                    GLES20.glUniform2fv(location, 1, mValues, 0);
+                    break;
+                case TYPE_VEC3:
+                    GLES20.glUniform3fv(location, 1, mValues, 0);
+                    break;
+                case TYPE_VEC4:
+                    GLES20.glUniform4fv(location, 1, mValues, 0);
+                    break;
+                case TYPE_FLOAT_ARRAY:
+                    GLES20.glUniform1fv(location, mValues.length, mValues, 0);
+                    break;
+                case TYPE_MAT3:
+                    GLES20.glUniformMatrix3fv(location, 1, false, mValues, 0);
+                    break;
+                case TYPE_MAT4:
+                    GLES20.glUniformMatrix4fv(location, 1, false, mValues, 0);
+                    break;
+            }
+        }
+    }
 }
@@ -0,0 +1,375 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.annotation.SuppressLint;
+import android.opengl.GLES20;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * Filters connected as a graph, for effects which combine several branches
+ * computed from the same image, where {@link GPUImageFilterGroup} only
+ * allows a chain.<br>
+ * <br>
+ * Every node draws a filter from the outputs of other nodes or from the
+ * source, the image this filter is drawn with. A glow for example blends the
+ * source with a blurred copy of it:
+ * <pre>
+ * GPUImageFilterGraph graph = new GPUImageFilterGraph();
+ * GPUImageFilterGraph.Node blur = graph.addNode(new GPUImageGaussianBlurFilter(),
+ *         graph.getSource());
+ * graph.addNode(new GPUImageScreenBlendFilter(), graph.getSource(), blur);
+ * </pre>
+ * A node of a {@link GPUImageTwoInputFilter} may take two inputs, the second
+ * one replaces the bitmap of the filter. Nodes only take inputs added before
+ * them, so there can't be cycles.<br>
+ * <br>
+ * Only the nodes the output depends on are drawn, each once a frame, inputs
+ * first and depth first. An output is given back to the
+ * {@link GPUImageFramebufferCache} as soon as its last reader is drawn, so
+ * branches reuse the framebuffers of branches done before them.
+ */
+public class GPUImageFilterGraph extends GPUImageFilter {
+    private final Node mSource = new Node(null, new Node[0]);
+    private final List<Node> mNodes = new ArrayList<Node>();
+    private Node mOutput;
+    private int mStructureVersion;
+
+    // The nodes the output depends on in drawing order, rebuilt when nodes
+    // are added
+    private final List<Node> mSchedule = new ArrayList<Node>();
+    private boolean mScheduleDirty = true;
+    // Whether the source is drawn into a framebuffer first, as the
+    // coordinates it is drawn with can't be applied by every reader
+    private boolean mCopySource;
+    private int mFramebufferCount;
+    private GPUImageFilter mCopyFilter;
+    private final int[] mBoundFrameBuffer = new int[1];
+
+    private FloatBuffer mGLCubeBuffer;
+    private FloatBuffer mGLTextureBuffer;
+
+    /**
+     * A filter in the graph and the nodes it is drawn from.
+     */
+    public static final class Node {
+        private final GPUImageFilter mFilter;
+        private final Node[] mInputs;
+        // Only used while scheduling and drawing
+        private boolean mScheduled;
+        private int mReaders;
+        private int mRemainingReaders;
+        private GPUImageFramebuffer mFramebuffer;
+
+        private Node(final GPUImageFilter filter, final Node[] inputs) {
+            mFilter = filter;
+            mInputs = inputs;
+        }
+
+        /**
+         * @return the filter, null for the source
+         */
+        public GPUImageFilter getFilter() {
+            return mFilter;
+        }
+    }
+
+    /**
+     * @return the node standing for the image the graph is drawn with
+     */
+    public Node getSource() {
+        return mSource;
+    }
+
+    /**
+     * Adds a node drawing the filter, it becomes the output of the graph.
+     *
+     * @param filter the filter
+     * @param inputs one node, or two for a {@link GPUImageTwoInputFilter}
+     * @return the new node
+     */
+    public Node addNode(final GPUImageFilter filter, final Node... inputs) {
+        int maxInputs = filter instanceof GPUImageTwoInputFilter ? 2 : 1;
+        if (inputs.length < 1 || inputs.length > maxInputs) {
+            throw new IllegalArgumentException(filter.getClass().getSimpleName()
+                    + " takes " + (maxInputs == 1 ? "one input" : "one or two inputs"));
+        }
+        for (Node input : inputs) {
+            if (input != mSource && !mNodes.contains(input)) {
+                throw new IllegalArgumentException("Input is not a node of this graph");
+            }
+        }
+        Node node = new Node(filter, inputs.clone());
+        mNodes.add(node);
+        mOutput = node;
+        mScheduleDirty = true;
+        mStructureVersion++;
+        return node;
+    }
+
+    /**
+     * Sets the node whose output is the output of the graph, by default the
+     * node added last.
+     *
+     * @param output a node of this graph other than the source
+     */
+    public void setOutput(final Node output) {
+        if (!mNodes.contains(output)) {
+            throw new IllegalArgumentException("Output is not a node of this graph");
+        }
+        mOutput = output;
+        mScheduleDirty = true;
+        mStructureVersion++;
+    }
+
+    public Node getOutput() {
+        return mOutput;
+    }
+
+    @Override
+    public void onInit() {
+        super.onInit();
+        mGLCubeBuffer = GPUImageVertexBuffers.getCube();
+        // Outputs are drawn in the orientation of the output, so they are
+        // read without flipping them again
+        mGLTextureBuffer = GPUImageVertexBuffers.getTextureCoordinates(Rotation.NORMAL,
+                false, true);
+        // Initialized even if they claim to be, after a context loss they
+        // still hold objects of the dead context. A filter may be drawn by
+        // several nodes, it is initialized once.
+        IdentityHashMap<GPUImageFilter, Boolean> initialized =
+                new IdentityHashMap<GPUImageFilter, Boolean>();
+        for (Node node : mNodes) {
+            if (initialized.put(node.mFilter, Boolean.TRUE) == null) {
+                node.mFilter.init();
+            }
+        }
+        // Created again by the next schedule
+        mCopyFilter = null;
+        mScheduleDirty = true;
+    }
+
+    @Override
+    public void onDestroy() {
+        for (Node node : mNodes) {
+            if (node.mFilter.isInitialized()) {
+                destroyOwned(node.mFilter);
+            }
+        }
+        if (mCopyFilter != null) {
+            mCopyFilter.destroy();
+            mCopyFilter = null;
+        }
+        mScheduleDirty = true;
+        super.onDestroy();
+    }
+
+    @Override
+    public void onOutputSizeChanged(final int width, final int height) {
+        super.onOutputSizeChanged(width, height);
+        for (Node node : mNodes) {
+            node.mFilter.onOutputSizeChanged(width, height);
+        }
+        if (mCopyFilter != null) {
+            mCopyFilter.onOutputSizeChanged(width, height);
+        }
+    }
+
+    @SuppressLint("WrongCall")
+    @Override
+    public void onDraw(final int textureId, final FloatBuffer cubeBuffer,
+            final FloatBuffer textureBuffer) {
+        runPendingOnDrawTasks();
+        if (!isInitialized() || mOutput == null || mOutputWidth == 0 || mOutputHeight == 0) {
+            return;
+        }
+        if (mScheduleDirty) {
+            schedule();
+        }
+        GLES20.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING, mBoundFrameBuffer, 0);
+        GPUImageFramebufferCache cache = GPUImageFramebufferCache.getInstance();
+        mSource.mRemainingReaders = mSource.mReaders;
+        if (mCopySource) {
+            mSource.mFramebuffer = fetchFramebuffer(cache);
+            mCopyFilter.onDraw(textureId, cubeBuffer, textureBuffer);
+        }
+        for (Node node : mSchedule) {
+            node.mRemainingReaders = node.mReaders;
+            if (node == mOutput) {
+                GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mBoundFrameBuffer[0]);
+            } else {
+                node.mFramebuffer = fetchFramebuffer(cache);
+            }
+            GPUImageFilter filter = node.mFilter;
+            if (node.mInputs.length > 1) {
+                ((GPUImageTwoInputFilter) filter).setSecondInput(
+                        node.mInputs[1].mFramebuffer.getTexture(), mGLTextureBuffer);
+            }
+            Node input = node.mInputs[0];
+            if (input.mFramebuffer == null) {
+                // Only a source nobody else needs in a framebuffer
+                filter.onDraw(textureId, cubeBuffer, textureBuffer);
+            } else {
+                filter.onDraw(input.mFramebuffer.getTexture(), mGLCubeBuffer, mGLTextureBuffer);
+            }
+            if (node.mInputs.length > 1) {
+                ((GPUImageTwoInputFilter) filter).setSecondInput(OpenGlUtils.NO_TEXTURE, null);
+            }
+            // Outputs nothing reads anymore can be reused by the next node
+            for (Node read : node.mInputs) {
+                if (--read.mRemainingReaders == 0) {
+                    cache.returnFramebuffer(read.mFramebuffer);
+                    read.mFramebuffer = null;
+                }
+            }
+        }
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mBoundFrameBuffer[0]);
+    }
+
+    private GPUImageFramebuffer fetchFramebuffer(final GPUImageFramebufferCache cache) {
+        GPUImageFramebuffer framebuffer = cache.fetchFramebuffer(mOutputWidth, mOutputHeight);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffer.getFrameBuffer());
+        GLES20.glClearColor(0, 0, 0, 0);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        return framebuffer;
+    }
+
+    /**
+     * Orders the nodes the output depends on, counts the readers of every
+     * output and initializes filters added since the last frame.
+     */
+    private void schedule() {
+        for (Node node : mNodes) {
+            node.mScheduled = false;
+            node.mReaders = 0;
+        }
+        mSource.mReaders = 0;
+        mSchedule.clear();
+        visit(mOutput);
+
+        // The coordinates of the source only work for the first input of a
+        // node with one input, otherwise the source is copied with them
+        mCopySource = false;
+        for (Node node : mSchedule) {
+            for (int i = 0; i < node.mInputs.length; i++) {
+                Node input = node.mInputs[i];
+                input.mReaders++;
+                if (input == mSource && node.mInputs.length > 1) {
+                    mCopySource = true;
+                }
+            }
+            if (!node.mFilter.isInitialized()) {
+                node.mFilter.init();
+                node.mFilter.onOutputSizeChanged(mOutputWidth, mOutputHeight);
+            }
+        }
+        if (mCopySource && mCopyFilter == null) {
+            mCopyFilter = new GPUImageFilter();
+            mCopyFilter.init();
+            mCopyFilter.onOutputSizeChanged(mOutputWidth, mOutputHeight);
+        }
+        mFramebufferCount = countFramebuffers();
+        mScheduleDirty = false;
+    }
+
+    // Depth first, so a branch is finished before the next one is started
+    private void visit(final Node node) {
+        if (node == mSource || node.mScheduled) {
+            return;
+        }
+        node.mScheduled = true;
+        for (Node input : node.mInputs) {
+            visit(input);
+        }
+        mSchedule.add(node);
+    }
+
+    // Replays the drawing order to find how many outputs are alive at once
+    private int countFramebuffers() {
+        int alive = mCopySource ? 1 : 0;
+        int peak = alive;
+        mSource.mRemainingReaders = mSource.mReaders;
+        for (Node node : mSchedule) {
+            node.mRemainingReaders = node.mReaders;
+            if (node != mOutput) {
+                peak = Math.max(peak, ++alive);
+            }
+            for (Node read : node.mInputs) {
+                if (--read.mRemainingReaders == 0 && (read != mSource || mCopySource)) {
+                    alive--;
+                }
+            }
+        }
+        return peak;
+    }
+
+    /**
+     * Gets the number of framebuffers the graph holds at the same time while
+     * it is drawn, known after the first frame.
+     *
+     * @return the number of intermediate framebuffers
+     */
+    public int getFramebufferCount() {
+        return mFramebufferCount;
+    }
+
+    /**
+     * @return the nodes in the order they were added
+     */
+    public List<Node> getNodes() {
+        return mNodes;
+    }
+
+    @Override
+    public int getParameterVersion() {
+        // The output changes with the parameters of every filter in the graph
+        int version = super.getParameterVersion() + mStructureVersion;
+        for (Node node : mNodes) {
+            version += node.mFilter.getParameterVersion();
+        }
+        return version;
+    }
+
+    @Override
+    public int getSamplingRadius() {
+        return mOutput != null ? getSamplingRadius(mOutput) : 0;
+    }
+
+    // The radii add up along every path from the source, the longest counts
+    private int getSamplingRadius(final Node node) {
+        if (node == mSource) {
+            return 0;
+        }
+        int filterRadius = node.mFilter.getSamplingRadius();
+        if (filterRadius == SAMPLING_RADIUS_UNBOUNDED) {
+            return SAMPLING_RADIUS_UNBOUNDED;
+        }
+        int inputRadius = 0;
+        for (Node input : node.mInputs) {
+            int radius = getSamplingRadius(input);
+            if (radius == SAMPLING_RADIUS_UNBOUNDED) {
+                return SAMPLING_RADIUS_UNBOUNDED;
+            }
+            inputRadius = Math.max(inputRadius, radius);
+        }
+        return filterRadius + inputRadius;
+    }
+}
@@ -18,16 +18,14 @@ package jp.co.cyberagent.android.gpuimage;
 
 import android.annotation.SuppressLint;
 import android.opengl.GLES20;
-import jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
-import static jp.co.cyberagent.android.gpuimage.GPUImageRenderer.CUBE;
-import static jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil.TEXTURE_NO_ROTATION;
 
 /**
  * Resembles a filter that consists of multiple filters applied after each
@@ -37,13 +35,50 @@ public class GPUImageFilterGroup extends GPUImageFilter {
 
     protected List<GPUImageFilter> mFilters;
     protected List<GPUImageFilter> mMergedFilters;
-    private int[] mFrameBuffers;
-    private int[] mFrameBufferTextures;
+    private List<GPUImageFilter> mDrawFilters;
+    // The draw filters which aren't identities on this frame
+    private final List<GPUImageFilter> mPasses = new ArrayList<GPUImageFilter>();
+    // The innermost group each merged filter came from
+    private final Map<GPUImageFilter, GPUImageFilterGroup> mMergedOwners =
+            new HashMap<GPUImageFilter, GPUImageFilterGroup>();
+    private final List<GPUImageFilter> mGeneratedFilters = new ArrayList<GPUImageFilter>();
+    private boolean mDrawFiltersDirty = true;
+    private boolean mShaderFusionEnabled;
+    private boolean mColorFoldingEnabled;
+    private boolean mStageCacheEnabled;
+    private long mStageCacheBudget = DEFAULT_STAGE_CACHE_BUDGET;
+    private final int[] mBoundFrameBuffer = new int[1];
+    private final int[] mBoundViewport = new int[4];
+    // Written by the caller, read on the OpenGL thread when the sizes are
+    // applied and by getSamplingRadius() on any thread
+    private final Map<GPUImageFilter, Float> mOutputScales =
+            new ConcurrentHashMap<GPUImageFilter, Float>();
+    // Copies textures between passes of different sizes
+    private GPUImageFilter mResampleFilter;
+
+    // The outputs of the draw filters kept for the next frame, and what they
+    // were drawn from
+    private Stage[] mStages;
+    private long mStageOutputBytes;
+    // Framebuffers taken from the cache and not given back yet, the peak of
+    // the last frame is reported
+    private int mFramebuffersHeld;
+    private long mFramebufferBytesHeld;
+    private int mPeakFramebuffers;
+    private long mPeakFramebufferBytes;
+    private long mStageClock;
+    private int mStageInputTexture = OpenGlUtils.NO_TEXTURE;
+    private final float[] mStageInputCube = new float[8];
+    private final float[] mStageInputCoordinates = new float[8];
+    private volatile int mInputVersion;
+    private int mStageInputVersion;
 
     private FloatBuffer mGLCubeBuffer;
     private FloatBuffer mGLTextureBuffer;
     private FloatBuffer mGLTextureFlipBuffer;
 
+    public static final long DEFAULT_STAGE_CACHE_BUDGET = 32L * 1024 * 1024;
+
     /**
      * Instantiates a new GPUImageFilterGroup with no filters.
      */
@@ -81,21 +116,11 @@ public class GPUImageFilterGroup extends GPUImageFilter {
     public void onInit() {
         super.onInit();
 
-        mGLCubeBuffer = ByteBuffer.allocateDirect(CUBE.length * 4)
-                .order(ByteOrder.nativeOrder())
-                .asFloatBuffer();
-        mGLCubeBuffer.put(CUBE).position(0);
-
-        mGLTextureBuffer = ByteBuffer.allocateDirect(TEXTURE_NO_ROTATION.length * 4)
-                .order(ByteOrder.nativeOrder())
-                .asFloatBuffer();
-        mGLTextureBuffer.put(TEXTURE_NO_ROTATION).position(0);
-
-        float[] flipTexture = TextureRotationUtil.getRotation(Rotation.NORMAL, false, true);
-        mGLTextureFlipBuffer = ByteBuffer.allocateDirect(flipTexture.length * 4)
-                .order(ByteOrder.nativeOrder())
-                .asFloatBuffer();
-        mGLTextureFlipBuffer.put(flipTexture).position(0);
+        mGLCubeBuffer = GPUImageVertexBuffers.getCube();
+        mGLTextureBuffer = GPUImageVertexBuffers.getTextureCoordinates(Rotation.NORMAL, false, false);
+        mGLTextureFlipBuffer = GPUImageVertexBuffers.getTextureCoordinates(Rotation.NORMAL, false, true);
+        dropStages();
+        dropDrawFilters();
 
         initFilters();
     }
@@ -106,7 +131,12 @@ public class GPUImageFilterGroup extends GPUImageFilter {
      */
     @Override
     public void onDestroy() {
-        destroyFramebuffers();
+        releaseStages();
+        if (mResampleFilter != null) {
+            mResampleFilter.destroy();
+            mResampleFilter = null;
+        }
+        destroyDrawFilters();
         destroyFilters();
         super.onDestroy();
     }
@@ -117,21 +147,401 @@ public class GPUImageFilterGroup extends GPUImageFilter {
         }
     }
 
-    protected void destroyFilters() {
-        for (GPUImageFilter filter : mFilters) {
-            filter.destroy();
+    /**
+     * Enables merging runs of per-pixel color filters into single passes, see
+     * {@link GPUImageFusedFilter}. Disabled by default.
+     *
+     * @param enabled true, if shaders should be fused
+     */
+    public void setShaderFusionEnabled(final boolean enabled) {
+        mShaderFusionEnabled = enabled;
+        mDrawFiltersDirty = true;
+    }
+
+    public boolean isShaderFusionEnabled() {
+        return mShaderFusionEnabled;
+    }
+
+    /**
+     * Enables folding runs of affine color filters into a single color matrix
+     * pass, see {@link GPUImageAffineColorFilter}. This is applied before
+     * shader fusion. Disabled by default.
+     *
+     * @param enabled true, if affine color filters should be folded
+     */
+    public void setColorFoldingEnabled(final boolean enabled) {
+        mColorFoldingEnabled = enabled;
+        mDrawFiltersDirty = true;
+    }
+
+    public boolean isColorFoldingEnabled() {
+        return mColorFoldingEnabled;
+    }
+
+    /**
+     * Enables keeping the output of every pass for the next frame. A frame
+     * then starts with the first pass whose parameters changed, see
+     * {@link GPUImageFilter#getParameterVersion()}, so moving the slider of
+     * the last filter of a long chain only redraws that filter. The input
+     * texture is assumed to keep its content as long as it is drawn with the
+     * same texture and coordinates, {@link #invalidateStageCache()} has to be
+     * called when it is reloaded. {@link GPUImageRenderer} does so. Disabled
+     * by default.
+     *
+     * @param enabled true, if the outputs of the passes should be kept
+     */
+    public void setStageCacheEnabled(final boolean enabled) {
+        mStageCacheEnabled = enabled;
+        invalidateStageCache();
+    }
+
+    public boolean isStageCacheEnabled() {
+        return mStageCacheEnabled;
+    }
+
+    /**
+     * Sets the texture memory the kept outputs may use, the outputs drawn
+     * longest ago are given back to the {@link GPUImageFramebufferCache}
+     * first. As the passes are drawn in order, the outputs closest to the end
+     * of the chain are kept.
+     *
+     * @param bytes the texture memory in bytes
+     */
+    public void setStageCacheBudget(final long bytes) {
+        mStageCacheBudget = bytes;
+    }
+
+    public long getStageCacheBudget() {
+        return mStageCacheBudget;
+    }
+
+    /**
+     * Marks the kept outputs as outdated because the content of the input
+     * texture changed. Can be called from any thread.
+     */
+    public void invalidateStageCache() {
+        mInputVersion++;
+    }
+
+    /**
+     * @return the texture memory in bytes held by the kept outputs
+     */
+    public long getStageCacheSizeInBytes() {
+        return mStageOutputBytes;
+    }
+
+    /**
+     * Draws a filter of this group at a fraction of the output size, for
+     * soft effects like blurs which look nearly the same at a half or a
+     * quarter of the size and take 4 or 16 times fewer fragments. The filter
+     * gets the smaller size as its output size, so its texel offsets are
+     * computed for it, radii in pixels are pixels of the smaller image. The
+     * input is halved until it is at most twice as large, the next pass
+     * scales the output back up with bilinear sampling.
+     *
+     * @param filter a filter of this group, for a group all of its passes
+     * @param scale the fraction of the output size, in (0, 1]
+     */
+    public void setOutputScale(final GPUImageFilter filter, final float scale) {
+        if (!mFilters.contains(filter)) {
+            throw new IllegalArgumentException("Not a filter of this group");
+        }
+        if (!(scale > 0.0f && scale <= 1.0f)) {
+            throw new IllegalArgumentException("Scale " + scale + " out of (0, 1]");
+        }
+        if (scale == 1.0f) {
+            mOutputScales.remove(filter);
+        } else {
+            mOutputScales.put(filter, scale);
+        }
+        // The framebuffers are resized on the OpenGL thread
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                if (mOutputWidth != 0 && mOutputHeight != 0) {
+                    onOutputSizeChanged(mOutputWidth, mOutputHeight);
+                }
+                // Passes of different sizes can't be fused
+                mDrawFiltersDirty = true;
+            }
+        });
+    }
+
+    /**
+     * @param filter a filter of this group
+     * @return the fraction of the output size the filter is drawn at
+     */
+    public float getOutputScale(final GPUImageFilter filter) {
+        Float scale = mOutputScales.get(filter);
+        return scale != null ? scale : 1.0f;
+    }
+
+    private static int scaleSize(final int size, final float scale) {
+        return Math.max(1, Math.round(size * scale));
+    }
+
+    private void updateDrawFilters() {
+        releaseStages();
+        destroyDrawFilters();
+        mDrawFilters = mMergedFilters;
+        if (mDrawFilters != null && (mColorFoldingEnabled || mShaderFusionEnabled)) {
+            // Only passes drawn at the same size are merged
+            List<GPUImageFilter> drawFilters = new ArrayList<GPUImageFilter>();
+            int start = 0;
+            for (int i = 1; i <= mMergedFilters.size(); i++) {
+                if (i == mMergedFilters.size()
+                        || !isSameSize(mMergedFilters.get(i), mMergedFilters.get(start))) {
+                    drawFilters.addAll(mergeFilters(mMergedFilters.subList(start, i)));
+                    start = i;
+                }
+            }
+            mDrawFilters = drawFilters;
+        }
+        for (GPUImageFilter filter : mGeneratedFilters) {
+            GPUImageFilter stage = getFirstStage(filter);
+            filter.onOutputSizeChanged(stage.getOutputWidth(), stage.getOutputHeight());
+        }
+        mDrawFiltersDirty = false;
+    }
+
+    private List<GPUImageFilter> mergeFilters(final List<GPUImageFilter> filters) {
+        List<GPUImageFilter> merged = filters;
+        if (mColorFoldingEnabled) {
+            merged = addGeneratedFilters(merged, GPUImageAffineColorFilter.fold(merged));
+        }
+        if (mShaderFusionEnabled) {
+            merged = addGeneratedFilters(merged, GPUImageFusedFilter.fuse(merged));
+        }
+        return merged;
+    }
+
+    private static boolean isSameSize(final GPUImageFilter filter, final GPUImageFilter other) {
+        return filter.getOutputWidth() == other.getOutputWidth()
+                && filter.getOutputHeight() == other.getOutputHeight();
+    }
+
+    // The merged filter drawn first by a generated filter
+    private static GPUImageFilter getFirstStage(final GPUImageFilter filter) {
+        List<GPUImageFilter> stages = null;
+        if (filter instanceof GPUImageFusedFilter) {
+            stages = ((GPUImageFusedFilter) filter).getStages();
+        } else if (filter instanceof GPUImageAffineColorFilter) {
+            stages = ((GPUImageAffineColorFilter) filter).getStages();
+        }
+        return stages != null && !stages.isEmpty() ? getFirstStage(stages.get(0)) : filter;
+    }
+
+    /**
+     * Collects the draw filters which change the image with their current
+     * parameters. If there are none, the last one is drawn anyway to get the
+     * input into the output.
+     *
+     * @return true, if a pass is drawn at another size than the output
+     */
+    private boolean updatePasses() {
+        mPasses.clear();
+        // E.g. a blur drawn on its own with a size of 0
+        boolean identity = isIdentity();
+        for (GPUImageFilter filter : mDrawFilters) {
+            if (!identity && !filter.isIdentity()) {
+                GPUImageFilterGroup owner = mMergedOwners.get(filter);
+                if (owner == null || !owner.isIdentity()) {
+                    mPasses.add(filter);
+                }
+            }
+        }
+        if (mPasses.isEmpty()) {
+            mPasses.add(mDrawFilters.get(mDrawFilters.size() - 1));
+        }
+        for (GPUImageFilter filter : mPasses) {
+            if (filter.getOutputWidth() != mOutputWidth
+                    || filter.getOutputHeight() != mOutputHeight) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds the first pass which has to be drawn, the ones before it are
+     * unchanged and their last output is still kept. Outputs which can't be
+     * used anymore are given back.
+     */
+    private int getFirstStaleStage(final int textureId, final FloatBuffer cubeBuffer,
+            final FloatBuffer textureBuffer) {
+        int count = mPasses.size() - 1;
+        if (mStages == null || mStages.length != count) {
+            releaseStages();
+            mStages = new Stage[count];
+            for (int i = 0; i < count; i++) {
+                mStages[i] = new Stage();
+            }
+        }
+        int inputVersion = mInputVersion;
+        boolean sameCube = matches(cubeBuffer, mStageInputCube);
+        boolean sameCoordinates = matches(textureBuffer, mStageInputCoordinates);
+        if (textureId != mStageInputTexture || inputVersion != mStageInputVersion
+                || !sameCube || !sameCoordinates) {
+            releaseStages();
+            mStageInputTexture = textureId;
+            mStageInputVersion = inputVersion;
+        }
+        int first = 0;
+        for (int i = 0; i < count; i++) {
+            Stage stage = mStages[i];
+            GPUImageFilter filter = mPasses.get(i);
+            if (stage.mFilter != filter || stage.mVersion != getStageVersion(filter)) {
+                break;
+            }
+            if (stage.mFramebuffer != null) {
+                first = i + 1;
+            }
+        }
+        // Everything after the first changed pass is drawn again
+        for (int i = first; i < count; i++) {
+            mStages[i].mVersion = Stage.NOT_DRAWN;
+        }
+        return first;
+    }
+
+    // Compares the coordinates with the copy and updates the copy
+    private static boolean matches(final FloatBuffer buffer, final float[] copy) {
+        boolean matches = true;
+        for (int i = 0; i < copy.length; i++) {
+            float value = buffer.get(buffer.position() + i);
+            if (value != copy[i]) {
+                copy[i] = value;
+                matches = false;
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Sums the parameter versions of a draw filter and all filters merged into
+     * it. Versions only grow, so the sum changes whenever one of them does.
+     */
+    private static long getStageVersion(final GPUImageFilter filter) {
+        long version = filter.getParameterVersion();
+        List<GPUImageFilter> stages = null;
+        if (filter instanceof GPUImageFusedFilter) {
+            stages = ((GPUImageFusedFilter) filter).getStages();
+        } else if (filter instanceof GPUImageAffineColorFilter) {
+            stages = ((GPUImageAffineColorFilter) filter).getStages();
+        }
+        if (stages != null) {
+            for (GPUImageFilter stage : stages) {
+                version += getStageVersion(stage);
+            }
+        }
+        return version;
+    }
+
+    private GPUImageFramebuffer fetchStageFramebuffer(final int index, final int width,
+            final int height) {
+        Stage stage = mStages[index];
+        if (stage.mFramebuffer != null && (stage.mFramebuffer.getWidth() != width
+                || stage.mFramebuffer.getHeight() != height)) {
+            releaseFramebuffer(stage);
+        }
+        if (stage.mFramebuffer == null) {
+            stage.mFramebuffer = fetchFramebuffer(width, height);
+            mStageOutputBytes += stage.mFramebuffer.getSizeInBytes();
+        }
+        return stage.mFramebuffer;
+    }
+
+    /**
+     * Gives back the outputs drawn longest ago until the budget is met.
+     *
+     * @param needed the pass whose output is still to be read, or -1
+     */
+    private void evictStages(final int needed) {
+        while (mStageOutputBytes > mStageCacheBudget) {
+            Stage oldest = null;
+            for (int i = 0; i < mStages.length; i++) {
+                Stage stage = mStages[i];
+                if (i != needed && stage.mFramebuffer != null
+                        && (oldest == null || stage.mDrawTime < oldest.mDrawTime)) {
+                    oldest = stage;
+                }
+            }
+            if (oldest == null) {
+                return;
+            }
+            releaseFramebuffer(oldest);
+        }
+    }
+
+    private void releaseStages() {
+        if (mStages != null) {
+            for (Stage stage : mStages) {
+                releaseFramebuffer(stage);
+                stage.mVersion = Stage.NOT_DRAWN;
+            }
+        }
+    }
+
+    // Forgets the kept outputs without giving them back. After a context loss
+    // they belong to the dead context, the cache of the new one must not get
+    // their names.
+    private void dropStages() {
+        mStages = null;
+        mStageOutputBytes = 0;
+        mFramebuffersHeld = 0;
+        mFramebufferBytesHeld = 0;
+    }
+
+    private void releaseFramebuffer(final Stage stage) {
+        if (stage.mFramebuffer != null) {
+            mStageOutputBytes -= stage.mFramebuffer.getSizeInBytes();
+            returnFramebuffer(stage.mFramebuffer);
+            stage.mFramebuffer = null;
+        }
+    }
+
+    private List<GPUImageFilter> addGeneratedFilters(final List<GPUImageFilter> before,
+                                                     final List<GPUImageFilter> after) {
+        for (GPUImageFilter filter : after) {
+            if (!before.contains(filter)) {
+                mGeneratedFilters.add(filter);
+            }
         }
-        mFilters.clear();
+        return after;
     }
 
-    private void destroyFramebuffers() {
-        if (mFrameBufferTextures != null) {
-            GLES20.glDeleteTextures(mFrameBufferTextures.length, mFrameBufferTextures, 0);
-            mFrameBufferTextures = null;
+    private void destroyDrawFilters() {
+        // Destroy in reverse order, generated filters may wrap earlier ones
+        for (int i = mGeneratedFilters.size() - 1; i >= 0; i--) {
+            mGeneratedFilters.get(i).destroy();
         }
-        if (mFrameBuffers != null) {
-            GLES20.glDeleteFramebuffers(mFrameBuffers.length, mFrameBuffers, 0);
-            mFrameBuffers = null;
+        mGeneratedFilters.clear();
+        mDrawFilters = null;
+        mDrawFiltersDirty = true;
+    }
+
+    // Like dropStages(), the generated filters and the resampling copy only
+    // hold programs of a dead context here, they are rebuilt on the next draw
+    private void dropDrawFilters() {
+        for (GPUImageFilter filter : mGeneratedFilters) {
+            if (filter instanceof GPUImageFusedFilter) {
+                for (GPUImageFilter stage : ((GPUImageFusedFilter) filter).getStages()) {
+                    stage.setUniformLocationRemap(null);
+                }
+            }
+        }
+        mGeneratedFilters.clear();
+        mDrawFilters = null;
+        mDrawFiltersDirty = true;
+        mResampleFilter = null;
+    }
+
+    protected void destroyFilters() {
+        for (GPUImageFilter filter : mFilters) {
+            destroyOwned(filter);
+        }
+        if (!isReleasingGL()) {
+            mFilters.clear();
         }
     }
 
@@ -144,42 +554,16 @@ public class GPUImageFilterGroup extends GPUImageFilter {
     @Override
     public void onOutputSizeChanged(final int width, final int height) {
         super.onOutputSizeChanged(width, height);
-        if (mFrameBuffers != null) {
-            destroyFramebuffers();
-        }
-
+        releaseStages();
         int size = mFilters.size();
         for (int i = 0; i < size; i++) {
-            mFilters.get(i).onOutputSizeChanged(width, height);
-        }
-
-        if (mMergedFilters != null && mMergedFilters.size() > 0) {
-            size = mMergedFilters.size();
-            mFrameBuffers = new int[size - 1];
-            mFrameBufferTextures = new int[size - 1];
-
-            for (int i = 0; i < size - 1; i++) {
-                GLES20.glGenFramebuffers(1, mFrameBuffers, i);
-                GLES20.glGenTextures(1, mFrameBufferTextures, i);
-                GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mFrameBufferTextures[i]);
-                GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
-                        GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
-                GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
-                        GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
-                GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
-                        GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
-                GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
-                        GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
-                GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
-                        GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
-
-                GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFrameBuffers[i]);
-                GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
-                        GLES20.GL_TEXTURE_2D, mFrameBufferTextures[i], 0);
-
-                GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
-                GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
-            }
+            GPUImageFilter filter = mFilters.get(i);
+            float scale = getOutputScale(filter);
+            filter.onOutputSizeChanged(scaleSize(width, scale), scaleSize(height, scale));
+        }
+        for (GPUImageFilter filter : mGeneratedFilters) {
+            GPUImageFilter stage = getFirstStage(filter);
+            filter.onOutputSizeChanged(stage.getOutputWidth(), stage.getOutputHeight());
         }
     }
 
@@ -193,35 +577,202 @@ public class GPUImageFilterGroup extends GPUImageFilter {
     public void onDraw(final int textureId, final FloatBuffer cubeBuffer,
                        final FloatBuffer textureBuffer) {
         runPendingOnDrawTasks();
-        if (!isInitialized() || mFrameBuffers == null || mFrameBufferTextures == null) {
+        if (!isInitialized() || mOutputWidth == 0 || mOutputHeight == 0) {
             return;
         }
-        if (mMergedFilters != null) {
-            int size = mMergedFilters.size();
+        if (mDrawFiltersDirty) {
+            updateDrawFilters();
+        }
+        if (mDrawFilters != null && !mDrawFilters.isEmpty()) {
+            boolean scaled = updatePasses();
+            int size = mPasses.size();
+            if (size > 1 || scaled) {
+                GLES20.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING, mBoundFrameBuffer, 0);
+            }
+            if (scaled) {
+                GLES20.glGetIntegerv(GLES20.GL_VIEWPORT, mBoundViewport, 0);
+                if (mResampleFilter == null) {
+                    mResampleFilter = new GPUImageFilter();
+                    mResampleFilter.init();
+                }
+            }
+            boolean stageCache = mStageCacheEnabled && size > 1;
+            if (!stageCache) {
+                releaseStages();
+            }
+            int first = stageCache ? getFirstStaleStage(textureId, cubeBuffer, textureBuffer) : 0;
+            mPeakFramebuffers = mFramebuffersHeld;
+            mPeakFramebufferBytes = mFramebufferBytesHeld;
+            GPUImageFramebuffer previousFramebuffer = null;
             int previousTexture = textureId;
-            for (int i = 0; i < size; i++) {
-                GPUImageFilter filter = mMergedFilters.get(i);
+            // The source counts as large as the output
+            int previousWidth = mOutputWidth;
+            int previousHeight = mOutputHeight;
+            if (first > 0) {
+                GPUImageFramebuffer kept = mStages[first - 1].mFramebuffer;
+                previousTexture = kept.getTexture();
+                previousWidth = kept.getWidth();
+                previousHeight = kept.getHeight();
+            }
+            for (int i = first; i < size; i++) {
+                GPUImageFilter filter = mPasses.get(i);
                 boolean isNotLast = i < size - 1;
+                int width = filter.getOutputWidth();
+                int height = filter.getOutputHeight();
+                FloatBuffer passCube = mGLCubeBuffer;
+                FloatBuffer passCoordinates = mGLTextureBuffer;
+                boolean readsSource = i == 0;
+                if (readsSource) {
+                    passCube = cubeBuffer;
+                    passCoordinates = textureBuffer;
+                } else if (i == size - 1) {
+                    passCoordinates = (size % 2 == 0) ? mGLTextureFlipBuffer : mGLTextureBuffer;
+                }
+
+                // Bilinear sampling only averages 2x2 pixels, so larger steps
+                // down are taken in halves
+                GPUImageFramebuffer resampled = null;
+                while (previousWidth > 2 * width || previousHeight > 2 * height) {
+                    int halfWidth = Math.max(width, (previousWidth + 1) / 2);
+                    int halfHeight = Math.max(height, (previousHeight + 1) / 2);
+                    GPUImageFramebuffer half = fetchFramebuffer(halfWidth, halfHeight);
+                    bindTarget(half.getFrameBuffer(), halfWidth, halfHeight);
+                    if (readsSource) {
+                        // The coordinates of the source are applied by the copy
+                        mResampleFilter.onDraw(previousTexture, cubeBuffer, textureBuffer);
+                        passCube = mGLCubeBuffer;
+                        passCoordinates = mGLTextureFlipBuffer;
+                        readsSource = false;
+                    } else {
+                        mResampleFilter.onDraw(previousTexture, mGLCubeBuffer,
+                                mGLTextureFlipBuffer);
+                    }
+                    returnFramebuffer(resampled);
+                    resampled = half;
+                    previousTexture = half.getTexture();
+                    previousWidth = halfWidth;
+                    previousHeight = halfHeight;
+                }
+
+                GPUImageFramebuffer framebuffer = null;
                 if (isNotLast) {
-                    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFrameBuffers[i]);
+                    if (stageCache) {
+                        // Taken before drawing, a change arriving meanwhile
+                        // is drawn next frame
+                        mStages[i].mFilter = filter;
+                        mStages[i].mVersion = getStageVersion(filter);
+                        mStages[i].mDrawTime = ++mStageClock;
+                        framebuffer = fetchStageFramebuffer(i, width, height);
+                    } else {
+                        framebuffer = fetchFramebuffer(width, height);
+                    }
+                } else if (scaled && (width != mOutputWidth || height != mOutputHeight)) {
+                    // Drawn at its size and scaled up into the output
+                    framebuffer = fetchFramebuffer(width, height);
+                }
+                if (framebuffer != null) {
+                    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffer.getFrameBuffer());
                     GLES20.glClearColor(0, 0, 0, 0);
+                    if (scaled) {
+                        GLES20.glViewport(0, 0, width, height);
+                    }
+                } else if (scaled) {
+                    bindOutput();
                 }
 
-                if (i == 0) {
-                    filter.onDraw(previousTexture, cubeBuffer, textureBuffer);
-                } else if (i == size - 1) {
-                    filter.onDraw(previousTexture, mGLCubeBuffer, (size % 2 == 0) ? mGLTextureFlipBuffer : mGLTextureBuffer);
+                filter.onDraw(previousTexture, passCube, passCoordinates);
+                returnFramebuffer(resampled);
+
+                if (!isNotLast && framebuffer != null) {
+                    bindOutput();
+                    mResampleFilter.onDraw(framebuffer.getTexture(), mGLCubeBuffer,
+                            mGLTextureFlipBuffer);
+                    returnFramebuffer(framebuffer);
+                    framebuffer = null;
+                }
+                if (stageCache) {
+                    // Everything but the output the next pass reads may go
+                    evictStages(isNotLast ? i : -1);
                 } else {
-                    filter.onDraw(previousTexture, mGLCubeBuffer, mGLTextureBuffer);
+                    // The input of this pass is dead now, so it can be reused by the next one.
+                    returnFramebuffer(previousFramebuffer);
+                    previousFramebuffer = framebuffer;
                 }
-
                 if (isNotLast) {
-                    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
-                    previousTexture = mFrameBufferTextures[i];
+                    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mBoundFrameBuffer[0]);
+                    previousTexture = framebuffer.getTexture();
+                    previousWidth = width;
+                    previousHeight = height;
                 }
             }
         }
-     }
+    }
+
+    private GPUImageFramebuffer fetchFramebuffer(final int width, final int height) {
+        GPUImageFramebuffer framebuffer = GPUImageFramebufferCache.getInstance()
+                .fetchFramebuffer(width, height);
+        mFramebuffersHeld++;
+        mFramebufferBytesHeld += framebuffer.getSizeInBytes();
+        mPeakFramebuffers = Math.max(mPeakFramebuffers, mFramebuffersHeld);
+        mPeakFramebufferBytes = Math.max(mPeakFramebufferBytes, mFramebufferBytesHeld);
+        return framebuffer;
+    }
+
+    private void returnFramebuffer(final GPUImageFramebuffer framebuffer) {
+        if (framebuffer != null) {
+            mFramebuffersHeld--;
+            mFramebufferBytesHeld -= framebuffer.getSizeInBytes();
+            GPUImageFramebufferCache.getInstance().returnFramebuffer(framebuffer);
+        }
+    }
+
+    private void bindTarget(final int framebuffer, final int width, final int height) {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffer);
+        GLES20.glViewport(0, 0, width, height);
+        GLES20.glClearColor(0, 0, 0, 0);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+    }
+
+    private void bindOutput() {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mBoundFrameBuffer[0]);
+        GLES20.glViewport(mBoundViewport[0], mBoundViewport[1], mBoundViewport[2],
+                mBoundViewport[3]);
+    }
+
+    /**
+     * Gets the most intermediate framebuffers this group held at the same
+     * time while drawing the last frame. This includes the outputs kept by
+     * the stage cache and the framebuffers of passes drawn at another size.
+     *
+     * @return the number of intermediate framebuffers, 0 before the first
+     *         frame
+     */
+    public int getFramebufferCount() {
+        return mPeakFramebuffers;
+    }
+
+    /**
+     * Gets the most texture memory in bytes this group held from the
+     * {@link GPUImageFramebufferCache} while drawing the last frame, every
+     * framebuffer counted at its own size.
+     *
+     * @return the texture memory in bytes, 0 before the first frame
+     */
+    public long getFramebufferSizeInBytes() {
+        return mPeakFramebufferBytes;
+    }
+
+    /**
+     * The output of a pass kept for the next frame.
+     */
+    private static class Stage {
+        static final long NOT_DRAWN = -1;
+
+        GPUImageFramebuffer mFramebuffer;
+        GPUImageFilter mFilter;
+        long mVersion = NOT_DRAWN;
+        long mDrawTime;
+    }
 
     /**
      * Gets the filters.
@@ -236,6 +787,48 @@ public class GPUImageFilterGroup extends GPUImageFilter {
         return mMergedFilters;
     }
 
+    /**
+     * A group is an identity if all of its filters are, subclasses computing
+     * something else from their filters have to override this.
+     */
+    @Override
+    public boolean isIdentity() {
+        for (GPUImageFilter filter : mFilters) {
+            if (!filter.isIdentity()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int getSamplingRadius() {
+        // Every filter reads the output of the one before, so the radii add up
+        int radius = 0;
+        for (GPUImageFilter filter : mFilters) {
+            if (getOutputScale(filter) != 1.0f) {
+                // The pixels of a smaller pass depend on where a tile starts
+                return SAMPLING_RADIUS_UNBOUNDED;
+            }
+            int filterRadius = filter.getSamplingRadius();
+            if (filterRadius == SAMPLING_RADIUS_UNBOUNDED) {
+                return SAMPLING_RADIUS_UNBOUNDED;
+            }
+            radius += filterRadius;
+        }
+        return radius;
+    }
+
+    /**
+     * Gets the filters which are drawn one after another, this is the merged
+     * filters after optimizations like shader fusion have been applied.
+     *
+     * @return the filters drawn on the next frame
+     */
+    public List<GPUImageFilter> getDrawFilters() {
+        return mDrawFilters != null ? mDrawFilters : mMergedFilters;
+    }
+
     public void updateMergedFilters() {
         if (mFilters == null) {
             return;
@@ -246,15 +839,24 @@ public class GPUImageFilterGroup extends GPUImageFilter {
         } else {
             mMergedFilters.clear();
         }
+        mMergedOwners.clear();
+        mDrawFiltersDirty = true;
 
         List<GPUImageFilter> filters;
         for (GPUImageFilter filter : mFilters) {
             if (filter instanceof GPUImageFilterGroup) {
-                ((GPUImageFilterGroup) filter).updateMergedFilters();
-                filters = ((GPUImageFilterGroup) filter).getMergedFilters();
+                GPUImageFilterGroup group = (GPUImageFilterGroup) filter;
+                group.updateMergedFilters();
+                filters = group.getMergedFilters();
                 if (filters == null || filters.isEmpty())
                     continue;
                 mMergedFilters.addAll(filters);
+                // A group whose filters are all identities is one too, so
+                // the innermost group is enough to check
+                for (GPUImageFilter merged : filters) {
+                    GPUImageFilterGroup owner = group.mMergedOwners.get(merged);
+                    mMergedOwners.put(merged, owner != null ? owner : group);
+                }
                 continue;
             }
             mMergedFilters.add(filter);
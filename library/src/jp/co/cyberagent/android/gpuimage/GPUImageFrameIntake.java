@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.graphics.ImageFormat;
+import android.hardware.Camera;
+import android.hardware.Camera.Size;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hands NV21 preview frames from the thread producing them to the OpenGL
+ * thread.<br>
+ * <br>
+ * There is a single slot, a frame posted while the previous one wasn't taken
+ * yet replaces it and the previous buffer is given back to its source right
+ * away. So the renderer always draws the latest frame and a slow frame never
+ * makes the camera run out of buffers. For a camera a fixed pool of callback
+ * buffers is allocated up front, see {@link #attach(Camera, Camera.PreviewCallback)}.
+ * Other sources, like {@link GPUImageSyntheticFrameSource}, post their own
+ * buffers through {@link #postFrame(byte[], BufferRecycler)}.
+ */
+public class GPUImageFrameIntake {
+    private static final int DEFAULT_BUFFER_COUNT = 3;
+    // One frame in the mailbox, one being converted and one being posted
+    private static final int FRAME_POOL_SIZE = 3;
+
+    /**
+     * Takes back buffers which aren't needed by the intake anymore.
+     */
+    public interface BufferRecycler {
+        void recycle(byte[] buffer);
+    }
+
+    private final AtomicReference<Frame> mMailbox = new AtomicReference<Frame>();
+    private volatile int mFrameWidth;
+    private volatile int mFrameHeight;
+    private final Frame[] mFreeFrames = new Frame[FRAME_POOL_SIZE];
+    private int mFreeFrameCount;
+    private Camera mAttachedCamera;
+    private int mAttachedBufferSize;
+
+    private final AtomicLong mReceivedCount = new AtomicLong();
+    private final AtomicLong mConvertedCount = new AtomicLong();
+    private final AtomicLong mDroppedCount = new AtomicLong();
+    private final AtomicLong mRecycledCount = new AtomicLong();
+
+    /**
+     * Sets the size of the frames posted from now on.
+     *
+     * @param width the width of the frames
+     * @param height the height of the frames
+     */
+    public void setFrameSize(final int width, final int height) {
+        mFrameWidth = width;
+        mFrameHeight = height;
+    }
+
+    public int getFrameWidth() {
+        return mFrameWidth;
+    }
+
+    public int getFrameHeight() {
+        return mFrameHeight;
+    }
+
+    /**
+     * Reads the preview size of the camera once and hands it a pool of
+     * preallocated callback buffers. Has to be called before the preview is
+     * started. Attaching the same camera again with an unchanged preview size
+     * only sets the callback, the camera still owns the buffers of the first
+     * call.
+     *
+     * @param camera the camera
+     * @param callback the callback receiving the frames, which has to post
+     *                 them to this intake
+     */
+    public void attach(final Camera camera, final Camera.PreviewCallback callback) {
+        attach(camera, callback, DEFAULT_BUFFER_COUNT);
+    }
+
+    /**
+     * @param camera the camera
+     * @param callback the callback receiving the frames, which has to post
+     *                 them to this intake
+     * @param bufferCount the number of callback buffers, at least 2
+     */
+    public void attach(final Camera camera, final Camera.PreviewCallback callback,
+            final int bufferCount) {
+        Camera.Parameters parameters = camera.getParameters();
+        Size size = parameters.getPreviewSize();
+        setFrameSize(size.width, size.height);
+        int bitsPerPixel = ImageFormat.getBitsPerPixel(parameters.getPreviewFormat());
+        int bufferSize = size.width * size.height * bitsPerPixel / 8;
+        synchronized (this) {
+            if (camera != mAttachedCamera || bufferSize != mAttachedBufferSize) {
+                for (int i = 0; i < Math.max(2, bufferCount); i++) {
+                    camera.addCallbackBuffer(new byte[bufferSize]);
+                }
+                mAttachedCamera = camera;
+                mAttachedBufferSize = bufferSize;
+            }
+        }
+        camera.setPreviewCallbackWithBuffer(callback);
+    }
+
+    /**
+     * Posts a frame of the current size, replacing a frame which hasn't been
+     * taken yet. Can be called from any thread.
+     *
+     * @param data the NV21 frame
+     * @param recycler takes the buffer back once it has been converted or
+     *                 dropped, may be null
+     */
+    public void postFrame(final byte[] data, final BufferRecycler recycler) {
+        mReceivedCount.incrementAndGet();
+        Frame previous = mMailbox.getAndSet(
+                obtainFrame(data, mFrameWidth, mFrameHeight, recycler));
+        if (previous != null) {
+            mDroppedCount.incrementAndGet();
+            recycle(previous);
+        }
+    }
+
+    /**
+     * Takes the latest frame, has to be balanced by {@link #release(Frame)}
+     * once it has been converted.
+     *
+     * @return the latest frame, or null if there is no new one
+     */
+    Frame take() {
+        return mMailbox.get() != null ? mMailbox.getAndSet(null) : null;
+    }
+
+    void release(final Frame frame) {
+        mConvertedCount.incrementAndGet();
+        recycle(frame);
+    }
+
+    /**
+     * Drops the frame waiting to be taken, if any.
+     */
+    public void clear() {
+        Frame previous = mMailbox.getAndSet(null);
+        if (previous != null) {
+            mDroppedCount.incrementAndGet();
+            recycle(previous);
+        }
+    }
+
+    private void recycle(final Frame frame) {
+        if (frame.mRecycler != null) {
+            frame.mRecycler.recycle(frame.mData);
+            mRecycledCount.incrementAndGet();
+        }
+        frame.mData = null;
+        frame.mRecycler = null;
+        synchronized (mFreeFrames) {
+            if (mFreeFrameCount < mFreeFrames.length) {
+                mFreeFrames[mFreeFrameCount++] = frame;
+            }
+        }
+    }
+
+    private Frame obtainFrame(final byte[] data, final int width, final int height,
+            final BufferRecycler recycler) {
+        Frame frame = null;
+        synchronized (mFreeFrames) {
+            if (mFreeFrameCount > 0) {
+                frame = mFreeFrames[--mFreeFrameCount];
+                mFreeFrames[mFreeFrameCount] = null;
+            }
+        }
+        if (frame == null) {
+            frame = new Frame();
+        }
+        frame.mData = data;
+        frame.mWidth = width;
+        frame.mHeight = height;
+        frame.mRecycler = recycler;
+        return frame;
+    }
+
+    /**
+     * @return the number of frames posted
+     */
+    public long getReceivedCount() {
+        return mReceivedCount.get();
+    }
+
+    /**
+     * @return the number of frames taken and converted by the renderer
+     */
+    public long getConvertedCount() {
+        return mConvertedCount.get();
+    }
+
+    /**
+     * @return the number of frames replaced by a newer one before they were
+     *         taken
+     */
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    /**
+     * @return the number of buffers given back to their source
+     */
+    public long getRecycledCount() {
+        return mRecycledCount.get();
+    }
+
+    /**
+     * A posted frame, reused for later frames once it has been released.
+     */
+    static final class Frame {
+        byte[] mData;
+        int mWidth;
+        int mHeight;
+        BufferRecycler mRecycler;
+    }
+}
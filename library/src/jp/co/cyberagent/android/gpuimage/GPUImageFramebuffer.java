@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.opengl.GLES20;
+
+/**
+ * An RGBA texture with a framebuffer object attached to it. Instances are
+ * handed out by {@link GPUImageFramebufferCache} and must only be used on the
+ * thread owning the OpenGL context they were created in.
+ */
+public class GPUImageFramebuffer {
+    private static final int BYTES_PER_PIXEL = 4;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int[] mFrameBuffer = new int[1];
+    private final int[] mTexture = new int[1];
+
+    GPUImageFramebuffer(final int width, final int height) {
+        mWidth = width;
+        mHeight = height;
+
+        GLES20.glGenFramebuffers(1, mFrameBuffer, 0);
+        GLES20.glGenTextures(1, mTexture, 0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTexture[0]);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFrameBuffer[0]);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                GLES20.GL_TEXTURE_2D, mTexture[0], 0);
+
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getFrameBuffer() {
+        return mFrameBuffer[0];
+    }
+
+    public int getTexture() {
+        return mTexture[0];
+    }
+
+    /**
+     * @return the number of bytes of texture memory backing this framebuffer
+     */
+    public long getSizeInBytes() {
+        return getSizeInBytes(mWidth, mHeight);
+    }
+
+    static long getSizeInBytes(final int width, final int height) {
+        return (long) width * height * BYTES_PER_PIXEL;
+    }
+
+    void destroy() {
+        GLES20.glDeleteTextures(1, mTexture, 0);
+        GLES20.glDeleteFramebuffers(1, mFrameBuffer, 0);
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+import javax.microedition.khronos.egl.EGL10;
+import javax.microedition.khronos.egl.EGLContext;
+
+/**
+ * Pool of intermediate render targets shared by all filters drawing in the
+ * same OpenGL context.<br>
+ * <br>
+ * Framebuffers are fetched right before a pass renders into them and returned
+ * as soon as the pass reading them has been drawn, so a linear chain of any
+ * length only ever holds two targets of a given size at once. Returned
+ * framebuffers stay in the pool and are reused by the next fetch of the same
+ * size, also across different filter groups.
+ */
+public class GPUImageFramebufferCache {
+    private static final Map<EGLContext, GPUImageFramebufferCache> sCaches =
+            new HashMap<EGLContext, GPUImageFramebufferCache>();
+
+    private final Map<Long, LinkedList<GPUImageFramebuffer>> mFreeFramebuffers =
+            new HashMap<Long, LinkedList<GPUImageFramebuffer>>();
+    private int mFramebufferCount;
+    private int mInUseCount;
+    private long mSizeInBytes;
+
+    private GPUImageFramebufferCache() {
+    }
+
+    /**
+     * Gets the cache of the OpenGL context which is current on the calling
+     * thread.
+     *
+     * @return the framebuffer cache of the current context
+     */
+    public static GPUImageFramebufferCache getInstance() {
+        EGLContext context = currentContext();
+        synchronized (sCaches) {
+            GPUImageFramebufferCache cache = sCaches.get(context);
+            if (cache == null) {
+                cache = new GPUImageFramebufferCache();
+                sCaches.put(context, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * Forgets all framebuffers known for the current context without deleting
+     * them. Has to be called when a new context was created, because the
+     * driver might hand out the same handle as a previously lost context.
+     * The entries of other contexts which were lost meanwhile are dropped too.
+     */
+    public static void onContextCreated() {
+        EGLContext context = currentContext();
+        synchronized (sCaches) {
+            sCaches.remove(context);
+            Iterator<EGLContext> iterator = sCaches.keySet().iterator();
+            while (iterator.hasNext()) {
+                if (OpenGlUtils.isContextLost(iterator.next())) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes all framebuffers of the current context. Has to be called
+     * before the context is destroyed.
+     */
+    public static void releaseCurrent() {
+        EGLContext context = currentContext();
+        GPUImageFramebufferCache cache;
+        synchronized (sCaches) {
+            cache = sCaches.remove(context);
+        }
+        if (cache != null) {
+            cache.purgeUnused();
+        }
+    }
+
+    private static EGLContext currentContext() {
+        return ((EGL10) EGLContext.getEGL()).eglGetCurrentContext();
+    }
+
+    /**
+     * Fetches a framebuffer with the given size, creating one if the pool has
+     * none available.
+     *
+     * @param width the width of the framebuffer
+     * @param height the height of the framebuffer
+     * @return a framebuffer which is exclusively owned by the caller until it
+     *         is given back with {@link #returnFramebuffer(GPUImageFramebuffer)}
+     */
+    public GPUImageFramebuffer fetchFramebuffer(final int width, final int height) {
+        mInUseCount++;
+        LinkedList<GPUImageFramebuffer> free = mFreeFramebuffers.get(key(width, height));
+        if (free != null && !free.isEmpty()) {
+            return free.removeFirst();
+        }
+        mFramebufferCount++;
+        mSizeInBytes += GPUImageFramebuffer.getSizeInBytes(width, height);
+        return new GPUImageFramebuffer(width, height);
+    }
+
+    /**
+     * Gives a framebuffer back to the pool so it can be reused.
+     *
+     * @param framebuffer the framebuffer previously fetched from this cache
+     */
+    public void returnFramebuffer(final GPUImageFramebuffer framebuffer) {
+        if (framebuffer == null) {
+            return;
+        }
+        mInUseCount--;
+        Long key = key(framebuffer.getWidth(), framebuffer.getHeight());
+        LinkedList<GPUImageFramebuffer> free = mFreeFramebuffers.get(key);
+        if (free == null) {
+            free = new LinkedList<GPUImageFramebuffer>();
+            mFreeFramebuffers.put(key, free);
+        }
+        free.addFirst(framebuffer);
+    }
+
+    /**
+     * Deletes all framebuffers which are currently not fetched.
+     */
+    public void purgeUnused() {
+        Iterator<LinkedList<GPUImageFramebuffer>> iterator =
+                mFreeFramebuffers.values().iterator();
+        while (iterator.hasNext()) {
+            for (GPUImageFramebuffer framebuffer : iterator.next()) {
+                mFramebufferCount--;
+                mSizeInBytes -= framebuffer.getSizeInBytes();
+                framebuffer.destroy();
+            }
+            iterator.remove();
+        }
+    }
+
+    /**
+     * @return the number of framebuffers owned by this cache, fetched or not
+     */
+    public int getFramebufferCount() {
+        return mFramebufferCount;
+    }
+
+    /**
+     * @return the number of framebuffers currently fetched
+     */
+    public int getInUseCount() {
+        return mInUseCount;
+    }
+
+    /**
+     * @return the texture memory held by this cache in bytes
+     */
+    public long getSizeInBytes() {
+        return mSizeInBytes;
+    }
+
+    private static Long key(final int width, final int height) {
+        return ((long) width << 32) | (height & 0xffffffffL);
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.opengl.GLES20;
+import android.util.SparseIntArray;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Draws a run of per-pixel color filters in a single pass.<br>
+ * <br>
+ * The fragment shader of every stage is rewritten into a function taking the
+ * color of the previous stage, with its uniforms and constants prefixed so they
+ * can't collide with the ones of the other stages. The stage filters stay
+ * initialized and keep working through their usual setters, their uniforms are
+ * redirected to the fused program.
+ */
+public class GPUImageFusedFilter extends GPUImageFilter {
+    private static final Set<Class<?>> FUSABLE_FILTERS = new HashSet<Class<?>>(Arrays.asList(
+            GPUImageBrightnessFilter.class,
+            GPUImageContrastFilter.class,
+            GPUImageSaturationFilter.class,
+            GPUImageGammaFilter.class,
+            GPUImageExposureFilter.class,
+            GPUImageRGBFilter.class,
+            GPUImageColorMatrixFilter.class,
+            GPUImageSepiaFilter.class,
+            GPUImageHueFilter.class,
+            GPUImageLevelsFilter.class,
+            GPUImageColorInvertFilter.class,
+            GPUImageGrayscaleFilter.class,
+            GPUImageOpacityFilter.class,
+            GPUImageMonochromeFilter.class,
+            GPUImageWhiteBalanceFilter.class,
+            GPUImageFalseColorFilter.class,
+            GPUImagePosterizeFilter.class,
+            GPUImageHighlightShadowFilter.class,
+            GPUImageAffineColorFilter.class
+    ));
+
+    private static final Pattern COMMENT = Pattern.compile("//[^\n]*|/\\*.*?\\*/", Pattern.DOTALL);
+    private static final Pattern MAIN = Pattern.compile("void\\s+main\\s*\\(\\s*(void)?\\s*\\)\\s*\\{");
+    private static final Pattern INPUT_SAMPLE =
+            Pattern.compile("texture2D\\s*\\(\\s*inputImageTexture\\s*,\\s*textureCoordinate\\s*\\)");
+    private static final Pattern DECLARATION =
+            Pattern.compile("^(uniform|const)\\s+(?:(?:lowp|mediump|highp)\\s+)?\\w+\\s+(\\w+)");
+
+    private final List<GPUImageFilter> mStages;
+
+    private GPUImageFusedFilter(final List<GPUImageFilter> stages, final String fragmentShader) {
+        super(NO_FILTER_VERTEX_SHADER, fragmentShader);
+        mStages = stages;
+    }
+
+    /**
+     * Replaces every run of at least two fusable filters in the given list
+     * with a single {@link GPUImageFusedFilter}. The filters in the list have
+     * to be initialized, the returned fused filters are initialized as well.
+     *
+     * @param filters the merged filters of a filter group
+     * @return the filters to draw, either the original ones or fused ones
+     */
+    public static List<GPUImageFilter> fuse(final List<GPUImageFilter> filters) {
+        List<GPUImageFilter> result = new ArrayList<GPUImageFilter>();
+        List<GPUImageFilter> run = new ArrayList<GPUImageFilter>();
+        for (GPUImageFilter filter : filters) {
+            if (isFusable(filter)) {
+                run.add(filter);
+            } else {
+                flushRun(run, result);
+                result.add(filter);
+            }
+        }
+        flushRun(run, result);
+        return result;
+    }
+
+    private static void flushRun(final List<GPUImageFilter> run, final List<GPUImageFilter> result) {
+        if (run.size() > 1) {
+            GPUImageFusedFilter fused = create(run);
+            if (fused != null) {
+                result.add(fused);
+                run.clear();
+                return;
+            }
+        }
+        result.addAll(run);
+        run.clear();
+    }
+
+    /**
+     * Checks whether the given filter only transforms the color of the pixel it
+     * is drawing, so its shader can be merged with others.
+     *
+     * @param filter the filter to check
+     * @return true, if the filter can be fused
+     */
+    public static boolean isFusable(final GPUImageFilter filter) {
+        // A stage sees the coordinates of the first pass, which unfused
+        // passes flip, so only filters ignoring the position can be fused
+        return FUSABLE_FILTERS.contains(filter.getClass())
+                && filter.getSamplingRadius() == 0
+                && NO_FILTER_VERTEX_SHADER.equals(filter.getVertexShader())
+                && filter.isInitialized()
+                && filter.getProgram() != 0;
+    }
+
+    private static GPUImageFusedFilter create(final List<GPUImageFilter> run) {
+        List<Stage> stages = new ArrayList<Stage>();
+        for (int i = 0; i < run.size(); i++) {
+            Stage stage = Stage.parse(run.get(i).getFragmentShader(), "s" + i + "_");
+            if (stage == null) {
+                return null;
+            }
+            stages.add(stage);
+        }
+
+        StringBuilder shader = new StringBuilder()
+                .append("#ifdef GL_FRAGMENT_PRECISION_HIGH\n")
+                .append("precision highp float;\n")
+                .append("#else\n")
+                .append("precision mediump float;\n")
+                .append("#endif\n")
+                .append("varying highp vec2 textureCoordinate;\n")
+                .append("uniform sampler2D inputImageTexture;\n");
+        for (Stage stage : stages) {
+            shader.append(stage.mDeclarations);
+        }
+        shader.append("void main()\n{\n")
+                .append("    highp vec4 color = texture2D(inputImageTexture, textureCoordinate);\n");
+        for (Stage stage : stages) {
+            // Every pass used to be written to an 8 bit texture, keep the clamping.
+            shader.append("    color = clamp(").append(stage.mPrefix).append("main(color), 0.0, 1.0);\n");
+        }
+        shader.append("    gl_FragColor = color;\n}\n");
+
+        GPUImageFusedFilter fused = new GPUImageFusedFilter(
+                new ArrayList<GPUImageFilter>(run), shader.toString());
+        fused.init();
+        if (fused.getProgram() == 0) {
+            fused.destroy();
+            return null;
+        }
+        for (int i = 0; i < run.size(); i++) {
+            run.get(i).setUniformLocationRemap(
+                    stages.get(i).createRemap(run.get(i).getProgram(), fused.getProgram()));
+        }
+        return fused;
+    }
+
+    /**
+     * Gets the filters whose shaders have been merged into this filter.
+     *
+     * @return the fused filters
+     */
+    public List<GPUImageFilter> getStages() {
+        return mStages;
+    }
+
+    @Override
+    protected void runPendingOnDrawTasks() {
+        super.runPendingOnDrawTasks();
+        for (GPUImageFilter stage : mStages) {
+            stage.runPendingOnDrawTasks();
+        }
+    }
+
+    @Override
+    void restoreUniforms() {
+        super.restoreUniforms();
+        for (GPUImageFilter stage : mStages) {
+            stage.restoreUniforms();
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        for (GPUImageFilter stage : mStages) {
+            stage.setUniformLocationRemap(null);
+        }
+        super.onDestroy();
+    }
+
+    private static class Stage {
+        private final String mPrefix;
+        private final List<String> mUniforms = new ArrayList<String>();
+        private final StringBuilder mDeclarations = new StringBuilder();
+
+        private Stage(final String prefix) {
+            mPrefix = prefix;
+        }
+
+        /**
+         * Rewrites a fragment shader into a function of the previous color.
+         *
+         * @return the parsed stage, or null if the shader is not in the
+         *         expected form
+         */
+        static Stage parse(final String fragmentShader, final String prefix) {
+            String source = COMMENT.matcher(fragmentShader).replaceAll("");
+            Matcher main = MAIN.matcher(source);
+            if (!main.find()) {
+                return null;
+            }
+            String globals = source.substring(0, main.start());
+            int bodyEnd = findClosingBrace(source, main.end());
+            if (bodyEnd < 0 || globals.indexOf('{') >= 0
+                    || source.substring(bodyEnd + 1).trim().length() > 0) {
+                return null;
+            }
+            String body = source.substring(main.end(), bodyEnd);
+
+            Stage stage = new Stage(prefix);
+            List<String> renamed = new ArrayList<String>();
+            StringBuilder declarations = new StringBuilder();
+            for (String statement : globals.split(";")) {
+                statement = statement.trim();
+                if (statement.length() == 0 || statement.startsWith("precision")) {
+                    continue;
+                }
+                if (statement.startsWith("varying")) {
+                    if (!statement.matches("varying\\s+(\\w+\\s+)?vec2\\s+textureCoordinate")) {
+                        return null;
+                    }
+                    continue;
+                }
+                if (statement.matches("uniform\\s+sampler2D\\s+inputImageTexture")) {
+                    continue;
+                }
+                Matcher declaration = DECLARATION.matcher(statement);
+                if (!declaration.find() || statement.contains("sampler")) {
+                    return null;
+                }
+                renamed.add(declaration.group(2));
+                if ("uniform".equals(declaration.group(1))) {
+                    stage.mUniforms.add(declaration.group(2));
+                }
+                declarations.append(statement).append(";\n");
+            }
+
+            Matcher sample = INPUT_SAMPLE.matcher(body);
+            body = sample.replaceAll(prefix + "inputColor");
+            if (body.contains("inputImageTexture")) {
+                return null;
+            }
+            body = body.replaceAll("\\bgl_FragColor\\b", prefix + "fragColor")
+                    .replaceAll("\\breturn\\s*;", "return " + prefix + "fragColor;");
+
+            String declarationSource = declarations.toString();
+            for (String name : renamed) {
+                String pattern = "\\b" + Pattern.quote(name) + "\\b";
+                declarationSource = declarationSource.replaceAll(pattern, prefix + name);
+                body = body.replaceAll(pattern, prefix + name);
+            }
+            stage.mDeclarations.append(declarationSource)
+                    .append("highp vec4 ").append(prefix).append("main(highp vec4 ")
+                    .append(prefix).append("inputColor)\n{\n")
+                    .append("    highp vec4 ").append(prefix).append("fragColor;\n")
+                    .append(body)
+                    .append("\n    return ").append(prefix).append("fragColor;\n}\n");
+            return stage;
+        }
+
+        private static int findClosingBrace(final String source, final int start) {
+            int depth = 1;
+            for (int i = start; i < source.length(); i++) {
+                char c = source.charAt(i);
+                if (c == '{') {
+                    depth++;
+                } else if (c == '}') {
+                    depth--;
+                    if (depth == 0) {
+                        return i;
+                    }
+                }
+            }
+            return -1;
+        }
+
+        SparseIntArray createRemap(final int stageProgram, final int fusedProgram) {
+            SparseIntArray remap = new SparseIntArray();
+            for (String uniform : mUniforms) {
+                int location = GLES20.glGetUniformLocation(stageProgram, uniform);
+                if (location != -1) {
+                    remap.put(location, GLES20.glGetUniformLocation(fusedProgram, mPrefix + uniform));
+                }
+            }
+            return remap;
+        }
+    }
+
+    @Override
+    public boolean isIdentity() {
+        for (GPUImageFilter stage : mStages) {
+            if (!stage.isIdentity()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int getSamplingRadius() {
+        // Only the shaders of per-pixel filters are fused
+        return 0;
+    }
+}
@@ -63,4 +63,14 @@ public class GPUImageGammaFilter extends GPUImageFilter {
         mGamma = gamma;
         setFloat(mGammaLocation, mGamma);
     }
+
+    @Override
+    public boolean isIdentity() {
+        return mGamma == 1.0f;
+    }
+
+    @Override
+    public int getSamplingRadius() {
+        return 0;
+    }
 }
@@ -169,6 +169,11 @@ public class GPUImageGaussianBlurFilter extends GPUImageTwoPassTextureSamplingFi
         });
     }
 
+    @Override
+    protected int getPassSamplingRadius() {
+        return mRadius;
+    }
+
     private void initLocaltion(int index) {
         GPUImageFilter filter = mFilters.get(index);
         mOffsetsLocation[index] = GLES20.glGetUniformLocation(filter.getProgram(), "blurSteps");
@@ -207,4 +212,10 @@ public class GPUImageGaussianBlurFilter extends GPUImageTwoPassTextureSamplingFi
         setUniforms(0);
         setUniforms(1);
     }
+
+    @Override
+    public boolean isIdentity() {
+        // All samples are taken from the pixel itself, the weights add up to 1
+        return mBlurSize == 0.0f;
+    }
 }
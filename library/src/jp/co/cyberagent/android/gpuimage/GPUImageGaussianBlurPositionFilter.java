@@ -165,4 +165,9 @@ public class GPUImageGaussianBlurPositionFilter extends GPUImageTwoPassTextureSa
         mRadius = radius;
         setFloat(mRadiusLocation, mRadius);
     }
+
+    @Override
+    public int getSamplingRadius() {
+        return SAMPLING_RADIUS_UNBOUNDED;
+    }
 }
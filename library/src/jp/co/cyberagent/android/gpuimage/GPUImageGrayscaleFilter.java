@@ -37,7 +37,25 @@ public class GPUImageGrayscaleFilter extends GPUImageFilter {
             "  gl_FragColor = vec4(vec3(luminance), textureColor.a);\n" +
             "}";
 
+    private static final float[] TRANSFORM = new float[] {
+            0.2125f, 0.7154f, 0.0721f, 0.0f, 0.0f,
+            0.2125f, 0.7154f, 0.0721f, 0.0f, 0.0f,
+            0.2125f, 0.7154f, 0.0721f, 0.0f, 0.0f,
+            0.0f, 0.0f, 0.0f, 1.0f, 0.0f
+    };
+
     public GPUImageGrayscaleFilter() {
         super(NO_FILTER_VERTEX_SHADER, GRAYSCALE_FRAGMENT_SHADER);
     }
+
+    @Override
+    public boolean getAffineColorTransform(final float[] transform) {
+        System.arraycopy(TRANSFORM, 0, transform, 0, 20);
+        return true;
+    }
+
+    @Override
+    public int getSamplingRadius() {
+        return 0;
+    }
 }
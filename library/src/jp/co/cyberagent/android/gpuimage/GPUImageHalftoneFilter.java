@@ -64,4 +64,9 @@ public class GPUImageHalftoneFilter extends GPUImageFilter {
         mAspectRatio = aspectRatio;
         setFloat(mAspectRatioLocation, mAspectRatio);
     }
+
+    @Override
+    public int getSamplingRadius() {
+        return SAMPLING_RADIUS_UNBOUNDED;
+    }
 }
@@ -94,4 +94,9 @@ public class GPUImageHazeFilter extends GPUImageFilter {
         mSlope = slope;
         setFloat(mSlopeLocation, slope);
     }
+
+    @Override
+    public int getSamplingRadius() {
+        return SAMPLING_RADIUS_UNBOUNDED;
+    }
 }
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.opengl.GLES20;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Base of the filters drawing into a framebuffer of their own, like the ones
+ * turning camera frames into an RGBA texture which the filter chain then
+ * draws like an uploaded image.
+ */
+abstract class GPUImageInputFilter extends GPUImageFilter {
+    private GPUImageFramebuffer mFramebuffer;
+    private final int[] mBoundFrameBuffer = new int[1];
+    private final int[] mViewport = new int[4];
+
+    GPUImageInputFilter(final String vertexShader, final String fragmentShader) {
+        super(vertexShader, fragmentShader);
+    }
+
+    /**
+     * Draws this filter into its framebuffer, which is (re)created with the
+     * given size, and restores the framebuffer and viewport afterwards.
+     *
+     * @return the texture of the framebuffer
+     */
+    int drawToFramebuffer(final int textureId, final int width, final int height,
+            final FloatBuffer textureBuffer) {
+        if (mFramebuffer != null
+                && (mFramebuffer.getWidth() != width || mFramebuffer.getHeight() != height)) {
+            destroyFramebuffer();
+        }
+        if (mFramebuffer == null) {
+            mFramebuffer = new GPUImageFramebuffer(width, height);
+        }
+        GLES20.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING, mBoundFrameBuffer, 0);
+        GLES20.glGetIntegerv(GLES20.GL_VIEWPORT, mViewport, 0);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffer.getFrameBuffer());
+        GLES20.glViewport(0, 0, width, height);
+
+        onDraw(textureId, GPUImageVertexBuffers.getCube(), textureBuffer);
+
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mBoundFrameBuffer[0]);
+        GLES20.glViewport(mViewport[0], mViewport[1], mViewport[2], mViewport[3]);
+        return mFramebuffer.getTexture();
+    }
+
+    /**
+     * @return the framebuffer drawn into by the last call to
+     *         {@link #drawToFramebuffer(int, int, int, FloatBuffer)}, or null
+     */
+    GPUImageFramebuffer getFramebuffer() {
+        return mFramebuffer;
+    }
+
+    void destroyFramebuffer() {
+        if (mFramebuffer != null) {
+            mFramebuffer.destroy();
+            mFramebuffer = null;
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        destroyFramebuffer();
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.graphics.Bitmap;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes a JPEG a few rows at a time, so an image can be encoded without ever
+ * being in memory as a whole, unlike with {@link Bitmap#compress}. The rows
+ * are encoded natively as baseline JPEG with 4:2:0 chroma, only 16 rows are
+ * buffered and the encoded bytes are passed on to the stream after every
+ * call.
+ */
+public class GPUImageJpegWriter {
+    private final OutputStream mOut;
+    private final int mHeight;
+    private final byte[] mBuffer = new byte[64 * 1024];
+    private long mEncoder;
+    private int mRowsWritten;
+
+    /**
+     * @param out the stream receiving the JPEG, it isn't closed
+     * @param width the width of the image
+     * @param height the height of the image
+     * @param quality 1 - 100, like for {@link Bitmap#compress}
+     */
+    public GPUImageJpegWriter(final OutputStream out, final int width, final int height,
+            final int quality) throws IOException {
+        mOut = out;
+        mHeight = height;
+        mEncoder = GPUImageNativeLibrary.JpegEncoderCreate(width, height, quality);
+        try {
+            drain();
+        } catch (IOException e) {
+            release();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes the next rows of the image.
+     *
+     * @param rows an ARGB_8888 bitmap as wide as the image holding the rows
+     *             at its top, the alpha is ignored
+     * @param count the number of rows
+     */
+    public void writeRows(final Bitmap rows, final int count) throws IOException {
+        checkNotReleased();
+        if (count > mHeight - mRowsWritten) {
+            throw new IllegalArgumentException("Only " + (mHeight - mRowsWritten)
+                    + " rows left");
+        }
+        mRowsWritten += GPUImageNativeLibrary.JpegEncoderWriteRows(mEncoder, rows, count);
+        drain();
+    }
+
+    /**
+     * Ends the image and releases the encoder. Rows which haven't been
+     * written are filled with the last row written, or black if there is
+     * none, so the file always has the height it was created with.
+     */
+    public void finish() throws IOException {
+        checkNotReleased();
+        try {
+            GPUImageNativeLibrary.JpegEncoderFinish(mEncoder);
+            drain();
+            mOut.flush();
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Releases the encoder without ending the image, e.g. after an error.
+     */
+    public void release() {
+        if (mEncoder != 0) {
+            GPUImageNativeLibrary.JpegEncoderDestroy(mEncoder);
+            mEncoder = 0;
+        }
+    }
+
+    private void drain() throws IOException {
+        int count;
+        while ((count = GPUImageNativeLibrary.JpegEncoderRead(mEncoder, mBuffer)) > 0) {
+            mOut.write(mBuffer, 0, count);
+        }
+    }
+
+    private void checkNotReleased() {
+        if (mEncoder == 0) {
+            throw new IllegalStateException("The writer has been released");
+        }
+    }
+}
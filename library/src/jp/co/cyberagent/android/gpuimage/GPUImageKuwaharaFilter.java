@@ -148,4 +148,9 @@ public class GPUImageKuwaharaFilter extends GPUImageFilter {
         mRadius = radius;
         setInteger(mRadiusLocation, radius);
     }
+
+    @Override
+    public int getSamplingRadius() {
+        return mRadius;
+    }
 }
@@ -127,4 +127,9 @@ public class GPUImageLevelsFilter extends GPUImageFilter{
     public void setBlueMin(float min, float mid , float max ){
         setBlueMin(min, mid, max, 0, 1);
     }
+
+    @Override
+    public int getSamplingRadius() {
+        return 0;
+    }
 }
@@ -83,8 +83,13 @@ public class GPUImageLite {
      */
     public void setImage(final Bitmap bitmap) {
         mCurrentBitmap = bitmap;
-        mPixelBuffer = new PixelBuffer(mCurrentBitmap.getWidth(), mCurrentBitmap.getHeight());
-        mPixelBuffer.setRenderer(mRenderer);
+        if (mPixelBuffer != null) {
+            // Keeps the context, the filter stays initialized
+            mPixelBuffer.setSize(bitmap.getWidth(), bitmap.getHeight());
+        } else {
+            mPixelBuffer = new PixelBuffer(bitmap.getWidth(), bitmap.getHeight());
+            mPixelBuffer.setRenderer(mRenderer);
+        }
         mRenderer.setImageBitmap(bitmap, false);
         requestRender();
     }
@@ -152,12 +157,23 @@ public class GPUImageLite {
     }
 
     /**
-     * Gets the given bitmap with current filter applied as a Bitmap.
+     * Gets the given bitmap with current filter applied as a Bitmap. Unless
+     * the image is flipped, it is drawn by the {@link GPUImageEngine} shared
+     * with {@link GPUImage}.
      *
      * @param bitmap the bitmap on which the current filter should be applied
      * @return the bitmap with filter applied
      */
     public Bitmap getBitmapWithFilterApplied(final Bitmap bitmap) {
+        if (!mRenderer.isFlippedHorizontally() && !mRenderer.isFlippedVertically()) {
+            if (mPixelBuffer != null) {
+                // Drawn in the context of the engine until it is set again
+                mFilter.releaseGL();
+            }
+            Bitmap result = GPUImage.applyOnSharedEngine(bitmap, mFilter);
+            mRenderer.setFilter(mFilter);
+            return result;
+        }
 
         GPUImageRenderer renderer = new GPUImageRenderer(mFilter);
         renderer.setRotation(Rotation.NORMAL,
@@ -167,7 +183,7 @@ public class GPUImageLite {
         buffer.setRenderer(renderer);
         renderer.setImageBitmap(bitmap, false);
         Bitmap result = buffer.getBitmap();
-        mFilter.destroy();
+        mFilter.releaseGL();
         renderer.deleteImage();
         buffer.destroy();
 
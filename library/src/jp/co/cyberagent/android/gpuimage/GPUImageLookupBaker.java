@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import jp.co.cyberagent.android.gpuimage.util.DigestUtil;
+
+/**
+ * Bakes chains of color-only filters into the 512x512 lookup image used by
+ * {@link GPUImageLookupFilter}.<br>
+ * <br>
+ * The chain is drawn once over the identity lookup image, afterwards the
+ * whole chain can be replaced by a single lookup pass costing one texture
+ * fetch per pixel, no matter how many filters it had. Baked images are cached
+ * in memory and as PNG in the cache directory of the application, keyed by a
+ * signature made of the given key and the filter classes of the chain.<br>
+ * <br>
+ * The lookup image has 64 levels per channel which are linearly interpolated,
+ * so filters with hard steps or depending on the position of the pixel can't
+ * be baked. Changes to the alpha channel are ignored by the lookup filter and
+ * aren't baked either.
+ */
+public class GPUImageLookupBaker {
+    private static final String TAG = "GPUImageLookupBaker";
+    private static final String CACHE_DIRECTORY = "gpuimage_lookup";
+    private static final int LOOKUP_SIZE = 512;
+    private static final int LEVELS = 64;
+    private static final int TILES_PER_ROW = 8;
+    private static final int MAX_MEMORY_ENTRIES = 4;
+
+    private static final Set<Class<?>> BAKEABLE_FILTERS = new HashSet<Class<?>>(Arrays.asList(
+            GPUImageFilter.class,
+            GPUImageBrightnessFilter.class,
+            GPUImageContrastFilter.class,
+            GPUImageSaturationFilter.class,
+            GPUImageGammaFilter.class,
+            GPUImageExposureFilter.class,
+            GPUImageRGBFilter.class,
+            GPUImageColorMatrixFilter.class,
+            GPUImageSepiaFilter.class,
+            GPUImageHueFilter.class,
+            GPUImageLevelsFilter.class,
+            GPUImageColorInvertFilter.class,
+            GPUImageGrayscaleFilter.class,
+            GPUImageMonochromeFilter.class,
+            GPUImageWhiteBalanceFilter.class,
+            GPUImageFalseColorFilter.class,
+            GPUImageColorBalanceFilter.class,
+            GPUImageToneCurveFilter.class,
+            GPUImageLookupFilter.class,
+            GPUImageAffineColorFilter.class
+    ));
+
+    private static Bitmap sIdentity;
+
+    private final File mCacheDirectory;
+    private final Map<String, Bitmap> mMemoryCache = Collections.synchronizedMap(
+            new LinkedHashMap<String, Bitmap>(MAX_MEMORY_ENTRIES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<String, Bitmap> eldest) {
+                    return size() > MAX_MEMORY_ENTRIES;
+                }
+            });
+
+    /**
+     * @param context the context used to locate the cache directory
+     */
+    public GPUImageLookupBaker(final Context context) {
+        this(new File(context.getCacheDir(), CACHE_DIRECTORY));
+    }
+
+    /**
+     * @param cacheDirectory the directory the baked lookup images are stored
+     *                       in, or null to only cache them in memory
+     */
+    public GPUImageLookupBaker(final File cacheDirectory) {
+        mCacheDirectory = cacheDirectory;
+    }
+
+    /**
+     * Checks whether the given filter, or all filters of the given group, only
+     * map the color of a pixel to another color and can be baked.
+     *
+     * @param filter the filter or filter group to check
+     * @return true, if the filter can be replaced by a lookup filter
+     */
+    public static boolean isBakeable(final GPUImageFilter filter) {
+        if (filter instanceof GPUImageFilterGroup) {
+            List<GPUImageFilter> filters = ((GPUImageFilterGroup) filter).getMergedFilters();
+            if (filters == null) {
+                return false;
+            }
+            for (GPUImageFilter merged : filters) {
+                if (!isBakeable(merged)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (!BAKEABLE_FILTERS.contains(filter.getClass())) {
+            return false;
+        }
+        float[] transform = new float[20];
+        if (filter.getAffineColorTransform(transform)) {
+            // Only a transform keeping the alpha channel untouched can be baked
+            return transform[15] == 0.0f && transform[16] == 0.0f && transform[17] == 0.0f
+                    && transform[18] == 1.0f && transform[19] == 0.0f;
+        }
+        return true;
+    }
+
+    /**
+     * Gets a lookup filter drawing the same result as the given chain, baking
+     * the lookup image if it isn't cached yet. Baking renders in an offscreen
+     * context owned by the calling thread, so this must not be called on the
+     * thread of a GLSurfaceView. The chain is destroyed after it was drawn.
+     *
+     * @param key identifies the parameters of the chain, for example the name
+     *            and version of a preset; chains with the same key and filter
+     *            classes share a lookup image
+     * @param filter the filter or filter group to bake
+     * @return a new lookup filter, or the given filter if it can't be baked
+     */
+    public GPUImageFilter getLookupFilter(final String key, final GPUImageFilter filter) {
+        if (!isBakeable(filter)) {
+            return filter;
+        }
+        GPUImageLookupFilter lookupFilter = new GPUImageLookupFilter();
+        lookupFilter.setBitmap(getLookupBitmap(key, filter));
+        return lookupFilter;
+    }
+
+    /**
+     * Gets the lookup image for the given chain, baking it if it isn't cached
+     * yet. The returned bitmap is shared by the cache and must not be
+     * recycled.
+     *
+     * @param key identifies the parameters of the chain
+     * @param filter the filter or filter group to bake
+     * @return the 512x512 lookup image
+     */
+    public Bitmap getLookupBitmap(final String key, final GPUImageFilter filter) {
+        String signature = getSignature(key, filter);
+        Bitmap lookup = mMemoryCache.get(signature);
+        if (lookup != null && !lookup.isRecycled()) {
+            return lookup;
+        }
+
+        lookup = null;
+        File file = mCacheDirectory != null ? new File(mCacheDirectory, signature + ".png") : null;
+        if (file != null && file.exists()) {
+            lookup = loadLookupBitmap(file);
+        }
+        if (lookup == null) {
+            lookup = bake(filter);
+            if (file != null) {
+                saveLookupBitmap(lookup, file);
+            }
+        }
+        mMemoryCache.put(signature, lookup);
+        return lookup;
+    }
+
+    /**
+     * Renders the given filter over the identity lookup image.
+     *
+     * @param filter the filter or filter group to bake
+     * @return the 512x512 lookup image
+     */
+    public static Bitmap bake(final GPUImageFilter filter) {
+        GPUImageRenderer renderer = new GPUImageRenderer(filter);
+        renderer.setImageBitmap(getIdentity(), false);
+        PixelBuffer buffer = new PixelBuffer(LOOKUP_SIZE, LOOKUP_SIZE);
+        buffer.setRenderer(renderer);
+        // The renderer draws upright, read it back with the top row first so
+        // the tiles keep the layout of the identity image
+        Bitmap lookup = Bitmap.createBitmap(LOOKUP_SIZE, LOOKUP_SIZE, Bitmap.Config.ARGB_8888);
+        buffer.readPixels(lookup);
+        filter.destroy();
+        renderer.deleteImage();
+        buffer.destroy();
+        return lookup;
+    }
+
+    /**
+     * Removes all baked lookup images from memory and disk.
+     */
+    public void clear() {
+        mMemoryCache.clear();
+        if (mCacheDirectory == null) {
+            return;
+        }
+        File[] files = mCacheDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Gets the lookup image mapping every color to itself.
+     *
+     * @return the identity lookup image
+     */
+    public static synchronized Bitmap getIdentity() {
+        if (sIdentity == null) {
+            int[] pixels = new int[LOOKUP_SIZE * LOOKUP_SIZE];
+            for (int blue = 0; blue < LEVELS; blue++) {
+                int tileX = (blue % TILES_PER_ROW) * LEVELS;
+                int tileY = (blue / TILES_PER_ROW) * LEVELS;
+                for (int green = 0; green < LEVELS; green++) {
+                    for (int red = 0; red < LEVELS; red++) {
+                        pixels[(tileY + green) * LOOKUP_SIZE + tileX + red] = 0xff000000
+                                | toByte(red) << 16 | toByte(green) << 8 | toByte(blue);
+                    }
+                }
+            }
+            sIdentity = Bitmap.createBitmap(pixels, LOOKUP_SIZE, LOOKUP_SIZE,
+                    Bitmap.Config.ARGB_8888);
+        }
+        return sIdentity;
+    }
+
+    private static int toByte(final int level) {
+        return (level * 255 + (LEVELS - 1) / 2) / (LEVELS - 1);
+    }
+
+    private static String getSignature(final String key, final GPUImageFilter filter) {
+        StringBuilder signature = new StringBuilder(key);
+        List<GPUImageFilter> filters = filter instanceof GPUImageFilterGroup
+                ? ((GPUImageFilterGroup) filter).getMergedFilters() : null;
+        if (filters != null) {
+            for (GPUImageFilter merged : filters) {
+                signature.append('|').append(merged.getClass().getName());
+            }
+        } else {
+            signature.append('|').append(filter.getClass().getName());
+        }
+        return DigestUtil.md5(signature.toString());
+    }
+
+    private static Bitmap loadLookupBitmap(final File file) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        Bitmap lookup = BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+        if (lookup != null
+                && (lookup.getWidth() != LOOKUP_SIZE || lookup.getHeight() != LOOKUP_SIZE)) {
+            lookup.recycle();
+            return null;
+        }
+        return lookup;
+    }
+
+    private void saveLookupBitmap(final Bitmap lookup, final File file) {
+        if (!mCacheDirectory.isDirectory() && !mCacheDirectory.mkdirs()) {
+            Log.w(TAG, "Could not create " + mCacheDirectory);
+            return;
+        }
+        File temp = new File(mCacheDirectory, file.getName() + ".tmp");
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            lookup.compress(Bitmap.CompressFormat.PNG, 100, out);
+            out.close();
+            out = null;
+            if (!temp.renameTo(file)) {
+                temp.delete();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not store lookup image", e);
+            temp.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -85,4 +85,15 @@ public class GPUImageLookupFilter extends GPUImageTwoInputFilter {
         mIntensity = intensity;
         setFloat(mIntensityLocation, mIntensity);
     }
+
+    @Override
+    public int getSamplingRadius() {
+        // The lookup table is the same for every pixel
+        return 0;
+    }
+
+    @Override
+    public boolean isIdentity() {
+        return mIntensity == 0.0f;
+    }
 }
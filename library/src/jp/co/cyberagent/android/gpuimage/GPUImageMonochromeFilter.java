@@ -98,4 +98,9 @@ public class GPUImageMonochromeFilter extends GPUImageFilter {
     public void setColorRed(final float red, final float green, final float blue) {
         setFloatVec3(mFilterColorLocation, new float[]{ red, green, blue });
     }
+
+    @Override
+    public int getSamplingRadius() {
+        return 0;
+    }
 }
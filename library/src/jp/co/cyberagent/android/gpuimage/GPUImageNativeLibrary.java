@@ -18,14 +18,85 @@ package jp.co.cyberagent.android.gpuimage;
 
 import android.graphics.Bitmap;
 
+import java.nio.ByteBuffer;
+
 public class GPUImageNativeLibrary {
+    /** Y plane followed by interleaved V and U, the default camera preview format. */
+    public static final int FORMAT_NV21 = 0;
+    /** Y plane followed by interleaved U and V. */
+    public static final int FORMAT_NV12 = 1;
+    /** Y plane followed by a U plane and a V plane. */
+    public static final int FORMAT_I420 = 2;
+
     static {
         System.loadLibrary("gpuimage-library");
     }
 
+    /**
+     * Converts a YUV 4:2:0 frame to RGBA. Rows are split across a few native
+     * threads and converted with NEON where available.
+     *
+     * @param yuv the frame
+     * @param format one of the FORMAT constants
+     * @param width the width of the frame
+     * @param height the height of the frame
+     * @param yStride the number of bytes per row of the Y plane
+     * @param uvStride the number of bytes per row of the chroma planes
+     * @param out a direct buffer receiving width * height RGBA pixels
+     */
+    public static native void YUVtoRGBA(byte[] yuv, int format, int width, int height,
+            int yStride, int uvStride, ByteBuffer out);
+
+    /**
+     * Same as {@link #YUVtoRGBA(byte[], int, int, int, int, int, ByteBuffer)}
+     * for a frame in a direct buffer, which doesn't have to be pinned.
+     */
+    public static native void YUVBufferToRGBA(ByteBuffer yuv, int format, int width, int height,
+            int yStride, int uvStride, ByteBuffer out);
+
     public static native void YUVtoRBGA(byte[] yuv, int width, int height, int[] out);
 
     public static native void YUVtoARBG(byte[] yuv, int width, int height, int[] out);
 
     public static native boolean CopyToBitmap(Bitmap bitmap);
+
+    /**
+     * Reads the lower left corner of the bound framebuffer as RGBA into the
+     * bound GL_PIXEL_PACK_BUFFER, starting at offset 0.
+     *
+     * @param width the width of the region
+     * @param height the height of the region
+     */
+    public static native void ReadPixelsToPackBuffer(int width, int height);
+
+    /**
+     * Starts a baseline JPEG with 4:2:0 chroma, see {@link GPUImageJpegWriter}.
+     *
+     * @param width the width of the image
+     * @param height the height of the image
+     * @param quality 1 - 100
+     * @return the native encoder, which has to be destroyed
+     */
+    public static native long JpegEncoderCreate(int width, int height, int quality);
+
+    /**
+     * Encodes the top rows of an ARGB_8888 bitmap, the alpha is ignored.
+     *
+     * @return the number of rows taken, less than count past the last row
+     */
+    public static native int JpegEncoderWriteRows(long encoder, Bitmap rows, int count);
+
+    /**
+     * Ends the image, repeating the last row if rows are missing.
+     */
+    public static native void JpegEncoderFinish(long encoder);
+
+    /**
+     * Moves encoded bytes into the buffer.
+     *
+     * @return the number of bytes moved, 0 once all have been read
+     */
+    public static native int JpegEncoderRead(long encoder, byte[] buffer);
+
+    public static native void JpegEncoderDestroy(long encoder);
 }
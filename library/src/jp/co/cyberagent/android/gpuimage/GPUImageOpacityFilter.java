@@ -64,4 +64,20 @@ public class GPUImageOpacityFilter extends GPUImageFilter {
         mOpacity = opacity;
         setFloat(mOpacityLocation, mOpacity);
     }
+
+    @Override
+    public boolean getAffineColorTransform(final float[] transform) {
+        GPUImageAffineColorFilter.setScale(transform, 1.0f, 1.0f, 1.0f, mOpacity, 0.0f);
+        return true;
+    }
+
+    @Override
+    public boolean isIdentity() {
+        return mOpacity == 1.0f;
+    }
+
+    @Override
+    public int getSamplingRadius() {
+        return 0;
+    }
 }
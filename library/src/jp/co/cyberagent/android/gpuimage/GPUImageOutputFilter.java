@@ -0,0 +1,502 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converts an image into the pixel format of a readback, so it can be read
+ * with a single glReadPixels straight into the caller's buffer.<br>
+ * <br>
+ * glReadPixels only reliably returns RGBA, so the other formats are packed
+ * into RGBA texels by the shader: two RGB565 pixels or four luma samples per
+ * texel, and for NV21 and I420 the luma rows followed by the chroma rows in a
+ * target a quarter as wide as the image. The shader also takes care of the
+ * row order, the first row read back is always the top row of the image, so
+ * nothing is left to be done on the CPU.<br>
+ * <br>
+ * To feed an encoder, pass one to
+ * {@link GPUImageEngine#submit(android.graphics.Bitmap, GPUImageFilter, GPUImageOutputFilter, ByteBuffer)},
+ * it then runs after the last filter of the group and only its 1.5 bytes per
+ * pixel are read back.
+ */
+public class GPUImageOutputFilter extends GPUImageInputFilter {
+    /** 4 bytes per pixel, R G B A. */
+    public static final int FORMAT_RGBA = 0;
+    /** 2 bytes per pixel, as in an RGB_565 bitmap. The width has to be even. */
+    public static final int FORMAT_RGB565 = 1;
+    /** 1 byte per pixel, the luma. The width has to be a multiple of 4. */
+    public static final int FORMAT_LUMINANCE = 2;
+    /**
+     * The luma plane followed by interleaved V and U at half resolution. The
+     * width has to be a multiple of 4 and the height even.
+     */
+    public static final int FORMAT_NV21 = 3;
+    /**
+     * The luma plane followed by the U and the V plane at half resolution.
+     * The width has to be a multiple of 8 and the height a multiple of 4.
+     */
+    public static final int FORMAT_I420 = 4;
+    static final int FORMAT_COUNT = 5;
+
+    private static final String HEADER = "" +
+            "precision highp float;\n" +
+            " \n" +
+            "uniform sampler2D inputImageTexture;\n" +
+            "uniform vec2 inputSize;\n" +
+            "uniform float flipVertical;\n" +
+            "uniform mediump mat3 colorConversion;\n" +
+            "uniform mediump vec3 colorOffset;\n" +
+            " \n" +
+            "// position in pixels from the top left corner of the image\n" +
+            "vec4 pixel(vec2 position)\n" +
+            "{\n" +
+            "    vec2 coordinate = position / inputSize;\n" +
+            "    coordinate.y = mix(coordinate.y, 1.0 - coordinate.y, flipVertical);\n" +
+            "    return texture2D(inputImageTexture, coordinate);\n" +
+            "}\n" +
+            " \n" +
+            "vec3 yuv(vec2 position)\n" +
+            "{\n" +
+            "    return colorConversion * pixel(position).rgb + colorOffset;\n" +
+            "}\n" +
+            " \n" +
+            "vec4 lumaTexel(vec2 position)\n" +
+            "{\n" +
+            "    return vec4(yuv(position).x, yuv(position + vec2(1.0, 0.0)).x,\n" +
+            "            yuv(position + vec2(2.0, 0.0)).x, yuv(position + vec2(3.0, 0.0)).x);\n" +
+            "}\n";
+
+    private static final String RGBA_FRAGMENT_SHADER = HEADER +
+            " \n" +
+            "void main()\n" +
+            "{\n" +
+            "    gl_FragColor = pixel(gl_FragCoord.xy);\n" +
+            "}";
+
+    private static final String RGB565_FRAGMENT_SHADER = HEADER +
+            " \n" +
+            "// The low and the high byte of a little endian RGB565 pixel\n" +
+            "vec2 pack565(vec3 color)\n" +
+            "{\n" +
+            "    vec3 c = floor(color * vec3(31.0, 63.0, 31.0) + 0.5);\n" +
+            "    return vec2(mod(c.g, 8.0) * 32.0 + c.b, c.r * 8.0 + floor(c.g / 8.0)) / 255.0;\n" +
+            "}\n" +
+            " \n" +
+            "void main()\n" +
+            "{\n" +
+            "    vec2 position = vec2(floor(gl_FragCoord.x) * 2.0 + 0.5, gl_FragCoord.y);\n" +
+            "    gl_FragColor = vec4(pack565(pixel(position).rgb),\n" +
+            "            pack565(pixel(position + vec2(1.0, 0.0)).rgb));\n" +
+            "}";
+
+    private static final String LUMINANCE_FRAGMENT_SHADER = HEADER +
+            " \n" +
+            "void main()\n" +
+            "{\n" +
+            "    gl_FragColor = lumaTexel(vec2(floor(gl_FragCoord.x) * 4.0 + 0.5, gl_FragCoord.y));\n" +
+            "}";
+
+    // Chroma is sampled at the corner shared by the 4 pixels it covers, where
+    // linear filtering returns their average
+    private static final String NV21_FRAGMENT_SHADER = HEADER +
+            " \n" +
+            "void main()\n" +
+            "{\n" +
+            "    float x = floor(gl_FragCoord.x);\n" +
+            "    float y = floor(gl_FragCoord.y);\n" +
+            "    if (y < inputSize.y) {\n" +
+            "        gl_FragColor = lumaTexel(vec2(x * 4.0 + 0.5, y + 0.5));\n" +
+            "    } else {\n" +
+            "        vec2 position = vec2(x * 4.0 + 1.0, (y - inputSize.y) * 2.0 + 1.0);\n" +
+            "        vec3 first = yuv(position);\n" +
+            "        vec3 second = yuv(position + vec2(2.0, 0.0));\n" +
+            "        gl_FragColor = vec4(first.z, first.y, second.z, second.y);\n" +
+            "    }\n" +
+            "}";
+
+    // Every row of the target holds two rows of a chroma plane
+    private static final String I420_FRAGMENT_SHADER = HEADER +
+            " \n" +
+            "void main()\n" +
+            "{\n" +
+            "    float x = floor(gl_FragCoord.x);\n" +
+            "    float y = floor(gl_FragCoord.y);\n" +
+            "    if (y < inputSize.y) {\n" +
+            "        gl_FragColor = lumaTexel(vec2(x * 4.0 + 0.5, y + 0.5));\n" +
+            "    } else {\n" +
+            "        float row = y - inputSize.y;\n" +
+            "        float planeRows = inputSize.y / 4.0;\n" +
+            "        float plane = step(planeRows, row);\n" +
+            "        float rowTexels = inputSize.x / 8.0;\n" +
+            "        float second = step(rowTexels, x);\n" +
+            "        vec2 chroma = vec2((x - second * rowTexels) * 4.0,\n" +
+            "                (row - plane * planeRows) * 2.0 + second);\n" +
+            "        vec2 position = chroma * 2.0 + 1.0;\n" +
+            "        gl_FragColor = vec4(mix(yuv(position).y, yuv(position).z, plane),\n" +
+            "                mix(yuv(position + vec2(2.0, 0.0)).y, yuv(position + vec2(2.0, 0.0)).z, plane),\n" +
+            "                mix(yuv(position + vec2(4.0, 0.0)).y, yuv(position + vec2(4.0, 0.0)).z, plane),\n" +
+            "                mix(yuv(position + vec2(6.0, 0.0)).y, yuv(position + vec2(6.0, 0.0)).z, plane));\n" +
+            "    }\n" +
+            "}";
+
+    private static final String[] FRAGMENT_SHADERS = {
+            RGBA_FRAGMENT_SHADER, RGB565_FRAGMENT_SHADER, LUMINANCE_FRAGMENT_SHADER,
+            NV21_FRAGMENT_SHADER, I420_FRAGMENT_SHADER
+    };
+
+    // Column major, one column each for R, G and B, indexed by the
+    // COLOR_SPACE constants of GPUImageYUVInputFilter
+    private static final float[][] CONVERSIONS = {
+            {
+                    0.299f, -0.168736f, 0.5f,
+                    0.587f, -0.331264f, -0.418688f,
+                    0.114f, 0.5f, -0.081312f
+            },
+            {
+                    0.256788f, -0.148224f, 0.439216f,
+                    0.504129f, -0.290992f, -0.367788f,
+                    0.097906f, 0.439216f, -0.071427f
+            },
+            {
+                    0.182584f, -0.100643f, 0.439216f,
+                    0.614231f, -0.338573f, -0.398941f,
+                    0.062008f, 0.439216f, -0.040275f
+            }
+    };
+    private static final float[][] OFFSETS = {
+            {0.0f, 128.0f / 255.0f, 128.0f / 255.0f},
+            {16.0f / 255.0f, 128.0f / 255.0f, 128.0f / 255.0f},
+            {16.0f / 255.0f, 128.0f / 255.0f, 128.0f / 255.0f}
+    };
+
+    private final int mFormat;
+    private int mInputSizeUniform;
+    private int mFlipVerticalUniform;
+    private int mColorConversionUniform;
+    private int mColorOffsetUniform;
+    private int mColorSpace = GPUImageYUVInputFilter.COLOR_SPACE_BT601_FULL_RANGE;
+    private boolean mFlipVertical;
+    private int mInputWidth;
+    private int mInputHeight;
+
+    private final int[] mBoundFrameBuffer = new int[1];
+    private final int[] mAlphaBits = new int[1];
+    private int mCopyTexture = OpenGlUtils.NO_TEXTURE;
+    private int mCopyFormat;
+    private int mCopyWidth;
+    private int mCopyHeight;
+
+    /**
+     * @param format one of the FORMAT constants
+     */
+    public GPUImageOutputFilter(final int format) {
+        super(NO_FILTER_VERTEX_SHADER, FRAGMENT_SHADERS[checkFormat(format)]);
+        mFormat = format;
+    }
+
+    @Override
+    public void onInit() {
+        super.onInit();
+        mInputSizeUniform = GLES20.glGetUniformLocation(getProgram(), "inputSize");
+        mFlipVerticalUniform = GLES20.glGetUniformLocation(getProgram(), "flipVertical");
+        mColorConversionUniform = GLES20.glGetUniformLocation(getProgram(), "colorConversion");
+        mColorOffsetUniform = GLES20.glGetUniformLocation(getProgram(), "colorOffset");
+    }
+
+    @Override
+    public void onInitialized() {
+        super.onInitialized();
+        setColorSpace(mColorSpace);
+        setFlipVertical(mFlipVertical);
+        if (mInputWidth != 0) {
+            setFloatVec2(mInputSizeUniform, new float[]{mInputWidth, mInputHeight});
+        }
+    }
+
+    public int getFormat() {
+        return mFormat;
+    }
+
+    /**
+     * Sets how luma and chroma are computed for the YUV formats and
+     * {@link #FORMAT_LUMINANCE}.
+     *
+     * @param colorSpace one of the COLOR_SPACE constants of
+     *                   {@link GPUImageYUVInputFilter}
+     */
+    public void setColorSpace(final int colorSpace) {
+        if (colorSpace < 0 || colorSpace >= CONVERSIONS.length) {
+            throw new IllegalArgumentException("Unknown color space " + colorSpace);
+        }
+        mColorSpace = colorSpace;
+        if (isInitialized()) {
+            setUniformMatrix3f(mColorConversionUniform, CONVERSIONS[colorSpace]);
+            setFloatVec3(mColorOffsetUniform, OFFSETS[colorSpace]);
+        }
+    }
+
+    public int getColorSpace() {
+        return mColorSpace;
+    }
+
+    /**
+     * Sets whether the first row of the input is the bottom row of the
+     * image, which is the case for anything the renderer has drawn upright.
+     * Images uploaded from a bitmap have their top row first.
+     *
+     * @param flipVertical true if the input is stored bottom row first
+     */
+    public void setFlipVertical(final boolean flipVertical) {
+        mFlipVertical = flipVertical;
+        if (isInitialized()) {
+            setFloat(mFlipVerticalUniform, flipVertical ? 1.0f : 0.0f);
+        }
+    }
+
+    /**
+     * Gets the number of RGBA texels per row read back for an image.
+     *
+     * @param format one of the FORMAT constants
+     * @param width the width of the image
+     * @return the width of the readback
+     */
+    public static int getReadbackWidth(final int format, final int width) {
+        switch (checkFormat(format)) {
+            case FORMAT_RGB565:
+                return width / 2;
+            case FORMAT_LUMINANCE:
+            case FORMAT_NV21:
+            case FORMAT_I420:
+                return width / 4;
+            default:
+                return width;
+        }
+    }
+
+    /**
+     * Gets the number of rows read back for an image.
+     *
+     * @param format one of the FORMAT constants
+     * @param height the height of the image
+     * @return the height of the readback
+     */
+    public static int getReadbackHeight(final int format, final int height) {
+        return format == FORMAT_NV21 || format == FORMAT_I420 ? height * 3 / 2 : height;
+    }
+
+    /**
+     * Gets the number of bytes a buffer needs to hold an image.
+     *
+     * @param format one of the FORMAT constants
+     * @param width the width of the image
+     * @param height the height of the image
+     * @return the size of the buffer in bytes
+     */
+    public static int getBufferSize(final int format, final int width, final int height) {
+        return getReadbackWidth(format, width) * getReadbackHeight(format, height) * 4;
+    }
+
+    /**
+     * Gets the format matching a bitmap configuration.
+     *
+     * @param config ARGB_8888, RGB_565 or ALPHA_8, which receives the luma
+     * @return the FORMAT constant
+     */
+    public static int getFormat(final Bitmap.Config config) {
+        switch (config) {
+            case ARGB_8888:
+                return FORMAT_RGBA;
+            case RGB_565:
+                return FORMAT_RGB565;
+            case ALPHA_8:
+                return FORMAT_LUMINANCE;
+            default:
+                throw new IllegalArgumentException("Can't read back into " + config);
+        }
+    }
+
+    /**
+     * Converts a texture and reads it into a buffer. Has to be called on the
+     * OpenGL thread.
+     *
+     * @param texture the texture holding the image
+     * @param width the width of the image
+     * @param height the height of the image
+     * @param out a direct buffer with at least
+     *            {@link #getBufferSize(int, int, int)} bytes remaining, which
+     *            are written from its position on
+     */
+    public void read(final int texture, final int width, final int height,
+            final ByteBuffer out) {
+        if (out.remaining() < getBufferSize(mFormat, width, height)) {
+            throw new IllegalArgumentException("Buffer too small for " + width + "x" + height);
+        }
+        convert(texture, width, height);
+        bindOutput();
+        GLES20.glReadPixels(0, 0, getOutputWidth(), getOutputHeight(),
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, out);
+        unbindOutput();
+    }
+
+    /**
+     * Converts a texture and reads it into a bitmap of the same size. Has to
+     * be called on the OpenGL thread.
+     *
+     * @param texture the texture holding the image
+     * @param bitmap a mutable bitmap with the configuration matching the
+     *               format, see {@link #getFormat(Bitmap.Config)}
+     */
+    public void read(final int texture, final Bitmap bitmap) {
+        if (getFormat(bitmap.getConfig()) != mFormat) {
+            throw new IllegalArgumentException(bitmap.getConfig() + " doesn't match the format");
+        }
+        convert(texture, bitmap.getWidth(), bitmap.getHeight());
+        bindOutput();
+        GPUImageNativeLibrary.CopyToBitmap(bitmap);
+        unbindOutput();
+    }
+
+    /**
+     * Same as {@link #read(int, int, int, ByteBuffer)} for the lower left
+     * corner of the bound framebuffer, which is copied into a texture first.
+     */
+    public void readFramebuffer(final int width, final int height, final ByteBuffer out) {
+        read(copyFramebuffer(width, height), width, height, out);
+    }
+
+    /**
+     * Same as {@link #read(int, Bitmap)} for the lower left corner of the
+     * bound framebuffer, which is copied into a texture first.
+     */
+    public void readFramebuffer(final Bitmap bitmap) {
+        read(copyFramebuffer(bitmap.getWidth(), bitmap.getHeight()), bitmap);
+    }
+
+    /**
+     * Converts a texture into the framebuffer of this filter, see
+     * {@link #getFramebuffer()}, without reading it.
+     */
+    void convert(final int texture, final int width, final int height) {
+        checkSize(width, height);
+        if (!isInitialized()) {
+            init();
+        }
+        if (width != mInputWidth || height != mInputHeight) {
+            mInputWidth = width;
+            mInputHeight = height;
+            setFloatVec2(mInputSizeUniform, new float[]{width, height});
+            onOutputSizeChanged(getReadbackWidth(mFormat, width),
+                    getReadbackHeight(mFormat, height));
+        }
+        // The shader works with gl_FragCoord, the coordinates are only there
+        // to make the quad complete
+        drawToFramebuffer(texture, getOutputWidth(), getOutputHeight(),
+                GPUImageVertexBuffers.getTextureCoordinates(Rotation.NORMAL, false, false));
+    }
+
+    private void bindOutput() {
+        GLES20.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING, mBoundFrameBuffer, 0);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, getFramebuffer().getFrameBuffer());
+    }
+
+    private void unbindOutput() {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mBoundFrameBuffer[0]);
+    }
+
+    private int copyFramebuffer(final int width, final int height) {
+        // A texture can't have channels the framebuffer doesn't have
+        GLES20.glGetIntegerv(GLES20.GL_ALPHA_BITS, mAlphaBits, 0);
+        int format = mAlphaBits[0] > 0 ? GLES20.GL_RGBA : GLES20.GL_RGB;
+        if (mCopyTexture != OpenGlUtils.NO_TEXTURE && format == mCopyFormat
+                && width == mCopyWidth && height == mCopyHeight) {
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mCopyTexture);
+            GLES20.glCopyTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, 0, 0, width, height);
+            return mCopyTexture;
+        }
+        deleteCopyTexture();
+        int[] textures = new int[1];
+        GLES20.glGenTextures(1, textures, 0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[0]);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glCopyTexImage2D(GLES20.GL_TEXTURE_2D, 0, format, 0, 0, width, height, 0);
+        mCopyTexture = textures[0];
+        mCopyFormat = format;
+        mCopyWidth = width;
+        mCopyHeight = height;
+        return mCopyTexture;
+    }
+
+    private void deleteCopyTexture() {
+        if (mCopyTexture != OpenGlUtils.NO_TEXTURE) {
+            GLES20.glDeleteTextures(1, new int[]{
+                    mCopyTexture
+            }, 0);
+            mCopyTexture = OpenGlUtils.NO_TEXTURE;
+        }
+    }
+
+    private void checkSize(final int width, final int height) {
+        boolean valid;
+        switch (mFormat) {
+            case FORMAT_RGB565:
+                valid = width % 2 == 0;
+                break;
+            case FORMAT_LUMINANCE:
+                valid = width % 4 == 0;
+                break;
+            case FORMAT_NV21:
+                valid = width % 4 == 0 && height % 2 == 0;
+                break;
+            case FORMAT_I420:
+                valid = width % 8 == 0 && height % 4 == 0;
+                break;
+            default:
+                valid = true;
+                break;
+        }
+        if (!valid || width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Can't read " + width + "x" + height
+                    + " in format " + mFormat);
+        }
+    }
+
+    private static int checkFormat(final int format) {
+        if (format < 0 || format >= FORMAT_COUNT) {
+            throw new IllegalArgumentException("Unknown format " + format);
+        }
+        return format;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        deleteCopyTexture();
+        mInputWidth = 0;
+        mInputHeight = 0;
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A future which is completed by the {@link GPUImageEngine} once the pixels
+ * of a job have been read back, which may be after later jobs have been
+ * drawn. Subclasses can override {@link #done()} to be notified.
+ */
+class GPUImagePendingResult<T> extends FutureTask<T> {
+    // Set on the engine thread when the job starts
+    volatile long mStartNanos;
+
+    GPUImagePendingResult() {
+        super(new Callable<T>() {
+            @Override
+            public T call() {
+                throw new IllegalStateException("Completed by the engine");
+            }
+        });
+    }
+
+    void complete(final T value) {
+        set(value);
+    }
+
+    void fail(final Throwable t) {
+        setException(t);
+    }
+}
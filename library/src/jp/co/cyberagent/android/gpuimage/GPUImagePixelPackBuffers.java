@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads framebuffers back asynchronously through OpenGL ES 3.0 pixel pack
+ * buffers.<br>
+ * <br>
+ * glReadPixels into a pack buffer returns right away, the copy is done by
+ * the GPU after the draw calls before it. A fence tells when it is finished,
+ * and only then the buffer is mapped and copied into the bitmap. With a few
+ * buffers in a ring the readback of one image overlaps with drawing the next
+ * ones, instead of stalling until the GPU has drawn everything.
+ */
+@TargetApi(18)
+class GPUImagePixelPackBuffers {
+    private static final int BYTES_PER_PIXEL = 4;
+    private static final long WAIT_TIMEOUT_NANOS = 1000000000L;
+
+    /**
+     * Receives a bitmap once its pixels have been read back.
+     */
+    interface Callback {
+        /**
+         * @param error the reason the pixels couldn't be read, or null
+         */
+        void onReadback(RuntimeException error);
+    }
+
+    private final Slot[] mSlots;
+    private int mNext;
+
+    /**
+     * @param count the number of readbacks which may be in flight
+     */
+    GPUImagePixelPackBuffers(final int count) {
+        mSlots = new Slot[count];
+        int[] buffers = new int[count];
+        GLES30.glGenBuffers(count, buffers, 0);
+        for (int i = 0; i < count; i++) {
+            mSlots[i] = new Slot(buffers[i]);
+        }
+    }
+
+    /**
+     * Checks whether the context current on the calling thread supports pixel
+     * pack buffers.
+     *
+     * @return true if an instance can be created
+     */
+    static boolean isSupported() {
+        if (Build.VERSION.SDK_INT < 18) {
+            return false;
+        }
+        String version = GLES20.glGetString(GLES20.GL_VERSION);
+        return version != null && version.startsWith("OpenGL ES 3");
+    }
+
+    /**
+     * Starts reading the lower left corner of the bound framebuffer. If all
+     * buffers are in flight, the oldest readback is finished first.
+     *
+     * @param width the width of the region
+     * @param height the height of the region
+     * @param output an ARGB_8888 bitmap of the same size receiving the pixels
+     * @param callback notified once the pixels are in the bitmap
+     */
+    void read(final int width, final int height, final Bitmap output,
+            final Callback callback) {
+        read(width, height, callback).mBitmap = output;
+    }
+
+    /**
+     * Same as {@link #read(int, int, Bitmap, Callback)} into a buffer.
+     *
+     * @param width the width of the region
+     * @param height the height of the region
+     * @param output a buffer with at least width * height * 4 bytes remaining,
+     *               which are written from its position on
+     * @param callback notified once the pixels are in the buffer
+     */
+    void read(final int width, final int height, final ByteBuffer output,
+            final Callback callback) {
+        read(width, height, callback).mOutput = output;
+    }
+
+    private Slot read(final int width, final int height, final Callback callback) {
+        Slot slot = mSlots[mNext];
+        mNext = (mNext + 1) % mSlots.length;
+        if (slot.mCallback != null) {
+            finish(slot);
+        }
+
+        int size = width * height * BYTES_PER_PIXEL;
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, slot.mBuffer);
+        if (size > slot.mCapacity) {
+            GLES30.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, size, null, GLES30.GL_STREAM_READ);
+            slot.mCapacity = size;
+        }
+        GPUImageNativeLibrary.ReadPixelsToPackBuffer(width, height);
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        slot.mSync = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        slot.mSize = size;
+        slot.mCallback = callback;
+        // Make sure the GPU starts working on it while the next image is drawn
+        GLES20.glFlush();
+        return slot;
+    }
+
+    /**
+     * Finishes all readbacks in flight, oldest first.
+     */
+    void finishAll() {
+        for (int i = 0; i < mSlots.length; i++) {
+            Slot slot = mSlots[(mNext + i) % mSlots.length];
+            if (slot.mCallback != null) {
+                finish(slot);
+            }
+        }
+    }
+
+    private void finish(final Slot slot) {
+        Callback callback = slot.mCallback;
+        Bitmap bitmap = slot.mBitmap;
+        ByteBuffer buffer = slot.mOutput;
+        slot.mCallback = null;
+        slot.mBitmap = null;
+        slot.mOutput = null;
+        RuntimeException error = null;
+        try {
+            GLES30.glClientWaitSync(slot.mSync, GLES30.GL_SYNC_FLUSH_COMMANDS_BIT,
+                    WAIT_TIMEOUT_NANOS);
+            GLES30.glDeleteSync(slot.mSync);
+            GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, slot.mBuffer);
+            Buffer pixels = GLES30.glMapBufferRange(GLES30.GL_PIXEL_PACK_BUFFER, 0, slot.mSize,
+                    GLES30.GL_MAP_READ_BIT);
+            if (pixels == null) {
+                error = new IllegalStateException("Mapping the pixel pack buffer failed: "
+                        + GLES20.glGetError());
+            } else {
+                if (bitmap != null) {
+                    bitmap.copyPixelsFromBuffer(pixels);
+                } else {
+                    buffer.duplicate().put((ByteBuffer) pixels);
+                }
+                GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+            }
+        } catch (RuntimeException e) {
+            error = e;
+        } finally {
+            GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        }
+        callback.onReadback(error);
+    }
+
+    /**
+     * Finishes all readbacks in flight and deletes the buffers.
+     */
+    void release() {
+        finishAll();
+        int[] buffers = new int[mSlots.length];
+        for (int i = 0; i < mSlots.length; i++) {
+            buffers[i] = mSlots[i].mBuffer;
+        }
+        GLES30.glDeleteBuffers(buffers.length, buffers, 0);
+    }
+
+    private static final class Slot {
+        final int mBuffer;
+        int mCapacity;
+        int mSize;
+        long mSync;
+        Bitmap mBitmap;
+        ByteBuffer mOutput;
+        Callback mCallback;
+
+        Slot(final int buffer) {
+            mBuffer = buffer;
+        }
+    }
+}
@@ -71,4 +71,9 @@ public class GPUImagePixelationFilter extends GPUImageFilter {
       mPixel = pixel;
       setFloat(mPixelLocation, mPixel);
     }
+
+    @Override
+    public int getSamplingRadius() {
+        return SAMPLING_RADIUS_UNBOUNDED;
+    }
 }
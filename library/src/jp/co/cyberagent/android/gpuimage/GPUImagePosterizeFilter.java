@@ -60,4 +60,9 @@ public class GPUImagePosterizeFilter extends GPUImageFilter {
         mColorLevels = colorLevels;
         setFloat(mGLUniformColorLevels, colorLevels);
     }
+
+    @Override
+    public int getSamplingRadius() {
+        return 0;
+    }
 }
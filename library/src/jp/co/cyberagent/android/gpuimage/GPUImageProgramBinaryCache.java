@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+import jp.co.cyberagent.android.gpuimage.util.DigestUtil;
+
+/**
+ * Stores linked programs on disk, so they don't have to be compiled again
+ * after the application was restarted or the OpenGL context was lost.<br>
+ * <br>
+ * Program binaries are only valid for the driver which created them, so they
+ * are keyed by the shader sources together with GL_RENDERER and GL_VERSION.
+ * Entries which can't be read or are rejected by the driver are deleted and
+ * the program is compiled from source instead. This needs the program binary
+ * functions of OpenGL ES 3.0 and does nothing on older devices.
+ *
+ * @see GPUImageProgramCache#setBinaryCache(GPUImageProgramBinaryCache)
+ */
+@TargetApi(18)
+public class GPUImageProgramBinaryCache {
+    private static final String TAG = "GPUImageProgramBinary";
+    private static final String CACHE_DIRECTORY = "gpuimage_programs";
+    private static final int MAGIC = 0x47505550;
+
+    private final File mDirectory;
+    private int mLoadCount;
+    private int mRejectCount;
+
+    /**
+     * @param context the context used to locate the cache directory
+     */
+    public GPUImageProgramBinaryCache(final Context context) {
+        this(new File(context.getCacheDir(), CACHE_DIRECTORY));
+    }
+
+    /**
+     * @param directory the directory the program binaries are stored in
+     */
+    public GPUImageProgramBinaryCache(final File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * Checks whether program binaries can be used with the OpenGL context
+     * which is current on the calling thread.
+     *
+     * @return true, if the context supports program binaries
+     */
+    public static boolean isSupported() {
+        if (Build.VERSION.SDK_INT < 18) {
+            return false;
+        }
+        String version = GLES20.glGetString(GLES20.GL_VERSION);
+        return version != null && version.startsWith("OpenGL ES ")
+                && version.length() > 10 && version.charAt(10) >= '3';
+    }
+
+    /**
+     * Creates a program from a stored binary.
+     *
+     * @param vertexShader the vertex shader source
+     * @param fragmentShader the fragment shader source
+     * @return the linked program, or 0 if no usable binary was stored
+     */
+    synchronized int load(final String vertexShader, final String fragmentShader) {
+        if (!isSupported()) {
+            return 0;
+        }
+        File file = getFile(vertexShader, fragmentShader);
+        if (!file.exists()) {
+            return 0;
+        }
+
+        int format;
+        ByteBuffer binary;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Unknown file format");
+            }
+            format = in.readInt();
+            int length = in.readInt();
+            if (length <= 0 || length > file.length()) {
+                throw new IOException("Invalid binary length " + length);
+            }
+            byte[] data = new byte[length];
+            in.readFully(data);
+            binary = ByteBuffer.allocateDirect(data.length).order(ByteOrder.nativeOrder());
+            binary.put(data).position(0);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read " + file, e);
+            reject(file);
+            return 0;
+        } finally {
+            close(in);
+        }
+
+        int program = GLES20.glCreateProgram();
+        GLES30.glProgramBinary(program, format, binary, binary.capacity());
+        int[] link = new int[1];
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, link, 0);
+        if (link[0] <= 0) {
+            // Usually the driver has been updated since the binary was stored.
+            // Rejecting it may raise GL_INVALID_ENUM, which must not be taken
+            // for an error of the program compiled instead
+            while (GLES20.glGetError() != GLES20.GL_NO_ERROR) {
+            }
+            GLES20.glDeleteProgram(program);
+            reject(file);
+            return 0;
+        }
+        mLoadCount++;
+        return program;
+    }
+
+    /**
+     * Stores the binary of a program linked from the given sources.
+     *
+     * @param program the linked program
+     * @param vertexShader the vertex shader source
+     * @param fragmentShader the fragment shader source
+     */
+    synchronized void save(final int program, final String vertexShader,
+            final String fragmentShader) {
+        if (!isSupported()) {
+            return;
+        }
+        int[] length = new int[1];
+        GLES20.glGetProgramiv(program, GLES30.GL_PROGRAM_BINARY_LENGTH, length, 0);
+        if (length[0] <= 0) {
+            return;
+        }
+        ByteBuffer binary = ByteBuffer.allocateDirect(length[0]).order(ByteOrder.nativeOrder());
+        IntBuffer written = IntBuffer.allocate(1);
+        IntBuffer format = IntBuffer.allocate(1);
+        GLES30.glGetProgramBinary(program, length[0], written, format, binary);
+        if (GLES20.glGetError() != GLES20.GL_NO_ERROR || written.get(0) <= 0) {
+            return;
+        }
+        byte[] data = new byte[written.get(0)];
+        binary.position(0);
+        binary.get(data);
+
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.w(TAG, "Could not create " + mDirectory);
+            return;
+        }
+        File file = getFile(vertexShader, fragmentShader);
+        File temp = new File(mDirectory, file.getName() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(MAGIC);
+            out.writeInt(format.get(0));
+            out.writeInt(data.length);
+            out.write(data);
+            out.close();
+            out = null;
+            if (!temp.renameTo(file)) {
+                temp.delete();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not store program binary", e);
+            temp.delete();
+        } finally {
+            close(out);
+        }
+    }
+
+    /**
+     * Deletes all stored program binaries.
+     */
+    public synchronized void clear() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * @return the number of programs created from a stored binary
+     */
+    public synchronized int getLoadCount() {
+        return mLoadCount;
+    }
+
+    /**
+     * @return the number of stored binaries which were corrupt or rejected by
+     *         the driver
+     */
+    public synchronized int getRejectCount() {
+        return mRejectCount;
+    }
+
+    private File getFile(final String vertexShader, final String fragmentShader) {
+        String key = GLES20.glGetString(GLES20.GL_RENDERER) + '\n'
+                + GLES20.glGetString(GLES20.GL_VERSION) + '\n'
+                + vertexShader + '\u0000' + fragmentShader;
+        return new File(mDirectory, DigestUtil.md5(key));
+    }
+
+    private void reject(final File file) {
+        mRejectCount++;
+        file.delete();
+    }
+
+    private static void close(final Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
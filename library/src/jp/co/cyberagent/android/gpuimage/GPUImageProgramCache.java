@@ -0,0 +1,341 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.opengl.GLES20;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.microedition.khronos.egl.EGL10;
+import javax.microedition.khronos.egl.EGLContext;
+
+/**
+ * Linked programs shared by all filters drawing in the same OpenGL context.<br>
+ * <br>
+ * Filters with the same vertex and fragment shader, like a list of blend
+ * filters or the same filter created for every thumbnail, only compile and
+ * link their program once. Programs are reference counted, when the last
+ * filter using a program has been destroyed it is kept until
+ * {@link #purgeUnused()}, so replacing a filter with a new one of the same
+ * kind doesn't compile again.<br>
+ * <br>
+ * Uniform values are part of the program, so a filter has to upload its
+ * uniforms again when another filter has drawn with the same program since,
+ * see {@link Program#claim(GPUImageFilter)}.
+ */
+public class GPUImageProgramCache {
+    private static final Map<EGLContext, GPUImageProgramCache> sCaches =
+            new HashMap<EGLContext, GPUImageProgramCache>();
+    private static volatile GPUImageProgramBinaryCache sBinaryCache;
+
+    private final Map<Key, Program> mPrograms = new HashMap<Key, Program>();
+    private int mUnusedCount;
+    private int mHitCount;
+    private int mMissCount;
+    private long mCompileTimeNanos;
+    private long mSavedCompileTimeNanos;
+
+    private GPUImageProgramCache() {
+    }
+
+    /**
+     * Gets the cache of the OpenGL context which is current on the calling
+     * thread.
+     *
+     * @return the program cache of the current context
+     */
+    public static GPUImageProgramCache getInstance() {
+        EGLContext context = currentContext();
+        synchronized (sCaches) {
+            GPUImageProgramCache cache = sCaches.get(context);
+            if (cache == null) {
+                cache = new GPUImageProgramCache();
+                sCaches.put(context, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * Forgets all programs known for the current context without deleting
+     * them. Has to be called when a new context was created, because the
+     * driver might hand out the same handle as a previously lost context.
+     * The entries of other contexts which were lost meanwhile are dropped too.
+     */
+    public static void onContextCreated() {
+        EGLContext context = currentContext();
+        List<GPUImageProgramCache> lost = new ArrayList<GPUImageProgramCache>();
+        synchronized (sCaches) {
+            GPUImageProgramCache cache = sCaches.remove(context);
+            if (cache != null) {
+                lost.add(cache);
+            }
+            Iterator<Map.Entry<EGLContext, GPUImageProgramCache>> iterator =
+                    sCaches.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<EGLContext, GPUImageProgramCache> entry = iterator.next();
+                if (OpenGlUtils.isContextLost(entry.getKey())) {
+                    lost.add(entry.getValue());
+                    iterator.remove();
+                }
+            }
+        }
+        for (GPUImageProgramCache cache : lost) {
+            cache.forget(false);
+        }
+    }
+
+    /**
+     * Deletes all programs of the current context. Has to be called before the
+     * context is destroyed.
+     */
+    public static void releaseCurrent() {
+        EGLContext context = currentContext();
+        GPUImageProgramCache cache;
+        synchronized (sCaches) {
+            cache = sCaches.remove(context);
+        }
+        if (cache != null) {
+            cache.forget(true);
+        }
+    }
+
+    /**
+     * Sets the on-disk cache programs are loaded from before they are
+     * compiled, and stored in after they have been linked.
+     *
+     * @param binaryCache the binary cache to use, or null to always compile
+     */
+    public static void setBinaryCache(final GPUImageProgramBinaryCache binaryCache) {
+        sBinaryCache = binaryCache;
+    }
+
+    public static GPUImageProgramBinaryCache getBinaryCache() {
+        return sBinaryCache;
+    }
+
+    private static EGLContext currentContext() {
+        return ((EGL10) EGLContext.getEGL()).eglGetCurrentContext();
+    }
+
+    /**
+     * Gets the program for the given shaders, compiling and linking it if it
+     * isn't cached yet. Every successful call has to be balanced by a call to
+     * {@link Program#release(GPUImageFilter)}.
+     *
+     * @param vertexShader the vertex shader source
+     * @param fragmentShader the fragment shader source
+     * @return the program, or null if it couldn't be compiled or linked
+     */
+    Program acquire(final String vertexShader, final String fragmentShader) {
+        Key key = new Key(vertexShader, fragmentShader);
+        Program program = mPrograms.get(key);
+        if (program != null) {
+            if (program.mRefCount == 0) {
+                mUnusedCount--;
+            }
+            mHitCount++;
+            mSavedCompileTimeNanos += program.mCompileTimeNanos;
+            program.mRefCount++;
+            return program;
+        }
+
+        mMissCount++;
+        GPUImageProgramBinaryCache binaryCache = sBinaryCache;
+        long start = System.nanoTime();
+        int handle = binaryCache != null ? binaryCache.load(vertexShader, fragmentShader) : 0;
+        boolean compiled = handle == 0;
+        if (compiled) {
+            handle = OpenGlUtils.loadProgram(vertexShader, fragmentShader);
+        }
+        long compileTime = System.nanoTime() - start;
+        mCompileTimeNanos += compileTime;
+        if (handle == 0) {
+            return null;
+        }
+        if (compiled && binaryCache != null) {
+            binaryCache.save(handle, vertexShader, fragmentShader);
+        }
+        program = new Program(this, handle, compileTime);
+        mPrograms.put(key, program);
+        return program;
+    }
+
+    /**
+     * Deletes all programs which are not used by any filter anymore.
+     */
+    public void purgeUnused() {
+        if (mUnusedCount == 0) {
+            return;
+        }
+        Iterator<Program> iterator = mPrograms.values().iterator();
+        while (iterator.hasNext()) {
+            Program program = iterator.next();
+            if (program.mRefCount == 0) {
+                GLES20.glDeleteProgram(program.mHandle);
+                iterator.remove();
+            }
+        }
+        mUnusedCount = 0;
+    }
+
+    private void forget(final boolean delete) {
+        for (Program program : mPrograms.values()) {
+            if (delete) {
+                GLES20.glDeleteProgram(program.mHandle);
+            }
+            program.mRefCount = 0;
+            program.mCache = null;
+        }
+        mPrograms.clear();
+        mUnusedCount = 0;
+    }
+
+    /**
+     * @return the number of programs held by this cache, used or not
+     */
+    public int getProgramCount() {
+        return mPrograms.size();
+    }
+
+    /**
+     * @return the number of requests served by an already linked program
+     */
+    public int getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * @return the number of requests which compiled and linked a program
+     */
+    public int getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * @return the time spent compiling and linking programs, or loading them
+     *         from the binary cache, in nanoseconds
+     */
+    public long getCompileTimeNanos() {
+        return mCompileTimeNanos;
+    }
+
+    /**
+     * @return the compile and link time the hits would have taken otherwise
+     *         in nanoseconds
+     */
+    public long getSavedCompileTimeNanos() {
+        return mSavedCompileTimeNanos;
+    }
+
+    /**
+     * A linked program shared between filters.
+     */
+    static final class Program {
+        // Stands in for an owner which released the program, its uniform
+        // values are still loaded
+        private static final Object RELEASED_OWNER = new Object();
+
+        private GPUImageProgramCache mCache;
+        private final int mHandle;
+        private final long mCompileTimeNanos;
+        private int mRefCount = 1;
+        private Object mOwner;
+
+        private Program(final GPUImageProgramCache cache, final int handle,
+                final long compileTimeNanos) {
+            mCache = cache;
+            mHandle = handle;
+            mCompileTimeNanos = compileTimeNanos;
+        }
+
+        int getHandle() {
+            return mHandle;
+        }
+
+        /**
+         * Marks the given filter as the one whose uniform values are loaded
+         * into the program.
+         *
+         * @param filter the filter about to draw with this program
+         * @return true, if another filter had set uniforms since and the
+         *         given filter has to upload its own again
+         */
+        boolean claim(final GPUImageFilter filter) {
+            if (mOwner == filter) {
+                return false;
+            }
+            boolean shared = mOwner != null;
+            mOwner = filter;
+            return shared;
+        }
+
+        /**
+         * Gives up one reference. The program stays in the cache until it is
+         * purged, even when this was the last reference.
+         *
+         * @param filter the filter which acquired the program
+         */
+        void release(final GPUImageFilter filter) {
+            // Don't keep a released filter reachable through the program
+            if (mOwner == filter) {
+                mOwner = RELEASED_OWNER;
+            }
+            if (mCache == null || mRefCount == 0) {
+                return;
+            }
+            mRefCount--;
+            if (mRefCount == 0) {
+                mCache.mUnusedCount++;
+            }
+        }
+    }
+
+    private static final class Key {
+        private final String mVertexShader;
+        private final String mFragmentShader;
+        private final int mHash;
+
+        Key(final String vertexShader, final String fragmentShader) {
+            mVertexShader = vertexShader;
+            mFragmentShader = fragmentShader;
+            mHash = 31 * vertexShader.hashCode() + fragmentShader.hashCode();
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return mHash == key.mHash && mVertexShader.equals(key.mVertexShader)
+                    && mFragmentShader.equals(key.mFragmentShader);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHash;
+        }
+    }
+}
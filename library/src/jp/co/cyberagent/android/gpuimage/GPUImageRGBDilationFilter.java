@@ -253,6 +253,8 @@ public class GPUImageRGBDilationFilter extends GPUImageTwoPassTextureSamplingFil
                     "}\n";
 
 
+    private int mRadius;
+
     public GPUImageRGBDilationFilter() {
         this(1);
     }
@@ -265,12 +267,18 @@ public class GPUImageRGBDilationFilter extends GPUImageTwoPassTextureSamplingFil
      */
     public GPUImageRGBDilationFilter(int radius) {
         this(getVertexShader(radius), getFragmentShader(radius));
+        mRadius = Math.max(1, Math.min(radius, 4));
     }
 
     private GPUImageRGBDilationFilter(String vertexShader, String fragmentShader) {
         super(vertexShader, fragmentShader, vertexShader, fragmentShader);
     }
 
+    @Override
+    protected int getPassSamplingRadius() {
+        return mRadius;
+    }
+
     private static String getVertexShader(int radius) {
         switch (radius) {
             case 0:
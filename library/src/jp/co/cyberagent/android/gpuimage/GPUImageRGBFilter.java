@@ -91,4 +91,17 @@ public class GPUImageRGBFilter extends GPUImageFilter {
             setFloat(mBlueLocation, mBlue);
         }
     }
+
+    @Override
+    public boolean getAffineColorTransform(final float[] transform) {
+        // The shader writes an opaque alpha
+        GPUImageAffineColorFilter.setScale(transform, mRed, mGreen, mBlue, 0.0f, 0.0f);
+        transform[19] = 1.0f;
+        return true;
+    }
+
+    @Override
+    public int getSamplingRadius() {
+        return 0;
+    }
 }
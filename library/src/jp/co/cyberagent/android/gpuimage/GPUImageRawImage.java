@@ -0,0 +1,330 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.annotation.TargetApi;
+import android.graphics.Rect;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * RGBA pixels in a memory mapped file, for intermediate images too large for
+ * the heap.<br>
+ * <br>
+ * The file starts with a small header holding the size, the stride, the
+ * format and how many rows from the top are complete, followed by the rows
+ * without padding. Textures are loaded straight from the mapping and pixels
+ * are read back straight into it, so the pixels live in the page cache and
+ * never pass through the Java heap. A job writing the image top down can
+ * record its progress with {@link #setCompletedRows(int)} and be resumed
+ * from there after a crash, see
+ * {@link GPUImageTiledProcessor#process(GPUImageRawImage, GPUImageFilter, GPUImageRawImage)}.
+ */
+public class GPUImageRawImage {
+    /** 4 bytes per pixel, R G B A, like {@link GPUImageOutputFilter#FORMAT_RGBA}. */
+    public static final int FORMAT_RGBA = GPUImageOutputFilter.FORMAT_RGBA;
+
+    private static final int MAGIC = 0x47505552; // "GPUR"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int OFFSET_WIDTH = 8;
+    private static final int OFFSET_HEIGHT = 12;
+    private static final int OFFSET_STRIDE = 16;
+    private static final int OFFSET_FORMAT = 20;
+    private static final int OFFSET_COMPLETED_ROWS = 24;
+    // Images are mapped in segments of whole rows of about this size, only
+    // the segments of the rows being worked on are kept, so even very large
+    // images fit into the address space of a 32 bit process
+    private static final int SEGMENT_SIZE = 32 * 1024 * 1024;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final boolean mWritable;
+    private final MappedByteBuffer mHeader;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mStride;
+    private final int mRowsPerSegment;
+    private final MappedByteBuffer[] mSegments;
+
+    private GPUImageRawImage(final RandomAccessFile file, final boolean writable)
+            throws IOException {
+        mFile = file;
+        mChannel = file.getChannel();
+        mWritable = writable;
+        FileChannel.MapMode mode = writable
+                ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY;
+        mHeader = mChannel.map(mode, 0, HEADER_SIZE);
+        if (mHeader.getInt(0) != MAGIC || mHeader.getInt(4) != VERSION
+                || mHeader.getInt(OFFSET_FORMAT) != FORMAT_RGBA) {
+            throw new IOException("Not a raw RGBA image");
+        }
+        mWidth = mHeader.getInt(OFFSET_WIDTH);
+        mHeight = mHeader.getInt(OFFSET_HEIGHT);
+        mStride = mHeader.getInt(OFFSET_STRIDE);
+        if (mWidth <= 0 || mHeight <= 0 || mStride < mWidth * 4
+                || mChannel.size() < HEADER_SIZE + (long) mStride * mHeight) {
+            throw new IOException("Raw image truncated or corrupt");
+        }
+        mRowsPerSegment = Math.max(1, SEGMENT_SIZE / mStride);
+        mSegments = new MappedByteBuffer[(mHeight + mRowsPerSegment - 1) / mRowsPerSegment];
+    }
+
+    /**
+     * Creates a new image with no complete rows, replacing the file.
+     *
+     * @param file the file
+     * @param width the width of the image
+     * @param height the height of the image
+     * @return the image, writable
+     * @throws IOException if the file can't be created
+     */
+    public static GPUImageRawImage create(final File file, final int width, final int height)
+            throws IOException {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Invalid size " + width + "x" + height);
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            int stride = width * 4;
+            raf.setLength(0);
+            raf.setLength(HEADER_SIZE + (long) stride * height);
+            raf.writeInt(MAGIC);
+            raf.writeInt(VERSION);
+            raf.writeInt(width);
+            raf.writeInt(height);
+            raf.writeInt(stride);
+            raf.writeInt(FORMAT_RGBA);
+            raf.writeInt(0);
+            return new GPUImageRawImage(raf, true);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens an existing image, e.g. to resume writing it.
+     *
+     * @param file the file
+     * @param writable whether the pixels may be written
+     * @return the image
+     * @throws IOException if the file isn't a raw image
+     */
+    public static GPUImageRawImage open(final File file, final boolean writable)
+            throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, writable ? "rw" : "r");
+        try {
+            return new GPUImageRawImage(raf, writable);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return the number of bytes from one row to the next
+     */
+    public int getStride() {
+        return mStride;
+    }
+
+    /**
+     * @return the number of rows from the top recorded as complete
+     */
+    public int getCompletedRows() {
+        return mHeader.getInt(OFFSET_COMPLETED_ROWS);
+    }
+
+    /**
+     * Writes the pixels to the file, then records the rows above the given
+     * one as complete, so the record never covers pixels still in memory
+     * only. The mappings of the complete rows are dropped.
+     *
+     * @param rows the number of complete rows from the top
+     */
+    public void setCompletedRows(final int rows) {
+        checkWritable();
+        for (MappedByteBuffer segment : mSegments) {
+            if (segment != null) {
+                segment.force();
+            }
+        }
+        mHeader.putInt(OFFSET_COMPLETED_ROWS, Math.max(0, Math.min(rows, mHeight)));
+        mHeader.force();
+        releaseRowsAbove(rows);
+    }
+
+    /**
+     * Drops the mappings of the segments which only hold rows above the given
+     * one, so they can be unmapped once no buffer refers to them anymore.
+     * They are mapped again if the rows are needed later.
+     *
+     * @param row the first row still needed
+     */
+    void releaseRowsAbove(final int row) {
+        int count = Math.min(row / mRowsPerSegment, mSegments.length);
+        for (int i = 0; i < count; i++) {
+            mSegments[i] = null;
+        }
+    }
+
+    /**
+     * Gets a buffer covering whole rows of the image, rows are only
+     * contiguous within a segment of about 32 MB.
+     *
+     * @param top the first row
+     * @param count the number of rows
+     * @return a buffer positioned at the first pixel of the rows
+     * @throws IOException if mapping failed
+     */
+    public ByteBuffer getRows(final int top, final int count) throws IOException {
+        if (top < 0 || count < 1 || top + count > mHeight
+                || top / mRowsPerSegment != (top + count - 1) / mRowsPerSegment) {
+            throw new IllegalArgumentException("Rows " + top + " - " + (top + count)
+                    + " aren't in one segment");
+        }
+        ByteBuffer rows = getRow(top, 0);
+        rows.limit(rows.position() + (count - 1) * mStride + mWidth * 4);
+        return rows;
+    }
+
+    /**
+     * Closes the file. Buffers from {@link #getRows(int, int)} stay valid
+     * until they are garbage collected.
+     */
+    public void close() throws IOException {
+        mFile.close();
+    }
+
+    /**
+     * Loads a part of the image into a texture on the current OpenGL context.
+     *
+     * @param rect the part of the image
+     * @param usedTexture a texture of the size of rect to replace the pixels
+     *                    of, or {@link OpenGlUtils#NO_TEXTURE}
+     * @return the texture
+     */
+    int loadTexture(final Rect rect, final int usedTexture) throws IOException {
+        int texture = usedTexture;
+        if (texture == OpenGlUtils.NO_TEXTURE) {
+            texture = OpenGlUtils.loadTexture(null, rect.width(), rect.height(),
+                    OpenGlUtils.NO_TEXTURE);
+        } else {
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+        }
+        boolean rowLength = setRowLength(GLES30.GL_UNPACK_ROW_LENGTH);
+        for (int y = rect.top; y < rect.bottom; ) {
+            int count = getRunLength(y, rect, rowLength);
+            GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, y - rect.top,
+                    rect.width(), count, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE,
+                    getRow(y, rect.left));
+            y += count;
+        }
+        resetRowLength(rowLength, GLES30.GL_UNPACK_ROW_LENGTH);
+        return texture;
+    }
+
+    /**
+     * Reads a part of the bound framebuffer into the image.
+     *
+     * @param x the left edge of the part in the framebuffer
+     * @param y the first row of the part in the framebuffer
+     * @param target where the part goes in the image
+     * @param flipVertical true if the first row of the framebuffer is the
+     *                     bottom of the image, as drawn by
+     *                     {@link GPUImageRenderer}
+     */
+    void readFramebuffer(final int x, final int y, final Rect target,
+            final boolean flipVertical) throws IOException {
+        checkWritable();
+        boolean rowLength = !flipVertical && setRowLength(GLES30.GL_PACK_ROW_LENGTH);
+        for (int row = target.top; row < target.bottom; ) {
+            int count = flipVertical ? 1 : getRunLength(row, target, rowLength);
+            int source = flipVertical ? target.bottom - 1 - row : row - target.top;
+            GLES20.glReadPixels(x, y + source, target.width(), count,
+                    GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, getRow(row, target.left));
+            row += count;
+        }
+        resetRowLength(rowLength, GLES30.GL_PACK_ROW_LENGTH);
+    }
+
+    // The number of rows from y on which can be transferred with one call
+    private int getRunLength(final int y, final Rect rect, final boolean rowLength) {
+        boolean contiguous = rowLength || (rect.left == 0 && rect.width() == mWidth);
+        if (!contiguous) {
+            return 1;
+        }
+        int segmentEnd = (y / mRowsPerSegment + 1) * mRowsPerSegment;
+        return Math.min(rect.bottom, segmentEnd) - y;
+    }
+
+    private ByteBuffer getRow(final int y, final int x) throws IOException {
+        int index = y / mRowsPerSegment;
+        MappedByteBuffer segment = mSegments[index];
+        if (segment == null) {
+            long offset = HEADER_SIZE + (long) index * mRowsPerSegment * mStride;
+            int rows = Math.min(mRowsPerSegment, mHeight - index * mRowsPerSegment);
+            segment = mChannel.map(mWritable
+                    ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY,
+                    offset, (long) rows * mStride);
+            mSegments[index] = segment;
+        }
+        ByteBuffer row = segment.duplicate();
+        row.position((y - index * mRowsPerSegment) * mStride + x * 4);
+        return row;
+    }
+
+    // Rows of a part narrower than the image can only be transferred at once
+    // with OpenGL ES 3.0
+    @TargetApi(18)
+    private boolean setRowLength(final int name) {
+        if (!GPUImagePixelPackBuffers.isSupported()) {
+            return false;
+        }
+        GLES20.glPixelStorei(name, mStride / 4);
+        return true;
+    }
+
+    @TargetApi(18)
+    private static void resetRowLength(final boolean set, final int name) {
+        if (set) {
+            GLES20.glPixelStorei(name, 0);
+        }
+    }
+
+    private void checkWritable() {
+        if (!mWritable) {
+            throw new IllegalStateException("The image is read only");
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Exports images too large to be held in memory with a filter applied.<br>
+ * <br>
+ * The source is read a tile at a time with a {@link BitmapRegionDecoder},
+ * filtered by a {@link GPUImageTiledProcessor} and written as JPEG a band of
+ * rows at a time by a {@link GPUImageJpegWriter}. Only one band of the result
+ * and the tiles in flight are in memory, a few times the tile size times the
+ * width of the image, so a 100 megapixel photo needs tens of MB instead of
+ * the 800 MB of a source and a result bitmap.
+ */
+@TargetApi(10)
+public class GPUImageRegionExporter {
+    private final GPUImageTiledProcessor mProcessor;
+    private final BitmapFactory.Options mOptions = new BitmapFactory.Options();
+
+    /**
+     * @param processor the processor applying the filters, a smaller tile
+     *                  size means less memory and more draw calls
+     */
+    public GPUImageRegionExporter(final GPUImageTiledProcessor processor) {
+        mProcessor = processor;
+        mOptions.inPreferredConfig = Bitmap.Config.ARGB_8888;
+    }
+
+    /**
+     * Applies the filter to an image file and writes the result as JPEG.
+     *
+     * @param inputPath a JPEG or PNG file
+     * @param filter the filter to apply, it has to allow tiling
+     * @param quality 1 - 100
+     * @param output the file receiving the JPEG
+     * @throws IOException if reading or writing failed
+     * @throws InterruptedException if the calling thread was interrupted
+     */
+    public void exportJpeg(final String inputPath, final GPUImageFilter filter, final int quality,
+            final File output) throws IOException, InterruptedException {
+        BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(inputPath, false);
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(output));
+            try {
+                exportJpeg(decoder, filter, quality, out);
+            } finally {
+                out.close();
+            }
+        } finally {
+            decoder.recycle();
+        }
+    }
+
+    /**
+     * Applies the filter to the image of a decoder and writes the result as
+     * JPEG.
+     *
+     * @param decoder the decoder of the image, it is only used on the calling
+     *                thread and not recycled
+     * @param filter the filter to apply, it has to allow tiling
+     * @param quality 1 - 100
+     * @param out the stream receiving the JPEG, it isn't closed
+     * @throws IOException if decoding or writing failed
+     * @throws InterruptedException if the calling thread was interrupted
+     */
+    public void exportJpeg(final BitmapRegionDecoder decoder, final GPUImageFilter filter,
+            final int quality, final OutputStream out) throws IOException, InterruptedException {
+        int width = decoder.getWidth();
+        int height = decoder.getHeight();
+        final GPUImageJpegWriter writer = new GPUImageJpegWriter(out, width, height, quality);
+        try {
+            mProcessor.process(width, height, filter, new GPUImageTiledProcessor.RegionSource() {
+                @Override
+                public Bitmap decodeRegion(final Rect rect) throws IOException {
+                    Bitmap region = decoder.decodeRegion(rect, mOptions);
+                    if (region == null) {
+                        throw new IOException("Decoding " + rect + " failed");
+                    }
+                    return region;
+                }
+            }, new GPUImageTiledProcessor.BandListener() {
+                @Override
+                public void onBand(final Bitmap band, final int top, final int rows)
+                        throws IOException {
+                    writer.writeRows(band, rows);
+                }
+            });
+            writer.finish();
+        } finally {
+            writer.release();
+        }
+    }
+}
@@ -34,9 +34,8 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
-import java.nio.IntBuffer;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil.TEXTURE_NO_ROTATION;
 
@@ -58,20 +57,34 @@ public class GPUImageRenderer implements Renderer, PreviewCallback {
     private SurfaceTexture mSurfaceTexture = null;
     private final FloatBuffer mGLCubeBuffer;
     private final FloatBuffer mGLTextureBuffer;
-    private IntBuffer mGLRgbBuffer;
+    // Bumped whenever the cube or texture coordinates change
+    private volatile int mGeometryVersion;
+    private GPUImageVertexBuffers mVertexBuffers;
+    private ByteBuffer mGLRgbBuffer;
 
     private int mOutputWidth;
+    private final GPUImageOutputFilter[] mOutputFilters =
+            new GPUImageOutputFilter[GPUImageOutputFilter.FORMAT_COUNT];
     private int mOutputHeight;
     private int mImageWidth;
     private int mImageHeight;
     private int mAddedPadding;
 
-    private final Queue<Runnable> mRunOnDraw;
-    private final Queue<Runnable> mRunOnDrawEnd;
+    private final GPUImageTaskQueue mRunOnDraw;
+    private final GPUImageTaskQueue mRunOnDrawEnd;
+    private final GPUImageFrameIntake mFrameIntake = new GPUImageFrameIntake();
+    private CameraBufferRecycler mCameraRecycler;
     private Rotation mRotation;
     private boolean mFlipHorizontal;
     private boolean mFlipVertical;
     private GPUImageScaleType mScaleType = GPUImageScaleType.CENTER_CROP;
+    private volatile boolean mConvertOnGpu;
+    private GPUImageYUVInputFilter mYUVInputFilter;
+    private volatile boolean mExternalTextureInput;
+    private GPUImageExternalTextureInputFilter mExternalInputFilter;
+    private final AtomicBoolean mExternalFrameAvailable = new AtomicBoolean();
+    private int mExternalFrameWidth;
+    private int mExternalFrameHeight;
 
     private float mBackgroundRed = 0;
     private float mBackgroundGreen = 0;
@@ -79,8 +92,8 @@ public class GPUImageRenderer implements Renderer, PreviewCallback {
 
     public GPUImageRenderer(final GPUImageFilter filter) {
         mFilter = filter;
-        mRunOnDraw = new LinkedList<Runnable>();
-        mRunOnDrawEnd = new LinkedList<Runnable>();
+        mRunOnDraw = new GPUImageTaskQueue();
+        mRunOnDrawEnd = new GPUImageTaskQueue();
 
         mGLCubeBuffer = ByteBuffer.allocateDirect(CUBE.length * 4)
                 .order(ByteOrder.nativeOrder())
@@ -97,6 +110,15 @@ public class GPUImageRenderer implements Renderer, PreviewCallback {
     public void onSurfaceCreated(final GL10 unused, final EGLConfig config) {
         GLES20.glClearColor(mBackgroundRed, mBackgroundGreen, mBackgroundBlue, 1);
         GLES20.glDisable(GLES20.GL_DEPTH_TEST);
+        GPUImageFramebufferCache.onContextCreated();
+        GPUImageProgramCache.onContextCreated();
+        GPUImageVertexBuffers.onContextCreated();
+        mVertexBuffers = GPUImageVertexBuffers.getInstance();
+        // Their textures died with the old context
+        mGLTextureId = NO_IMAGE;
+        mYUVInputFilter = null;
+        mExternalInputFilter = null;
+        Arrays.fill(mOutputFilters, null);
         mFilter.init();
     }
 
@@ -105,6 +127,8 @@ public class GPUImageRenderer implements Renderer, PreviewCallback {
         mOutputWidth = width;
         mOutputHeight = height;
         GLES20.glViewport(0, 0, width, height);
+        GPUImageFramebufferCache.getInstance().purgeUnused();
+        GPUImageProgramCache.getInstance().purgeUnused();
         GLES20.glUseProgram(mFilter.getProgram());
         mFilter.onOutputSizeChanged(width, height);
         adjustImageScaling();
@@ -116,10 +140,14 @@ public class GPUImageRenderer implements Renderer, PreviewCallback {
     @Override
     public void onDrawFrame(final GL10 gl) {
         GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
-        runAll(mRunOnDraw);
+        mRunOnDraw.runAll();
+        drawPreviewFrame();
+        mVertexBuffers.update(mGLCubeBuffer, mGeometryVersion);
+        mVertexBuffers.update(mGLTextureBuffer, mGeometryVersion);
         mFilter.onDraw(mGLTextureId, mGLCubeBuffer, mGLTextureBuffer);
-        runAll(mRunOnDrawEnd);
-        if (mSurfaceTexture != null) {
+        mRunOnDrawEnd.runAll();
+        if (mSurfaceTexture != null && mExternalInputFilter == null) {
+            // Only there to keep the camera going, the frames come from the callback
             mSurfaceTexture.updateTexImage();
         }
     }
@@ -137,36 +165,84 @@ public class GPUImageRenderer implements Renderer, PreviewCallback {
         mBackgroundBlue = blue;
     }
 
-    private void runAll(Queue<Runnable> queue) {
-        synchronized (queue) {
-            while (!queue.isEmpty()) {
-                queue.poll().run();
-            }
+    @Override
+    public void onPreviewFrame(final byte[] data, final Camera camera) {
+        if (mFrameIntake.getFrameWidth() == 0) {
+            // Only when the callback was set without attaching the intake
+            Size previewSize = camera.getParameters().getPreviewSize();
+            mFrameIntake.setFrameSize(previewSize.width, previewSize.height);
         }
+        if (mCameraRecycler == null || mCameraRecycler.mCamera != camera) {
+            mCameraRecycler = new CameraBufferRecycler(camera);
+        }
+        mFrameIntake.postFrame(data, mCameraRecycler);
     }
 
-    @Override
-    public void onPreviewFrame(final byte[] data, final Camera camera) {
-        final Size previewSize = camera.getParameters().getPreviewSize();
-        if (mGLRgbBuffer == null) {
-            mGLRgbBuffer = IntBuffer.allocate(previewSize.width * previewSize.height);
+    /**
+     * Gets the intake the preview frames are passed through to the OpenGL
+     * thread, which also counts them.
+     *
+     * @return the frame intake of this renderer
+     */
+    public GPUImageFrameIntake getFrameIntake() {
+        return mFrameIntake;
+    }
+
+    // Outputs a group kept from the last frame are outdated once the texture
+    // is reloaded
+    private void onInputChanged() {
+        if (mFilter instanceof GPUImageFilterGroup) {
+            ((GPUImageFilterGroup) mFilter).invalidateStageCache();
         }
-        if (mRunOnDraw.isEmpty()) {
-            runOnDraw(new Runnable() {
-                @Override
-                public void run() {
-                    GPUImageNativeLibrary.YUVtoRBGA(data, previewSize.width, previewSize.height,
-                            mGLRgbBuffer.array());
-                    mGLTextureId = OpenGlUtils.loadTexture(mGLRgbBuffer, previewSize, mGLTextureId);
-                    camera.addCallbackBuffer(data);
-
-                    if (mImageWidth != previewSize.width) {
-                        mImageWidth = previewSize.width;
-                        mImageHeight = previewSize.height;
-                        adjustImageScaling();
-                    }
+    }
+
+    private void drawPreviewFrame() {
+        if (mExternalInputFilter != null) {
+            if (mExternalFrameAvailable.getAndSet(false)) {
+                mGLTextureId = mExternalInputFilter.convert(mSurfaceTexture,
+                        mExternalFrameWidth, mExternalFrameHeight);
+                onInputChanged();
+                if (mImageWidth != mExternalFrameWidth) {
+                    mImageWidth = mExternalFrameWidth;
+                    mImageHeight = mExternalFrameHeight;
+                    adjustImageScaling();
                 }
-            });
+            }
+            return;
+        }
+        GPUImageFrameIntake.Frame frame = mFrameIntake.take();
+        if (frame == null) {
+            return;
+        }
+        int width = frame.mWidth;
+        int height = frame.mHeight;
+        if (mConvertOnGpu) {
+            if (mYUVInputFilter == null) {
+                deleteImageTexture();
+                mYUVInputFilter = new GPUImageYUVInputFilter();
+            }
+            mGLTextureId = mYUVInputFilter.convertNV21(frame.mData, width, height);
+        } else {
+            if (mYUVInputFilter != null) {
+                destroyYUVInputFilter();
+            }
+            int size = width * height * 4;
+            if (mGLRgbBuffer == null || mGLRgbBuffer.capacity() < size) {
+                mGLRgbBuffer = ByteBuffer.allocateDirect(size)
+                        .order(ByteOrder.nativeOrder());
+            }
+            // A chroma row covers pairs of pixels, so it is rounded up to even
+            GPUImageNativeLibrary.YUVtoRGBA(frame.mData, GPUImageNativeLibrary.FORMAT_NV21,
+                    width, height, width, width + (width & 1), mGLRgbBuffer);
+            mGLTextureId = OpenGlUtils.loadTexture(mGLRgbBuffer, width, height, mGLTextureId);
+        }
+        mFrameIntake.release(frame);
+        onInputChanged();
+
+        if (mImageWidth != width) {
+            mImageWidth = width;
+            mImageHeight = height;
+            adjustImageScaling();
         }
     }
 
@@ -174,12 +250,17 @@ public class GPUImageRenderer implements Renderer, PreviewCallback {
         runOnDraw(new Runnable() {
             @Override
             public void run() {
+                releaseExternalInput();
+                if (mExternalTextureInput) {
+                    setUpExternalInput(camera);
+                    return;
+                }
                 int[] textures = new int[1];
                 GLES20.glGenTextures(1, textures, 0);
                 mSurfaceTexture = new SurfaceTexture(textures[0]);
                 try {
                     camera.setPreviewTexture(mSurfaceTexture);
-                    camera.setPreviewCallback(GPUImageRenderer.this);
+                    mFrameIntake.attach(camera, GPUImageRenderer.this);
                     camera.startPreview();
                 } catch (IOException e) {
                     e.printStackTrace();
@@ -188,6 +269,58 @@ public class GPUImageRenderer implements Renderer, PreviewCallback {
         });
     }
 
+    private void setUpExternalInput(final Camera camera) {
+        if (mYUVInputFilter != null) {
+            destroyYUVInputFilter();
+        }
+        Size previewSize = camera.getParameters().getPreviewSize();
+        mExternalFrameWidth = previewSize.width;
+        mExternalFrameHeight = previewSize.height;
+        mExternalInputFilter = new GPUImageExternalTextureInputFilter();
+        mSurfaceTexture = new SurfaceTexture(mExternalInputFilter.createTexture());
+        mSurfaceTexture.setOnFrameAvailableListener(new SurfaceTexture.OnFrameAvailableListener() {
+            @Override
+            public void onFrameAvailable(final SurfaceTexture surfaceTexture) {
+                mExternalFrameAvailable.set(true);
+            }
+        });
+        try {
+            // No preview callback, the frames are only drawn from the texture
+            camera.setPreviewCallbackWithBuffer(null);
+            camera.setPreviewTexture(mSurfaceTexture);
+            camera.startPreview();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void releaseExternalInput() {
+        if (mExternalInputFilter != null) {
+            mExternalInputFilter.destroy();
+            mExternalInputFilter = null;
+            mSurfaceTexture.release();
+            mSurfaceTexture = null;
+            mExternalFrameAvailable.set(false);
+            mGLTextureId = NO_IMAGE;
+        }
+    }
+
+    /**
+     * Sets whether the camera preview is drawn straight from the external
+     * texture of its SurfaceTexture. No frame is copied to or converted on the
+     * CPU then. Takes effect with the next call to
+     * {@link #setUpSurfaceTexture(Camera)} and needs API level 11.
+     *
+     * @param externalTextureInput true to sample the camera texture directly
+     */
+    public void setExternalTextureInput(final boolean externalTextureInput) {
+        mExternalTextureInput = externalTextureInput;
+    }
+
+    public boolean isExternalTextureInput() {
+        return mExternalTextureInput;
+    }
+
     public void setFilter(final GPUImageFilter filter) {
         runOnDraw(new Runnable() {
 
@@ -195,10 +328,16 @@ public class GPUImageRenderer implements Renderer, PreviewCallback {
             public void run() {
                 final GPUImageFilter oldFilter = mFilter;
                 mFilter = filter;
-                if (oldFilter != null) {
+                if (oldFilter == filter) {
+                    // Set again after being drawn elsewhere, keep its filters
+                    oldFilter.releaseGL();
+                } else if (oldFilter != null) {
                     oldFilter.destroy();
                 }
+                GPUImageFramebufferCache.getInstance().purgeUnused();
                 mFilter.init();
+                // Programs of the old filter have been reused by now if possible
+                GPUImageProgramCache.getInstance().purgeUnused();
                 GLES20.glUseProgram(mFilter.getProgram());
                 mFilter.onOutputSizeChanged(mOutputWidth, mOutputHeight);
             }
@@ -210,14 +349,51 @@ public class GPUImageRenderer implements Renderer, PreviewCallback {
 
             @Override
             public void run() {
-                GLES20.glDeleteTextures(1, new int[]{
-                        mGLTextureId
-                }, 0);
-                mGLTextureId = NO_IMAGE;
+                deleteImageTexture();
             }
         });
     }
 
+    /**
+     * Sets whether camera preview frames are converted to RGB by a shader
+     * instead of the native library. The converted frame is uploaded as
+     * 1.5 bytes per pixel instead of 4 and no pixel is touched by the CPU.
+     *
+     * @param convertOnGpu true to convert preview frames on the GPU
+     */
+    public void setConvertPreviewOnGpu(final boolean convertOnGpu) {
+        mConvertOnGpu = convertOnGpu;
+    }
+
+    public boolean isConvertPreviewOnGpu() {
+        return mConvertOnGpu;
+    }
+
+    private void deleteImageTexture() {
+        if (mYUVInputFilter != null) {
+            // The texture belongs to the filter converting the preview frames
+            destroyYUVInputFilter();
+            return;
+        }
+        if (mExternalInputFilter != null) {
+            // Drawn again from the camera texture with the next frame
+            mGLTextureId = NO_IMAGE;
+            return;
+        }
+        if (mGLTextureId != NO_IMAGE) {
+            GLES20.glDeleteTextures(1, new int[]{
+                    mGLTextureId
+            }, 0);
+        }
+        mGLTextureId = NO_IMAGE;
+    }
+
+    private void destroyYUVInputFilter() {
+        mYUVInputFilter.destroy();
+        mYUVInputFilter = null;
+        mGLTextureId = NO_IMAGE;
+    }
+
     public void setImageBitmap(final Bitmap bitmap) {
         setImageBitmap(bitmap, true);
     }
@@ -243,8 +419,14 @@ public class GPUImageRenderer implements Renderer, PreviewCallback {
                     mAddedPadding = 0;
                 }
 
+                if (mYUVInputFilter != null) {
+                    destroyYUVInputFilter();
+                }
+                // Otherwise the next camera frame would replace the bitmap
+                releaseExternalInput();
                 mGLTextureId = OpenGlUtils.loadTexture(
                         resizedBitmap != null ? resizedBitmap : bitmap, mGLTextureId, recycle);
+                onInputChanged();
                 if (resizedBitmap != null) {
                     resizedBitmap.recycle();
                 }
@@ -308,6 +490,7 @@ public class GPUImageRenderer implements Renderer, PreviewCallback {
         mGLCubeBuffer.put(cube).position(0);
         mGLTextureBuffer.clear();
         mGLTextureBuffer.put(textureCords).position(0);
+        mGeometryVersion++;
     }
 
     private float addDistance(float coordinate, float distance) {
@@ -343,15 +526,66 @@ public class GPUImageRenderer implements Renderer, PreviewCallback {
         return mFlipVertical;
     }
 
-    protected void runOnDraw(final Runnable runnable) {
-        synchronized (mRunOnDraw) {
-            mRunOnDraw.add(runnable);
+    /**
+     * Reads the frame drawn last from the bound framebuffer, converted by a
+     * shader so the pixels arrive in the given format with the top row first.
+     * Has to be called on the OpenGL thread after the frame was drawn, e.g.
+     * from a runnable given to {@link #runOnDrawEnd(Runnable)}.
+     *
+     * @param format one of the FORMAT constants of {@link GPUImageOutputFilter}
+     * @param out a direct buffer with at least
+     *            {@link GPUImageOutputFilter#getBufferSize(int, int, int)}
+     *            bytes remaining for the output size
+     */
+    public void readPixels(final int format, final ByteBuffer out) {
+        getOutputFilter(format).readFramebuffer(mOutputWidth, mOutputHeight, out);
+    }
+
+    /**
+     * Same as {@link #readPixels(int, ByteBuffer)} into a bitmap, in the
+     * format matching its configuration. The lower left corner of the size of
+     * the bitmap is read.
+     *
+     * @param bitmap a mutable ARGB_8888, RGB_565 or ALPHA_8 bitmap
+     */
+    public void readPixels(final Bitmap bitmap) {
+        getOutputFilter(GPUImageOutputFilter.getFormat(bitmap.getConfig()))
+                .readFramebuffer(bitmap);
+    }
+
+    private GPUImageOutputFilter getOutputFilter(final int format) {
+        GPUImageOutputFilter filter = mOutputFilters[format];
+        if (filter == null) {
+            filter = new GPUImageOutputFilter(format);
+            // Drawn upright, so the copy has the bottom row first
+            filter.setFlipVertical(true);
+            mOutputFilters[format] = filter;
         }
+        return filter;
+    }
+
+    protected void runOnDraw(final Runnable runnable) {
+        mRunOnDraw.offer(runnable);
     }
 
     protected void runOnDrawEnd(final Runnable runnable) {
-        synchronized (mRunOnDrawEnd) {
-            mRunOnDrawEnd.add(runnable);
+        mRunOnDrawEnd.offer(runnable);
+    }
+
+    private static final class CameraBufferRecycler implements GPUImageFrameIntake.BufferRecycler {
+        final Camera mCamera;
+
+        CameraBufferRecycler(final Camera camera) {
+            mCamera = camera;
+        }
+
+        @Override
+        public void recycle(final byte[] buffer) {
+            try {
+                mCamera.addCallbackBuffer(buffer);
+            } catch (RuntimeException e) {
+                // The camera has been released while the frame was queued
+            }
         }
     }
 }
@@ -69,4 +69,30 @@ public class GPUImageSaturationFilter extends GPUImageFilter {
         mSaturation = saturation;
         setFloat(mSaturationLocation, mSaturation);
     }
+
+    @Override
+    public boolean getAffineColorTransform(final float[] transform) {
+        // mix(luminance, color, saturation) with the weights of the shader
+        final float r = (1.0f - mSaturation) * 0.2125f;
+        final float g = (1.0f - mSaturation) * 0.7154f;
+        final float b = (1.0f - mSaturation) * 0.0721f;
+        GPUImageAffineColorFilter.setScale(transform, mSaturation, mSaturation, mSaturation,
+                1.0f, 0.0f);
+        for (int row = 0; row < 3; row++) {
+            transform[row * 5] += r;
+            transform[row * 5 + 1] += g;
+            transform[row * 5 + 2] += b;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isIdentity() {
+        return mSaturation == 1.0f;
+    }
+
+    @Override
+    public int getSamplingRadius() {
+        return 0;
+    }
 }
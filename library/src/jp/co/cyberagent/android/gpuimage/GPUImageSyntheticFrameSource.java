@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Posts generated NV21 frames to a {@link GPUImageFrameIntake} at a fixed
+ * rate, so the preview pipeline can be driven and measured without a camera.
+ * Like a camera it only has a fixed number of buffers, a frame is skipped
+ * when all of them are still held by the intake.
+ */
+public class GPUImageSyntheticFrameSource implements GPUImageFrameIntake.BufferRecycler {
+    private final int mWidth;
+    private final int mHeight;
+    private final int mFramesPerSecond;
+    private final BlockingQueue<byte[]> mFreeBuffers;
+
+    private final AtomicLong mProducedCount = new AtomicLong();
+    private final AtomicLong mStarvedCount = new AtomicLong();
+    private Thread mThread;
+
+    /**
+     * @param width the width of the frames
+     * @param height the height of the frames
+     * @param framesPerSecond the rate frames are posted at, or 0 to post them
+     *                        as fast as buffers are given back
+     * @param bufferCount the number of frame buffers
+     */
+    public GPUImageSyntheticFrameSource(final int width, final int height,
+            final int framesPerSecond, final int bufferCount) {
+        mWidth = width;
+        mHeight = height;
+        mFramesPerSecond = framesPerSecond;
+        mFreeBuffers = new ArrayBlockingQueue<byte[]>(bufferCount);
+        for (int i = 0; i < bufferCount; i++) {
+            mFreeBuffers.add(createFrame());
+        }
+    }
+
+    /**
+     * Starts posting frames to the given intake on a thread of its own.
+     *
+     * @param intake the intake receiving the frames
+     */
+    public synchronized void start(final GPUImageFrameIntake intake) {
+        if (mThread != null) {
+            throw new IllegalStateException("Already started");
+        }
+        intake.setFrameSize(mWidth, mHeight);
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                produce(intake);
+            }
+        }, "GPUImageSyntheticFrameSource");
+        mThread.start();
+    }
+
+    /**
+     * Stops posting frames and waits for the thread to finish.
+     */
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            thread = mThread;
+            mThread = null;
+        }
+        if (thread == null) {
+            return;
+        }
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void recycle(final byte[] buffer) {
+        mFreeBuffers.offer(buffer);
+    }
+
+    /**
+     * @return the number of frames posted
+     */
+    public long getProducedCount() {
+        return mProducedCount.get();
+    }
+
+    /**
+     * @return the number of frames skipped because no buffer was free
+     */
+    public long getStarvedCount() {
+        return mStarvedCount.get();
+    }
+
+    private void produce(final GPUImageFrameIntake intake) {
+        long interval = mFramesPerSecond > 0 ? 1000000000L / mFramesPerSecond : 0;
+        long next = System.nanoTime();
+        int frameNumber = 0;
+        while (!Thread.currentThread().isInterrupted()) {
+            byte[] buffer;
+            try {
+                buffer = interval > 0 ? mFreeBuffers.poll() : mFreeBuffers.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (buffer == null) {
+                mStarvedCount.incrementAndGet();
+            } else {
+                drawFrame(buffer, frameNumber);
+                mProducedCount.incrementAndGet();
+                intake.postFrame(buffer, this);
+            }
+            frameNumber++;
+
+            if (interval > 0) {
+                next += interval;
+                long delay = next - System.nanoTime();
+                if (delay <= 0) {
+                    // Fell behind, don't try to catch up with a burst
+                    next = System.nanoTime();
+                    continue;
+                }
+                try {
+                    Thread.sleep(delay / 1000000, (int) (delay % 1000000));
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private byte[] createFrame() {
+        int chromaWidth = (mWidth + 1) / 2;
+        int chromaHeight = (mHeight + 1) / 2;
+        byte[] frame = new byte[mWidth * mHeight + chromaWidth * chromaHeight * 2];
+        // Hues changing over the frame, the luma is drawn for every frame
+        int offset = mWidth * mHeight;
+        for (int y = 0; y < chromaHeight; y++) {
+            for (int x = 0; x < chromaWidth; x++) {
+                frame[offset++] = (byte) (y * 255 / chromaHeight);
+                frame[offset++] = (byte) (x * 255 / chromaWidth);
+            }
+        }
+        return frame;
+    }
+
+    // A diagonal gradient moving a little with every frame
+    private void drawFrame(final byte[] frame, final int frameNumber) {
+        int shift = frameNumber * 4;
+        for (int y = 0; y < mHeight; y++) {
+            int row = y * mWidth;
+            for (int x = 0; x < mWidth; x++) {
+                frame[row + x] = (byte) (x + y + shift);
+            }
+        }
+    }
+}
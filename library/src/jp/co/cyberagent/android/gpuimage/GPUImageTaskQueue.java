@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Queue of tasks posted from any thread and run on the OpenGL thread.<br>
+ * <br>
+ * Adding a task is lock-free, producers claim an index with a single atomic
+ * increment and write the task into a preallocated slot. Slots are grouped
+ * into segments which are only allocated once every {@link #SEGMENT_SIZE}
+ * tasks. Only one thread at a time may run the tasks.<br>
+ * <br>
+ * A bounded queue only keeps the latest tasks, e.g. for per-frame uploads
+ * where an older frame is useless once a newer one has arrived. Tasks beyond
+ * the capacity are dropped oldest first when the queue is run.
+ */
+public class GPUImageTaskQueue {
+    static final int SEGMENT_SIZE = 64;
+
+    private final int mCapacity;
+    private final AtomicLong mProducerIndex = new AtomicLong();
+    private final AtomicReference<Segment> mTail = new AtomicReference<Segment>();
+    private final AtomicLong mDroppedCount = new AtomicLong();
+
+    // Only touched by the consuming thread
+    private Segment mHead;
+    private long mConsumerIndex;
+
+    /**
+     * Creates an unbounded queue.
+     */
+    public GPUImageTaskQueue() {
+        this(0);
+    }
+
+    /**
+     * @param capacity the maximum number of tasks kept, older tasks are
+     *                 dropped when there are more; 0 for an unbounded queue
+     */
+    public GPUImageTaskQueue(final int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("capacity must not be negative");
+        }
+        mCapacity = capacity;
+        mHead = new Segment(0);
+        mTail.set(mHead);
+    }
+
+    /**
+     * Adds a task, can be called from any thread.
+     *
+     * @param task the task to add
+     */
+    public void offer(final Runnable task) {
+        if (task == null) {
+            throw new NullPointerException();
+        }
+        // Read the tail before claiming the index, so it can't be ahead of it
+        Segment segment = mTail.get();
+        long index = mProducerIndex.getAndIncrement();
+        while (index >= segment.mBase + SEGMENT_SIZE) {
+            Segment next = segment.mNext.get();
+            if (next == null) {
+                next = new Segment(segment.mBase + SEGMENT_SIZE);
+                if (!segment.mNext.compareAndSet(null, next)) {
+                    next = segment.mNext.get();
+                }
+            }
+            mTail.compareAndSet(segment, next);
+            segment = next;
+        }
+        segment.mSlots.set((int) (index - segment.mBase), task);
+    }
+
+    /**
+     * Removes the oldest task, must only be called by the consuming thread.
+     *
+     * @return the oldest task, or null if there is none or the oldest one is
+     *         still being added
+     */
+    public Runnable poll() {
+        if (mCapacity > 0) {
+            dropOverflow();
+        }
+        if (mConsumerIndex >= mProducerIndex.get()) {
+            return null;
+        }
+        Segment segment = nextSegment();
+        if (segment == null) {
+            return null;
+        }
+        int slot = (int) (mConsumerIndex - segment.mBase);
+        Runnable task = segment.mSlots.get(slot);
+        if (task == null) {
+            // The producer claimed the index but didn't write the task yet
+            return null;
+        }
+        segment.mSlots.lazySet(slot, null);
+        mConsumerIndex++;
+        return task;
+    }
+
+    /**
+     * Runs all tasks in the order they were added, including tasks added by
+     * the tasks themselves. Must only be called by the consuming thread.
+     */
+    public void runAll() {
+        Runnable task;
+        while ((task = poll()) != null) {
+            task.run();
+        }
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * @return the number of tasks waiting to be run, not taking dropped tasks
+     *         into account
+     */
+    public int size() {
+        return (int) Math.max(0, mProducerIndex.get() - mConsumerIndex);
+    }
+
+    /**
+     * @return the number of tasks which have been dropped because the queue
+     *         was over capacity
+     */
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    private Segment nextSegment() {
+        while (mConsumerIndex >= mHead.mBase + SEGMENT_SIZE) {
+            Segment next = mHead.mNext.get();
+            if (next == null) {
+                return null;
+            }
+            mHead = next;
+        }
+        return mHead;
+    }
+
+    private void dropOverflow() {
+        long end = mProducerIndex.get();
+        while (end - mConsumerIndex > mCapacity) {
+            Segment segment = nextSegment();
+            if (segment == null) {
+                return;
+            }
+            int slot = (int) (mConsumerIndex - segment.mBase);
+            if (segment.mSlots.get(slot) == null) {
+                // Still being written, it will be dropped on the next run
+                return;
+            }
+            segment.mSlots.lazySet(slot, null);
+            mConsumerIndex++;
+            mDroppedCount.incrementAndGet();
+        }
+    }
+
+    private static final class Segment {
+        final long mBase;
+        final AtomicReferenceArray<Runnable> mSlots =
+                new AtomicReferenceArray<Runnable>(SEGMENT_SIZE);
+        final AtomicReference<Segment> mNext = new AtomicReference<Segment>();
+
+        Segment(final long base) {
+            mBase = base;
+        }
+    }
+}
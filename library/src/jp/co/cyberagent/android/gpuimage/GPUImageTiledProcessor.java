@@ -0,0 +1,387 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import android.opengl.GLES20;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Applies a filter to images larger than a texture may be by splitting them
+ * into tiles.<br>
+ * <br>
+ * Every tile is extended by the sampling radius of the filter, see
+ * {@link GPUImageFilter#getSamplingRadius()}, so the pixels at its edges are
+ * computed from the same neighbours as in the whole image, and only the
+ * inner part is copied into the result. The OpenGL memory used only depends
+ * on the tile size. Filters whose result depends on where a pixel is in the
+ * image can't be tiled.<br>
+ * <br>
+ * The tiles are drawn by a {@link GPUImageEngine}, while one tile is drawn the
+ * one before it is copied into the result.
+ */
+public class GPUImageTiledProcessor {
+    public static final int DEFAULT_TILE_SIZE = 1024;
+
+    /**
+     * Reads parts of an image, called on the thread processing it.
+     */
+    public interface RegionSource {
+        /**
+         * @param rect the part of the image
+         * @return a new ARGB_8888 bitmap of the size of rect, which is
+         *         recycled once it has been drawn
+         */
+        Bitmap decodeRegion(Rect rect) throws IOException;
+    }
+
+    /**
+     * Receives the result in horizontal bands, called on the thread
+     * processing the image.
+     */
+    public interface BandListener {
+        /**
+         * @param band the bitmap holding the band in its top rows, it is
+         *             reused for the next band
+         * @param top the first row of the band in the image
+         * @param height the number of rows of the band
+         */
+        void onBand(Bitmap band, int top, int height) throws IOException;
+    }
+
+    private final GPUImageEngine mEngine;
+    private final boolean mOwnsEngine;
+    private final int mTileSize;
+    private final Paint mPaint = new Paint();
+    private int mMaxTextureSize;
+
+    public GPUImageTiledProcessor() {
+        this(new GPUImageEngine(), DEFAULT_TILE_SIZE, true);
+    }
+
+    /**
+     * @param engine the engine drawing the tiles, the filters passed to
+     *               {@link #process(Bitmap, GPUImageFilter)} belong to it
+     * @param tileSize the width and height of the tiles including the pixels
+     *                 around them, it is limited to the maximum texture size
+     */
+    public GPUImageTiledProcessor(final GPUImageEngine engine, final int tileSize) {
+        this(engine, tileSize, false);
+    }
+
+    private GPUImageTiledProcessor(final GPUImageEngine engine, final int tileSize,
+            final boolean ownsEngine) {
+        mEngine = engine;
+        mTileSize = tileSize;
+        mOwnsEngine = ownsEngine;
+        // Tiles replace what is in the output, including the alpha
+        mPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+    }
+
+    /**
+     * Applies the filter to the bitmap tile by tile.
+     *
+     * @param bitmap the image, it is not modified
+     * @param filter the filter to apply
+     * @return a new bitmap with the filter applied
+     * @throws InterruptedException if the calling thread was interrupted
+     */
+    public Bitmap process(final Bitmap bitmap, final GPUImageFilter filter)
+            throws InterruptedException {
+        Bitmap output = Bitmap.createBitmap(bitmap.getWidth(), bitmap.getHeight(),
+                Bitmap.Config.ARGB_8888);
+        process(bitmap, filter, output);
+        return output;
+    }
+
+    /**
+     * Applies the filter to the bitmap tile by tile.
+     *
+     * @param bitmap the image, it is not modified
+     * @param filter the filter to apply
+     * @param output a mutable bitmap of the same size receiving the result
+     * @throws InterruptedException if the calling thread was interrupted
+     */
+    public void process(final Bitmap bitmap, final GPUImageFilter filter, final Bitmap output)
+            throws InterruptedException {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        if (output.getWidth() != width || output.getHeight() != height) {
+            throw new IllegalArgumentException("Output has to be " + width + "x" + height);
+        }
+        RegionSource source = new RegionSource() {
+            @Override
+            public Bitmap decodeRegion(final Rect rect) {
+                Bitmap region = Bitmap.createBitmap(bitmap, rect.left, rect.top,
+                        rect.width(), rect.height());
+                // The whole image fits into one tile, it must not be recycled
+                return region != bitmap ? region : bitmap.copy(Bitmap.Config.ARGB_8888, false);
+            }
+        };
+        int radius = getTilingRadius(filter);
+        int step = getStep(radius);
+        Canvas canvas = new Canvas(output);
+        try {
+            for (int top = 0; top < height; top += step) {
+                drawBand(filter, source, width, height, top, radius, step, canvas);
+            }
+        } catch (IOException e) {
+            // Cropping a bitmap doesn't do any I/O
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Applies the filter to an image which is never in memory as a whole,
+     * e.g. to export it. The image is read a tile at a time and the result is
+     * handed out in horizontal bands a tile high, so the memory used only
+     * depends on the width of the image and the tile size.
+     *
+     * @param width the width of the image
+     * @param height the height of the image
+     * @param filter the filter to apply
+     * @param source reads the parts of the image
+     * @param listener receives the bands of the result from the top down
+     * @throws IOException if the source or the listener failed
+     * @throws InterruptedException if the calling thread was interrupted
+     */
+    public void process(final int width, final int height, final GPUImageFilter filter,
+            final RegionSource source, final BandListener listener)
+            throws IOException, InterruptedException {
+        int radius = getTilingRadius(filter);
+        int step = getStep(radius);
+        Bitmap band = Bitmap.createBitmap(width, Math.min(step, height), Bitmap.Config.ARGB_8888);
+        try {
+            Canvas canvas = new Canvas(band);
+            for (int top = 0; top < height; top += step) {
+                canvas.save();
+                canvas.translate(0, -top);
+                drawBand(filter, source, width, height, top, radius, step, canvas);
+                canvas.restore();
+                listener.onBand(band, top, Math.min(step, height - top));
+            }
+        } finally {
+            band.recycle();
+        }
+    }
+
+    /**
+     * Applies the filter to a raw image tile by tile, without holding any of
+     * it on the heap. The rows of the output are recorded as complete band by
+     * band, if the output already has complete rows, e.g. because the process
+     * was killed while writing it, processing resumes below them.
+     *
+     * @param input the image, it is not modified
+     * @param filter the filter to apply
+     * @param output an image of the same size receiving the result
+     * @throws IOException if the images couldn't be mapped
+     * @throws InterruptedException if the calling thread was interrupted
+     */
+    public void process(final GPUImageRawImage input, final GPUImageFilter filter,
+            final GPUImageRawImage output) throws IOException, InterruptedException {
+        int width = input.getWidth();
+        int height = input.getHeight();
+        if (output.getWidth() != width || output.getHeight() != height) {
+            throw new IllegalArgumentException("Output has to be " + width + "x" + height);
+        }
+        int radius = getTilingRadius(filter);
+        int step = getStep(radius);
+        List<Future<Void>> tiles = new ArrayList<Future<Void>>();
+        for (int top = output.getCompletedRows(); top < height; top += step) {
+            int bottom = Math.min(top + step, height);
+            try {
+                for (int x = 0; x < width; x += step) {
+                    Tile tile = new Tile(new Rect(x, top, Math.min(x + step, width), bottom),
+                            radius, width, height);
+                    tiles.add(mEngine.submit(input, tile.mSource, filter, output,
+                            tile.mTarget));
+                }
+                for (Future<Void> tile : tiles) {
+                    getRawResult(tile);
+                }
+            } finally {
+                for (Future<Void> tile : tiles) {
+                    tile.cancel(false);
+                }
+                tiles.clear();
+            }
+            output.setCompletedRows(bottom);
+            // The next band reads from radius rows above its top on
+            input.releaseRowsAbove(bottom - radius);
+        }
+    }
+
+    private void drawBand(final GPUImageFilter filter, final RegionSource source,
+            final int width, final int height, final int top, final int radius, final int step,
+            final Canvas canvas) throws IOException, InterruptedException {
+        int bottom = Math.min(top + step, height);
+        Tile previous = null;
+        try {
+            for (int x = 0; x < width; x += step) {
+                Tile tile = new Tile(new Rect(x, top, Math.min(x + step, width), bottom),
+                        radius, width, height);
+                tile.submit(source.decodeRegion(tile.mSource), filter);
+                if (previous != null) {
+                    previous.drawInto(canvas);
+                }
+                previous = tile;
+            }
+            previous.drawInto(canvas);
+            previous = null;
+        } finally {
+            if (previous != null) {
+                previous.cancel();
+            }
+        }
+    }
+
+    private int getStep(final int radius) throws InterruptedException {
+        int step = getTileSize() - 2 * radius;
+        if (step <= 0) {
+            throw new IllegalArgumentException("Sampling radius " + radius
+                    + " too large for tiles of " + getTileSize());
+        }
+        return step;
+    }
+
+    /**
+     * Shuts down the engine if it was created by this processor.
+     */
+    public void shutdown() {
+        if (mOwnsEngine) {
+            mEngine.shutdown();
+        }
+    }
+
+    /**
+     * Gets the size of the tiles including the pixels around them.
+     *
+     * @return the tile size, limited to the maximum texture size
+     * @throws InterruptedException if the calling thread was interrupted
+     */
+    public int getTileSize() throws InterruptedException {
+        if (mMaxTextureSize == 0) {
+            FutureTask<Integer> query = new FutureTask<Integer>(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    int[] size = new int[1];
+                    GLES20.glGetIntegerv(GLES20.GL_MAX_TEXTURE_SIZE, size, 0);
+                    return size[0];
+                }
+            });
+            mEngine.queue(query);
+            mMaxTextureSize = getResult(query);
+        }
+        return Math.min(mTileSize, mMaxTextureSize);
+    }
+
+    /**
+     * Checks whether the filter can be applied tile by tile.
+     *
+     * @param filter the filter
+     * @return the number of pixels the tiles have to be extended by
+     */
+    static int getTilingRadius(final GPUImageFilter filter) {
+        int radius = filter.getSamplingRadius();
+        if (radius == GPUImageFilter.SAMPLING_RADIUS_UNBOUNDED) {
+            throw new IllegalArgumentException(filter.getClass().getSimpleName()
+                    + " depends on the position in the image and can't be tiled");
+        }
+        return radius;
+    }
+
+    private static <T> T getResult(final Future<T> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    private static void getRawResult(final Future<Void> future)
+            throws IOException, InterruptedException {
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * A part of the result and the larger part of the image it is computed
+     * from.
+     */
+    private final class Tile {
+        final Rect mTarget;
+        final Rect mSource;
+        private Bitmap mInput;
+        private Future<Bitmap> mResult;
+
+        Tile(final Rect target, final int radius, final int width, final int height) {
+            mTarget = target;
+            // Clamped at the edges of the image, where the texture is clamped
+            // just the same
+            mSource = new Rect(Math.max(target.left - radius, 0),
+                    Math.max(target.top - radius, 0),
+                    Math.min(target.right + radius, width),
+                    Math.min(target.bottom + radius, height));
+        }
+
+        void submit(final Bitmap input, final GPUImageFilter filter) {
+            mInput = input;
+            mResult = mEngine.submit(input, filter);
+        }
+
+        void drawInto(final Canvas canvas) throws InterruptedException {
+            Bitmap result = getResult(mResult);
+            Rect inner = new Rect(mTarget);
+            inner.offset(-mSource.left, -mSource.top);
+            canvas.drawBitmap(result, inner, mTarget, mPaint);
+            result.recycle();
+            mInput.recycle();
+        }
+
+        void cancel() {
+            // The input is left to the garbage collector, the engine may
+            // still be uploading it
+            mResult.cancel(false);
+        }
+    }
+}
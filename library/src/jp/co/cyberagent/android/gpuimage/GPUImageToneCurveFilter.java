@@ -361,4 +361,9 @@ public class GPUImageToneCurveFilter extends GPUImageFilter {
 
         return output;
     }
+
+    @Override
+    public int getSamplingRadius() {
+        return 0;
+    }
 }
@@ -28,6 +28,7 @@ public class GPUImageTransformFilter extends GPUImageFilter {
     private float[] orthographicMatrix;
 
     private float[] transform3D;
+    private FloatBuffer adjustedVertices;
 
     // This applies the transform to the raw frame data if set to YES, the default of NO takes the aspect ratio of the image input into account when rotating
     private boolean ignoreAspectRatio;
@@ -78,22 +79,20 @@ public class GPUImageTransformFilter extends GPUImageFilter {
 
         if (!ignoreAspectRatio) {
 
-            float[] adjustedVertices = new float[8];
-
-            cubeBuffer.position(0);
-            cubeBuffer.get(adjustedVertices);
+            if (adjustedVertices == null) {
+                adjustedVertices = ByteBuffer.allocateDirect(8 * 4)
+                        .order(ByteOrder.nativeOrder())
+                        .asFloatBuffer();
+            }
 
+            // Absolute reads, the cube buffer may be shared with other filters
             float normalizedHeight = (float) getOutputHeight() / (float) getOutputWidth();
-            adjustedVertices[1] *= normalizedHeight;
-            adjustedVertices[3] *= normalizedHeight;
-            adjustedVertices[5] *= normalizedHeight;
-            adjustedVertices[7] *= normalizedHeight;
-
-            vertBuffer = ByteBuffer.allocateDirect(adjustedVertices.length * 4)
-                    .order(ByteOrder.nativeOrder())
-                    .asFloatBuffer();
-
-            vertBuffer.put(adjustedVertices).position(0);
+            for (int i = 0; i < 8; i++) {
+                float vertex = cubeBuffer.get(i);
+                adjustedVertices.put(i, i % 2 == 1 ? vertex * normalizedHeight : vertex);
+            }
+            adjustedVertices.position(0);
+            vertBuffer = adjustedVertices;
         }
 
         super.onDraw(textureId, vertBuffer, textureBuffer);
@@ -131,4 +130,21 @@ public class GPUImageTransformFilter extends GPUImageFilter {
     public boolean anchorTopLeft() {
         return anchorTopLeft;
     }
+
+    @Override
+    public int getSamplingRadius() {
+        return SAMPLING_RADIUS_UNBOUNDED;
+    }
+
+    @Override
+    public boolean isIdentity() {
+        // The orthographic projection only undoes the aspect ratio the
+        // vertices are scaled by
+        for (int i = 0; i < 16; i++) {
+            if (transform3D[i] != (i % 5 == 0 ? 1.0f : 0.0f)) {
+                return false;
+            }
+        }
+        return true;
+    }
 }
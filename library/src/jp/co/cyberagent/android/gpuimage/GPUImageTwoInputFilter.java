@@ -16,11 +16,8 @@
 
 package jp.co.cyberagent.android.gpuimage;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 
-import jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil;
 import android.graphics.Bitmap;
 import android.opengl.GLES20;
 
@@ -42,8 +39,11 @@ public class GPUImageTwoInputFilter extends GPUImageFilter {
     public int mFilterSecondTextureCoordinateAttribute;
     public int mFilterInputTextureUniform2;
     public int mFilterSourceTexture2 = OpenGlUtils.NO_TEXTURE;
-    private ByteBuffer mTexture2CoordinatesBuffer;
+    private FloatBuffer mTexture2CoordinatesBuffer;
     private Bitmap mBitmap;
+    // Drawn instead of the bitmap while set by a GPUImageFilterGraph
+    private int mSecondInputTexture = OpenGlUtils.NO_TEXTURE;
+    private FloatBuffer mSecondInputCoordinates;
 
     public GPUImageTwoInputFilter(String fragmentShader) {
         this(VERTEX_SHADER, fragmentShader);
@@ -88,6 +88,19 @@ public class GPUImageTwoInputFilter extends GPUImageFilter {
         });
     }
 
+    /**
+     * Takes the second input from a texture instead of the bitmap, e.g. the
+     * output of another filter. The texture stays owned by the caller.
+     *
+     * @param texture the texture, or {@link OpenGlUtils#NO_TEXTURE} to go back
+     *                to the bitmap
+     * @param textureCoordinates the coordinates to sample the texture with
+     */
+    void setSecondInput(final int texture, final FloatBuffer textureCoordinates) {
+        mSecondInputTexture = texture;
+        mSecondInputCoordinates = textureCoordinates;
+    }
+
     public Bitmap getBitmap() {
         return mBitmap;
     }
@@ -111,21 +124,23 @@ public class GPUImageTwoInputFilter extends GPUImageFilter {
     protected void onDrawArraysPre() {
         GLES20.glEnableVertexAttribArray(mFilterSecondTextureCoordinateAttribute);
         GLES20.glActiveTexture(GLES20.GL_TEXTURE3);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mFilterSourceTexture2);
+        boolean secondInput = mSecondInputTexture != OpenGlUtils.NO_TEXTURE;
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D,
+                secondInput ? mSecondInputTexture : mFilterSourceTexture2);
         GLES20.glUniform1i(mFilterInputTextureUniform2, 3);
 
-        mTexture2CoordinatesBuffer.position(0);
-        GLES20.glVertexAttribPointer(mFilterSecondTextureCoordinateAttribute, 2, GLES20.GL_FLOAT, false, 0, mTexture2CoordinatesBuffer);
+        getVertexBuffers().setAttribute(mFilterSecondTextureCoordinateAttribute,
+                secondInput ? mSecondInputCoordinates : mTexture2CoordinatesBuffer);
     }
 
     public void setRotation(final Rotation rotation, final boolean flipHorizontal, final boolean flipVertical) {
-        float[] buffer = TextureRotationUtil.getRotation(rotation, flipHorizontal, flipVertical);
-
-        ByteBuffer bBuffer = ByteBuffer.allocateDirect(32).order(ByteOrder.nativeOrder());
-        FloatBuffer fBuffer = bBuffer.asFloatBuffer();
-        fBuffer.put(buffer);
-        fBuffer.flip();
+        mTexture2CoordinatesBuffer = GPUImageVertexBuffers.getTextureCoordinates(rotation,
+                flipHorizontal, flipVertical);
+    }
 
-        mTexture2CoordinatesBuffer = bBuffer;
+    @Override
+    public int getSamplingRadius() {
+        // The second image is sampled at the same coordinates as the first
+        return SAMPLING_RADIUS_UNBOUNDED;
     }
 }
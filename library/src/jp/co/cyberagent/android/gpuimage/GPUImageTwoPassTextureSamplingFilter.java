@@ -60,4 +60,19 @@ public class GPUImageTwoPassTextureSamplingFilter extends GPUImageTwoPassFilter
     public float getHorizontalTexelOffsetRatio() {
         return 1f;
     }
+
+    @Override
+    public int getSamplingRadius() {
+        return (int) Math.ceil(getPassSamplingRadius()
+                * Math.max(getHorizontalTexelOffsetRatio(), getVerticalTexelOffsetRatio()));
+    }
+
+    /**
+     * Gets how many texel offsets from a pixel each pass reads.
+     *
+     * @return the number of texel offsets
+     */
+    protected int getPassSamplingRadius() {
+        return 1;
+    }
 }
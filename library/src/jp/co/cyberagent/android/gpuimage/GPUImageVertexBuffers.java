@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.annotation.TargetApi;
+import android.opengl.GLES20;
+import android.os.Build;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.microedition.khronos.egl.EGL10;
+import javax.microedition.khronos.egl.EGLContext;
+
+import jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil;
+
+/**
+ * Vertex buffer objects holding the quad every filter draws, so the driver
+ * doesn't have to copy the vertices from client memory for every pass.<br>
+ * <br>
+ * The cube and all 16 rotated and flipped texture coordinates returned by
+ * {@link #getCube()} and {@link #getTextureCoordinates(Rotation, boolean, boolean)}
+ * are uploaded once per context into a single buffer. Buffers with changing
+ * content, like the cropped coordinates of the renderer, get a buffer of their
+ * own which is only updated when their version changes. Any other FloatBuffer
+ * passed to {@link GPUImageFilter#onDraw} keeps being read from client memory.
+ */
+public class GPUImageVertexBuffers {
+    private static final int FLOATS_PER_QUAD = 8;
+    private static final int BYTES_PER_QUAD = FLOATS_PER_QUAD * 4;
+
+    private static final FloatBuffer CUBE_BUFFER = createBuffer(GPUImageRenderer.CUBE);
+    private static final FloatBuffer[] TEXTURE_BUFFERS = new FloatBuffer[16];
+
+    static {
+        for (Rotation rotation : Rotation.values()) {
+            for (int flip = 0; flip < 4; flip++) {
+                TEXTURE_BUFFERS[rotation.ordinal() * 4 + flip] = createBuffer(
+                        TextureRotationUtil.getRotation(rotation, (flip & 2) != 0, (flip & 1) != 0));
+            }
+        }
+    }
+
+    private static final Map<EGLContext, GPUImageVertexBuffers> sInstances =
+            new HashMap<EGLContext, GPUImageVertexBuffers>();
+
+    private final Map<FloatBuffer, Entry> mEntries = new IdentityHashMap<FloatBuffer, Entry>();
+    private final int[] mStaticBuffer = new int[1];
+
+    private GPUImageVertexBuffers() {
+    }
+
+    /**
+     * Gets the vertex buffers of the OpenGL context which is current on the
+     * calling thread.
+     *
+     * @return the vertex buffers of the current context
+     */
+    public static GPUImageVertexBuffers getInstance() {
+        EGLContext context = currentContext();
+        synchronized (sInstances) {
+            GPUImageVertexBuffers buffers = sInstances.get(context);
+            if (buffers == null) {
+                buffers = new GPUImageVertexBuffers();
+                sInstances.put(context, buffers);
+            }
+            return buffers;
+        }
+    }
+
+    /**
+     * Forgets all buffers known for the current context without deleting
+     * them. Has to be called when a new context was created, because the
+     * driver might hand out the same handle as a previously lost context.
+     * The entries of other contexts which were lost meanwhile are dropped too.
+     */
+    public static void onContextCreated() {
+        EGLContext context = currentContext();
+        synchronized (sInstances) {
+            sInstances.remove(context);
+            Iterator<EGLContext> iterator = sInstances.keySet().iterator();
+            while (iterator.hasNext()) {
+                if (OpenGlUtils.isContextLost(iterator.next())) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes all buffers of the current context. Has to be called before the
+     * context is destroyed.
+     */
+    public static void releaseCurrent() {
+        EGLContext context = currentContext();
+        GPUImageVertexBuffers buffers;
+        synchronized (sInstances) {
+            buffers = sInstances.remove(context);
+        }
+        if (buffers != null) {
+            buffers.release();
+        }
+    }
+
+    private static EGLContext currentContext() {
+        return ((EGL10) EGLContext.getEGL()).eglGetCurrentContext();
+    }
+
+    /**
+     * Gets the vertices of the full screen quad. The returned buffer is shared
+     * and must not be modified.
+     *
+     * @return the cube vertices
+     */
+    public static FloatBuffer getCube() {
+        return CUBE_BUFFER;
+    }
+
+    /**
+     * Gets the texture coordinates for the given rotation. The returned
+     * buffer is shared and must not be modified.
+     *
+     * @param rotation the rotation
+     * @param flipHorizontal if the texture should be flipped horizontally
+     * @param flipVertical if the texture should be flipped vertically
+     * @return the texture coordinates
+     */
+    public static FloatBuffer getTextureCoordinates(final Rotation rotation,
+            final boolean flipHorizontal, final boolean flipVertical) {
+        return TEXTURE_BUFFERS[rotation.ordinal() * 4
+                + (flipHorizontal ? 2 : 0) + (flipVertical ? 1 : 0)];
+    }
+
+    private static FloatBuffer createBuffer(final float[] vertices) {
+        FloatBuffer buffer = ByteBuffer.allocateDirect(vertices.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        buffer.put(vertices).position(0);
+        return buffer;
+    }
+
+    /**
+     * Uploads the content of a buffer whose content changes from time to
+     * time, when it has changed since the last call. Afterwards the buffer is
+     * drawn from a vertex buffer object like the shared ones.
+     *
+     * @param vertices the buffer holding the 8 floats of a quad
+     * @param version the version of the content, has to change whenever the
+     *                content has changed
+     */
+    public void update(final FloatBuffer vertices, final int version) {
+        if (!isSupported()) {
+            return;
+        }
+        Entry entry = mEntries.get(vertices);
+        if (entry == null) {
+            int[] buffer = new int[1];
+            GLES20.glGenBuffers(1, buffer, 0);
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, buffer[0]);
+            GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, BYTES_PER_QUAD, null,
+                    GLES20.GL_DYNAMIC_DRAW);
+            entry = new Entry(buffer[0], 0);
+            entry.mVersion = version - 1;
+            mEntries.put(vertices, entry);
+        }
+        if (entry.mVersion != version) {
+            entry.mVersion = version;
+            vertices.position(0);
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, entry.mBuffer);
+            GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, 0, BYTES_PER_QUAD, vertices);
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        }
+    }
+
+    /**
+     * Sets the given buffer as the source of a vertex attribute with two
+     * components, from a vertex buffer object if there is one for it.
+     *
+     * @param attribute the location of the attribute
+     * @param vertices the vertices of the quad
+     */
+    public void setAttribute(final int attribute, final FloatBuffer vertices) {
+        if (isSupported()) {
+            if (mStaticBuffer[0] == 0) {
+                uploadStaticBuffer();
+            }
+            Entry entry = mEntries.get(vertices);
+            if (entry != null) {
+                setAttributeFromBuffer(attribute, entry);
+                return;
+            }
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        }
+        vertices.position(0);
+        GLES20.glVertexAttribPointer(attribute, 2, GLES20.GL_FLOAT, false, 0, vertices);
+    }
+
+    @TargetApi(9)
+    private void setAttributeFromBuffer(final int attribute, final Entry entry) {
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, entry.mBuffer);
+        GLES20.glVertexAttribPointer(attribute, 2, GLES20.GL_FLOAT, false, 0, entry.mOffset);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    }
+
+    private void uploadStaticBuffer() {
+        FloatBuffer data = ByteBuffer.allocateDirect((1 + TEXTURE_BUFFERS.length) * BYTES_PER_QUAD)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        data.put(GPUImageRenderer.CUBE);
+        for (FloatBuffer texture : TEXTURE_BUFFERS) {
+            for (int i = 0; i < FLOATS_PER_QUAD; i++) {
+                data.put(texture.get(i));
+            }
+        }
+        data.position(0);
+
+        GLES20.glGenBuffers(1, mStaticBuffer, 0);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mStaticBuffer[0]);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, data.capacity() * 4, data,
+                GLES20.GL_STATIC_DRAW);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+
+        mEntries.put(CUBE_BUFFER, new Entry(mStaticBuffer[0], 0));
+        for (int i = 0; i < TEXTURE_BUFFERS.length; i++) {
+            mEntries.put(TEXTURE_BUFFERS[i], new Entry(mStaticBuffer[0], (i + 1) * BYTES_PER_QUAD));
+        }
+    }
+
+    private void release() {
+        for (Entry entry : mEntries.values()) {
+            if (entry.mBuffer != mStaticBuffer[0]) {
+                GLES20.glDeleteBuffers(1, new int[]{entry.mBuffer}, 0);
+            }
+        }
+        if (mStaticBuffer[0] != 0) {
+            GLES20.glDeleteBuffers(1, mStaticBuffer, 0);
+            mStaticBuffer[0] = 0;
+        }
+        mEntries.clear();
+    }
+
+    private static boolean isSupported() {
+        // Drawing from a buffer offset is only exposed since Gingerbread
+        return Build.VERSION.SDK_INT >= 9;
+    }
+
+    private static final class Entry {
+        final int mBuffer;
+        final int mOffset;
+        int mVersion;
+
+        Entry(final int buffer, final int offset) {
+            mBuffer = buffer;
+            mOffset = offset;
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.opengl.GLES20;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converts NV21 camera frames to RGB on the GPU.<br>
+ * <br>
+ * The luma plane is uploaded as a LUMINANCE texture and the interleaved
+ * chroma plane as a LUMINANCE_ALPHA texture of half the size, which is 1.5
+ * bytes per pixel instead of the 4 bytes of an RGBA upload, and no pixel has
+ * to be touched by the CPU. The frame is converted into a texture of its own,
+ * which can then be drawn by any filter like an uploaded image.
+ */
+public class GPUImageYUVInputFilter extends GPUImageInputFilter {
+    public static final String YUV_FRAGMENT_SHADER = "" +
+            "varying highp vec2 textureCoordinate;\n" +
+            " \n" +
+            "uniform sampler2D inputImageTexture;\n" +
+            "uniform sampler2D chromaTexture;\n" +
+            "uniform mediump mat3 colorConversion;\n" +
+            "uniform mediump vec3 colorOffset;\n" +
+            " \n" +
+            "void main()\n" +
+            "{\n" +
+            "    mediump vec3 yuv;\n" +
+            "    yuv.x = texture2D(inputImageTexture, textureCoordinate).r;\n" +
+            "    // NV21 stores V before U, V ends up in luminance and U in alpha\n" +
+            "    yuv.yz = texture2D(chromaTexture, textureCoordinate).ar;\n" +
+            "    gl_FragColor = vec4(colorConversion * (yuv - colorOffset), 1.0);\n" +
+            "}";
+
+    /**
+     * ITU-R BT.601 with the full 0-255 range, as used by JPEG and by the
+     * preview frames of most cameras.
+     */
+    public static final int COLOR_SPACE_BT601_FULL_RANGE = 0;
+    /**
+     * ITU-R BT.601 with luma in 16-235 and chroma in 16-240.
+     */
+    public static final int COLOR_SPACE_BT601 = 1;
+    /**
+     * ITU-R BT.709 with luma in 16-235 and chroma in 16-240.
+     */
+    public static final int COLOR_SPACE_BT709 = 2;
+
+    // Column major, one column each for Y, U and V
+    private static final float[][] CONVERSIONS = {
+            {
+                    1.0f, 1.0f, 1.0f,
+                    0.0f, -0.344136f, 1.772f,
+                    1.402f, -0.714136f, 0.0f
+            },
+            {
+                    1.164384f, 1.164384f, 1.164384f,
+                    0.0f, -0.391762f, 2.017232f,
+                    1.596027f, -0.812968f, 0.0f
+            },
+            {
+                    1.164384f, 1.164384f, 1.164384f,
+                    0.0f, -0.213249f, 2.112402f,
+                    1.792741f, -0.532909f, 0.0f
+            }
+    };
+    private static final float[][] OFFSETS = {
+            {0.0f, 0.5f, 0.5f},
+            {16.0f / 255.0f, 0.5f, 0.5f},
+            {16.0f / 255.0f, 0.5f, 0.5f}
+    };
+
+    private int mChromaTextureUniform;
+    private int mColorConversionUniform;
+    private int mColorOffsetUniform;
+    private int mColorSpace;
+
+    private final int[] mTextures = new int[]{
+            OpenGlUtils.NO_TEXTURE, OpenGlUtils.NO_TEXTURE
+    };
+    private int mFrameWidth;
+    private int mFrameHeight;
+
+    public GPUImageYUVInputFilter() {
+        this(COLOR_SPACE_BT601_FULL_RANGE);
+    }
+
+    /**
+     * @param colorSpace one of the COLOR_SPACE constants
+     */
+    public GPUImageYUVInputFilter(final int colorSpace) {
+        super(NO_FILTER_VERTEX_SHADER, YUV_FRAGMENT_SHADER);
+        mColorSpace = colorSpace;
+    }
+
+    @Override
+    public void onInit() {
+        super.onInit();
+        mChromaTextureUniform = GLES20.glGetUniformLocation(getProgram(), "chromaTexture");
+        mColorConversionUniform = GLES20.glGetUniformLocation(getProgram(), "colorConversion");
+        mColorOffsetUniform = GLES20.glGetUniformLocation(getProgram(), "colorOffset");
+    }
+
+    @Override
+    public void onInitialized() {
+        super.onInitialized();
+        setColorSpace(mColorSpace);
+    }
+
+    /**
+     * Sets how the frames are converted to RGB.
+     *
+     * @param colorSpace one of the COLOR_SPACE constants
+     */
+    public void setColorSpace(final int colorSpace) {
+        if (colorSpace < 0 || colorSpace >= CONVERSIONS.length) {
+            throw new IllegalArgumentException("Unknown color space " + colorSpace);
+        }
+        mColorSpace = colorSpace;
+        setUniformMatrix3f(mColorConversionUniform, CONVERSIONS[colorSpace]);
+        setFloatVec3(mColorOffsetUniform, OFFSETS[colorSpace]);
+    }
+
+    public int getColorSpace() {
+        return mColorSpace;
+    }
+
+    /**
+     * Uploads an NV21 frame and converts it to RGB. Has to be called on the
+     * OpenGL thread.
+     *
+     * @param data the NV21 frame
+     * @param width the width of the frame
+     * @param height the height of the frame
+     * @return the texture holding the converted frame, owned by this filter
+     */
+    public int convertNV21(final byte[] data, final int width, final int height) {
+        if (!isInitialized()) {
+            init();
+        }
+        uploadNV21(data, width, height);
+        // Flipped, so the top row ends up in the first row of the framebuffer
+        // like in an uploaded image
+        return drawToFramebuffer(mTextures[0], width, height,
+                GPUImageVertexBuffers.getTextureCoordinates(Rotation.NORMAL, false, true));
+    }
+
+    private void uploadNV21(final byte[] data, final int width, final int height) {
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+        int lumaSize = width * height;
+        if (data.length < lumaSize + chromaWidth * chromaHeight * 2) {
+            throw new IllegalArgumentException("NV21 frame too small for " + width + "x" + height);
+        }
+        if (width != mFrameWidth || height != mFrameHeight) {
+            deleteFrameTextures();
+            mFrameWidth = width;
+            mFrameHeight = height;
+            onOutputSizeChanged(width, height);
+        }
+
+        // Rows of the planes aren't necessarily a multiple of 4 bytes long
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+        mTextures[0] = loadPlane(mTextures[0], GLES20.GL_LUMINANCE, width, height,
+                ByteBuffer.wrap(data, 0, lumaSize));
+        mTextures[1] = loadPlane(mTextures[1], GLES20.GL_LUMINANCE_ALPHA,
+                chromaWidth, chromaHeight,
+                ByteBuffer.wrap(data, lumaSize, chromaWidth * chromaHeight * 2));
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 4);
+    }
+
+    private static int loadPlane(final int texture, final int format, final int width,
+            final int height, final ByteBuffer data) {
+        if (texture != OpenGlUtils.NO_TEXTURE) {
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+            GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, width, height, format,
+                    GLES20.GL_UNSIGNED_BYTE, data);
+            return texture;
+        }
+        int[] textures = new int[1];
+        GLES20.glGenTextures(1, textures, 0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[0]);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, format, width, height, 0, format,
+                GLES20.GL_UNSIGNED_BYTE, data);
+        return textures[0];
+    }
+
+    @Override
+    protected void onDrawArraysPre() {
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE3);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextures[1]);
+        GLES20.glUniform1i(mChromaTextureUniform, 3);
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        deleteFrameTextures();
+        mFrameWidth = 0;
+        mFrameHeight = 0;
+    }
+
+    private void deleteFrameTextures() {
+        if (mTextures[0] != OpenGlUtils.NO_TEXTURE) {
+            GLES20.glDeleteTextures(2, mTextures, 0);
+            mTextures[0] = OpenGlUtils.NO_TEXTURE;
+            mTextures[1] = OpenGlUtils.NO_TEXTURE;
+        }
+        destroyFramebuffer();
+    }
+}
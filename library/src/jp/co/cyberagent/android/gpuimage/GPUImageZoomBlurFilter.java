@@ -87,4 +87,9 @@ public class GPUImageZoomBlurFilter extends GPUImageFilter {
         mSize = size;
         setFloat(mSizeLocation, mSize);
     }
+
+    @Override
+    public int getSamplingRadius() {
+        return SAMPLING_RADIUS_UNBOUNDED;
+    }
 }
@@ -16,6 +16,7 @@
 
 package jp.co.cyberagent.android.gpuimage;
 
+import java.nio.Buffer;
 import java.nio.IntBuffer;
 
 import android.graphics.Bitmap;
@@ -25,6 +26,10 @@ import android.opengl.GLES20;
 import android.opengl.GLUtils;
 import android.util.Log;
 
+import javax.microedition.khronos.egl.EGL10;
+import javax.microedition.khronos.egl.EGLContext;
+import javax.microedition.khronos.egl.EGLDisplay;
+
 public class OpenGlUtils {
     public static final int NO_TEXTURE = -1;
 
@@ -59,6 +64,11 @@ public class OpenGlUtils {
     }
 
     public static int loadTexture(final IntBuffer data, final Size size, final int usedTexId) {
+        return loadTexture((Buffer) data, size.width, size.height, usedTexId);
+    }
+
+    public static int loadTexture(final Buffer data, final int width, final int height,
+            final int usedTexId) {
         int textures[] = new int[1];
         if (usedTexId == NO_TEXTURE) {
             GLES20.glGenTextures(1, textures, 0);
@@ -71,12 +81,12 @@ public class OpenGlUtils {
                     GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
             GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
                     GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
-            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, size.width, size.height,
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height,
                     0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, data);
         } else {
             GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, usedTexId);
-            GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, size.width,
-                    size.height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, data);
+            GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, width,
+                    height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, data);
             textures[0] = usedTexId;
         }
         return textures[0];
@@ -134,6 +144,25 @@ public class OpenGlUtils {
         return iProgId;
     }
 
+    /**
+     * Checks whether a context was destroyed. A context lost together with
+     * its surface is never released, so the per context caches use this to
+     * drop its entries once a new context is created.
+     */
+    static boolean isContextLost(final EGLContext context) {
+        EGL10 egl = (EGL10) EGLContext.getEGL();
+        EGLDisplay display = egl.eglGetCurrentDisplay();
+        if (display == EGL10.EGL_NO_DISPLAY) {
+            return false;
+        }
+        boolean lost = !egl.eglQueryContext(display, context, EGL10.EGL_CONFIG_ID, new int[1]);
+        if (lost) {
+            // Clears the EGL_BAD_CONTEXT error of the query.
+            egl.eglGetError();
+        }
+        return lost;
+    }
+
     public static float rnd(final float min, final float max) {
         float fRandNum = (float) Math.random();
         return min + (max - min) * fRandNum;
@@ -22,6 +22,8 @@ import static javax.microedition.khronos.egl.EGL10.EGL_WIDTH;
 import static javax.microedition.khronos.opengles.GL10.GL_RGBA;
 import static javax.microedition.khronos.opengles.GL10.GL_UNSIGNED_BYTE;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
 
 import javax.microedition.khronos.egl.EGL10;
@@ -32,6 +34,7 @@ import javax.microedition.khronos.egl.EGLSurface;
 import javax.microedition.khronos.opengles.GL10;
 
 import android.graphics.Bitmap;
+import android.graphics.Rect;
 import android.opengl.GLSurfaceView;
 import android.util.Log;
 
@@ -53,6 +56,9 @@ public class PixelBuffer {
 
     String mThreadOwner;
 
+    private final GPUImageOutputFilter[] mOutputFilters =
+            new GPUImageOutputFilter[GPUImageOutputFilter.FORMAT_COUNT];
+
     public PixelBuffer(final int width, final int height) {
         mWidth = width;
         mHeight = height;
@@ -103,6 +109,38 @@ public class PixelBuffer {
         mRenderer.onSurfaceChanged(mGL, mWidth, mHeight);
     }
 
+    /**
+     * Replaces the surface by one of the given size. The context, and with it
+     * the programs and textures of the renderer, is kept.
+     *
+     * @param width the new width
+     * @param height the new height
+     */
+    public void setSize(final int width, final int height) {
+        if (width == mWidth && height == mHeight) {
+            return;
+        }
+        if (!Thread.currentThread().getName().equals(mThreadOwner)) {
+            Log.e(TAG, "setSize: This thread does not own the OpenGL context.");
+            return;
+        }
+        mWidth = width;
+        mHeight = height;
+        int[] attribList = new int[] {
+                EGL_WIDTH, mWidth,
+                EGL_HEIGHT, mHeight,
+                EGL_NONE
+        };
+        mEGL.eglMakeCurrent(mEGLDisplay, EGL10.EGL_NO_SURFACE,
+                EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_CONTEXT);
+        mEGL.eglDestroySurface(mEGLDisplay, mEGLSurface);
+        mEGLSurface = mEGL.eglCreatePbufferSurface(mEGLDisplay, mEGLConfig, attribList);
+        mEGL.eglMakeCurrent(mEGLDisplay, mEGLSurface, mEGLSurface, mEGLContext);
+        if (mRenderer != null) {
+            mRenderer.onSurfaceChanged(mGL, mWidth, mHeight);
+        }
+    }
+
     public Bitmap getBitmap() {
         // Do we have a renderer?
         if (mRenderer == null) {
@@ -148,9 +186,89 @@ public class PixelBuffer {
         GPUImageNativeLibrary.CopyToBitmap(bitmap);
     }
 
+    /**
+     * Draws a frame and reads it into a buffer of the caller. A shader
+     * converts it into the format, so the pixels arrive with the top row
+     * first and nothing is done on the CPU.
+     *
+     * @param format one of the FORMAT constants of {@link GPUImageOutputFilter}
+     * @param out a direct buffer with at least
+     *            {@link GPUImageOutputFilter#getBufferSize(int, int, int)}
+     *            bytes remaining
+     */
+    public void readPixels(final int format, final ByteBuffer out) {
+        if (drawFrame("readPixels")) {
+            getOutputFilter(format).readFramebuffer(mWidth, mHeight, out);
+        }
+    }
+
+    /**
+     * Same as {@link #readPixels(int, ByteBuffer)} into a reusable bitmap of
+     * the same size, in the format matching its configuration. Unlike
+     * {@link #getBitmap(Bitmap)} the top row comes first.
+     *
+     * @param bitmap a mutable ARGB_8888, RGB_565 or ALPHA_8 bitmap
+     */
+    public void readPixels(final Bitmap bitmap) {
+        if (drawFrame("readPixels")) {
+            getOutputFilter(GPUImageOutputFilter.getFormat(bitmap.getConfig()))
+                    .readFramebuffer(bitmap);
+        }
+    }
+
+    /**
+     * Draws a frame and reads it straight into a part of a raw image, e.g.
+     * one tile of a large image at a time.
+     *
+     * @param image the image receiving the frame
+     * @param left the column of the image the frame starts at
+     * @param top the row of the image the frame starts at
+     * @throws IOException if the image couldn't be mapped
+     */
+    public void readPixels(final GPUImageRawImage image, final int left, final int top)
+            throws IOException {
+        if (drawFrame("readPixels")) {
+            // The renderer draws upright, so the bottom row comes first
+            image.readFramebuffer(0, 0, new Rect(left, top, left + mWidth, top + mHeight), true);
+        }
+    }
+
+    private boolean drawFrame(final String caller) {
+        if (mRenderer == null) {
+            Log.e(TAG, caller + ": Renderer was not set.");
+            return false;
+        }
+        if (!Thread.currentThread().getName().equals(mThreadOwner)) {
+            Log.e(TAG, caller + ": This thread does not own the OpenGL context.");
+            return false;
+        }
+        mRenderer.onDrawFrame(mGL);
+        return true;
+    }
+
+    private GPUImageOutputFilter getOutputFilter(final int format) {
+        GPUImageOutputFilter filter = mOutputFilters[format];
+        if (filter == null) {
+            filter = new GPUImageOutputFilter(format);
+            // The renderer draws upright, so the copy has the bottom row first
+            filter.setFlipVertical(true);
+            mOutputFilters[format] = filter;
+        }
+        return filter;
+    }
+
     public void destroy() {
 //        mRenderer.onDrawFrame(mGL);
 //        mRenderer.onDrawFrame(mGL);
+        for (int i = 0; i < mOutputFilters.length; i++) {
+            if (mOutputFilters[i] != null) {
+                mOutputFilters[i].destroy();
+                mOutputFilters[i] = null;
+            }
+        }
+        GPUImageFramebufferCache.releaseCurrent();
+        GPUImageProgramCache.releaseCurrent();
+        GPUImageVertexBuffers.releaseCurrent();
         mEGL.eglMakeCurrent(mEGLDisplay, EGL10.EGL_NO_SURFACE,
                 EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_CONTEXT);
 
@@ -182,5 +182,9 @@ public class IFImageFilter extends GPUImageFilter {
         }
     }
 
-
+    @Override
+    public int getSamplingRadius() {
+        // Most of the textures are overlays sampled at the pixel's position
+        return SAMPLING_RADIUS_UNBOUNDED;
+    }
 }
@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.test.AndroidTestCase;
+
+import java.util.Arrays;
+
+public class GPUImageLookupBakerTest extends AndroidTestCase {
+    // Rounding of the 8 bit framebuffer
+    private static final int TOLERANCE = 1;
+
+    public void testBakeIdentityChain() {
+        GPUImageFilterGroup group = new GPUImageFilterGroup(Arrays.<GPUImageFilter>asList(
+                new GPUImageFilter(),
+                new GPUImageBrightnessFilter(0.0f),
+                new GPUImageContrastFilter(1.0f)));
+        assertTrue(GPUImageLookupBaker.isBakeable(group));
+
+        Bitmap identity = GPUImageLookupBaker.getIdentity();
+        Bitmap lookup = GPUImageLookupBaker.bake(group);
+        assertEquals(identity.getWidth(), lookup.getWidth());
+        assertEquals(identity.getHeight(), lookup.getHeight());
+        for (int y = 0; y < identity.getHeight(); y++) {
+            for (int x = 0; x < identity.getWidth(); x++) {
+                int expected = identity.getPixel(x, y);
+                int actual = lookup.getPixel(x, y);
+                String position = "at " + x + "," + y;
+                assertEquals(position, Color.red(expected), Color.red(actual), TOLERANCE);
+                assertEquals(position, Color.green(expected), Color.green(actual), TOLERANCE);
+                assertEquals(position, Color.blue(expected), Color.blue(actual), TOLERANCE);
+            }
+        }
+        lookup.recycle();
+    }
+}
@@ -67,6 +67,8 @@ public class ActivityCamera extends Activity implements OnSeekBarChangeListener,
 
         mGPUImage = new GPUImage(this);
         mGPUImage.setGLSurfaceView((GLSurfaceView) findViewById(R.id.surfaceView));
+        mGPUImage.setConvertPreviewOnGpu(true);
+        mGPUImage.setExternalTextureInput(true);
 
         mCameraHelper = new CameraHelper(this);
         mCamera = new CameraLoader();
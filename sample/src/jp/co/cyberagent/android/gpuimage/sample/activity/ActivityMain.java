@@ -26,6 +26,9 @@ import android.support.v4.content.PermissionChecker;
 import android.view.View;
 import android.view.View.OnClickListener;
 import jp.co.cyberagent.android.gpuimage.sample.R;
+import jp.co.cyberagent.android.gpuimage.sample.utils.PipelineBenchmark;
+import jp.co.cyberagent.android.gpuimage.sample.utils.ProgramLoadBenchmark;
+import jp.co.cyberagent.android.gpuimage.sample.utils.TaskQueueBenchmark;
 
 public class ActivityMain extends Activity implements OnClickListener {
 
@@ -34,9 +37,16 @@ public class ActivityMain extends Activity implements OnClickListener {
         setContentView(R.layout.activity_main);
         findViewById(R.id.button_gallery).setOnClickListener(this);
         findViewById(R.id.button_camera).setOnClickListener(this);
+        findViewById(R.id.button_benchmark).setOnClickListener(this);
     }
 
     @Override public void onClick(final View v) {
+        if (v.getId() == R.id.button_benchmark) {
+            new ProgramLoadBenchmark(this).execute();
+            new TaskQueueBenchmark(this).execute();
+            new PipelineBenchmark(this).execute();
+            return;
+        }
         if (PermissionChecker.checkSelfPermission(this, Manifest.permission.CAMERA)
             == PackageManager.PERMISSION_DENIED) {
             ActivityCompat.requestPermissions(this, new String[] { Manifest.permission.CAMERA },
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.sample.utils;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.AsyncTask;
+import android.util.Log;
+import android.widget.Toast;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import jp.co.cyberagent.android.gpuimage.GPUImageEngine;
+import jp.co.cyberagent.android.gpuimage.GPUImageSepiaFilter;
+
+/**
+ * Compares the images per second of the engine reading every image back
+ * before drawing the next one (serial) with asynchronous readback through
+ * pixel pack buffers (pipelined). Without OpenGL ES 3.0 both are the same. On
+ * a software implementation like the emulator's the gap shows how much time
+ * is spent waiting on upload and readback.
+ */
+public class PipelineBenchmark extends AsyncTask<Void, Void, String> {
+    private static final String TAG = "PipelineBenchmark";
+    private static final int IMAGES = 60;
+    private static final int WIDTH = 1024;
+    private static final int HEIGHT = 768;
+
+    private final Context mContext;
+
+    public PipelineBenchmark(final Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    @Override
+    protected String doInBackground(final Void... params) {
+        Bitmap image = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+        image.eraseColor(0xff3366cc);
+        GPUImageEngine engine = new GPUImageEngine();
+        GPUImageSepiaFilter filter = new GPUImageSepiaFilter();
+        try {
+            // Compile and allocate everything once before measuring
+            run(engine, filter, image, false);
+            return run(engine, filter, image, false) + "\n" + run(engine, filter, image, true);
+        } catch (InterruptedException e) {
+            return "interrupted";
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Rendering failed", e);
+            return "failed: " + e.getCause();
+        } finally {
+            engine.shutdown();
+            image.recycle();
+        }
+    }
+
+    private String run(final GPUImageEngine engine, final GPUImageSepiaFilter filter,
+            final Bitmap image, final boolean pipelined)
+            throws InterruptedException, ExecutionException {
+        engine.setPipelined(pipelined);
+        List<Bitmap> outputs = new ArrayList<Bitmap>();
+        for (int i = 0; i < IMAGES; i++) {
+            outputs.add(Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888));
+        }
+        List<Future<Bitmap>> results = new ArrayList<Future<Bitmap>>();
+        long start = System.nanoTime();
+        for (Bitmap output : outputs) {
+            results.add(engine.submit(image, filter, output));
+        }
+        for (Future<Bitmap> result : results) {
+            result.get();
+        }
+        long elapsed = System.nanoTime() - start;
+        for (Bitmap output : outputs) {
+            output.recycle();
+        }
+
+        String result = String.format("%s: %d images of %dx%d, %.1f/s",
+                pipelined ? "pipelined" : "serial", IMAGES, WIDTH, HEIGHT,
+                IMAGES * 1e9 / elapsed);
+        Log.i(TAG, result);
+        return result;
+    }
+
+    @Override
+    protected void onPostExecute(final String result) {
+        Toast.makeText(mContext, result, Toast.LENGTH_LONG).show();
+    }
+}
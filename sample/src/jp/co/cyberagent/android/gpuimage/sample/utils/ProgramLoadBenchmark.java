@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.sample.utils;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.util.Log;
+import android.widget.Toast;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import jp.co.cyberagent.android.gpuimage.GPUImageFilter;
+import jp.co.cyberagent.android.gpuimage.GPUImageFilterTools;
+import jp.co.cyberagent.android.gpuimage.GPUImageProgramBinaryCache;
+import jp.co.cyberagent.android.gpuimage.GPUImageProgramCache;
+import jp.co.cyberagent.android.gpuimage.PixelBuffer;
+
+/**
+ * Measures how long it takes to get the programs of all filters ready in a new
+ * OpenGL context, compiling them from source (cold) and loading them from the
+ * program binary cache (warm).
+ */
+public class ProgramLoadBenchmark extends AsyncTask<Void, Void, String> {
+    private static final String TAG = "ProgramLoadBenchmark";
+
+    private final Context mContext;
+
+    public ProgramLoadBenchmark(final Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    @Override
+    protected String doInBackground(final Void... params) {
+        GPUImageProgramBinaryCache previous = GPUImageProgramCache.getBinaryCache();
+        GPUImageProgramBinaryCache binaryCache = new GPUImageProgramBinaryCache(mContext);
+        binaryCache.clear();
+        try {
+            GPUImageProgramCache.setBinaryCache(binaryCache);
+            String cold = loadPrograms("cold");
+            String warm = loadPrograms("warm");
+            return cold + "\n" + warm + "\nbinaries loaded: " + binaryCache.getLoadCount()
+                    + ", rejected: " + binaryCache.getRejectCount()
+                    + (GPUImageProgramBinaryCache.isSupported() ? "" : " (not supported)");
+        } finally {
+            GPUImageProgramCache.setBinaryCache(previous);
+        }
+    }
+
+    private String loadPrograms(final String name) {
+        // Every pixel buffer has its own context, so nothing is cached in memory
+        PixelBuffer buffer = new PixelBuffer(1, 1);
+        GPUImageFilterTools tools = GPUImageFilterTools.instance();
+        List<GPUImageFilter> filters = new ArrayList<GPUImageFilter>();
+        for (int i = 0; i < tools.getCount(); i++) {
+            filters.add(tools.getFilter(i, mContext));
+        }
+
+        for (GPUImageFilter filter : filters) {
+            filter.init();
+        }
+        GPUImageProgramCache cache = GPUImageProgramCache.getInstance();
+        String result = String.format("%s: %d programs in %.1f ms", name,
+                cache.getMissCount(), cache.getCompileTimeNanos() / 1000000.0);
+
+        for (GPUImageFilter filter : filters) {
+            filter.destroy();
+        }
+        buffer.destroy();
+        return result;
+    }
+
+    @Override
+    protected void onPostExecute(final String result) {
+        Log.i(TAG, result);
+        Toast.makeText(mContext, result, Toast.LENGTH_LONG).show();
+    }
+}
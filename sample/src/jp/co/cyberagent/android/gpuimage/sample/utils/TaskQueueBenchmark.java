@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.sample.utils;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.util.Log;
+import android.widget.Toast;
+
+import java.util.LinkedList;
+import java.util.concurrent.CountDownLatch;
+
+import jp.co.cyberagent.android.gpuimage.GPUImageTaskQueue;
+
+/**
+ * Stress test of the task queue used by the renderer and the filters. Many
+ * producer threads post tasks while a single consumer runs them, like the
+ * OpenGL thread does. Every task checks that the tasks of its producer are run
+ * in order, and the result is compared with a synchronized LinkedList.
+ */
+public class TaskQueueBenchmark extends AsyncTask<Void, Void, String> {
+    private static final String TAG = "TaskQueueBenchmark";
+    private static final int PRODUCERS = 8;
+    private static final int TASKS_PER_PRODUCER = 100000;
+
+    private final Context mContext;
+
+    public TaskQueueBenchmark(final Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    @Override
+    protected String doInBackground(final Void... params) {
+        return run("lock-free", new LockFreeQueue()) + "\n"
+                + run("synchronized", new LockedQueue());
+    }
+
+    private String run(final String name, final Queue queue) {
+        final int[] lastRun = new int[PRODUCERS];
+        final int[] runCount = new int[1];
+        final boolean[] outOfOrder = new boolean[1];
+        final CountDownLatch done = new CountDownLatch(PRODUCERS);
+
+        long start = System.nanoTime();
+        for (int p = 0; p < PRODUCERS; p++) {
+            final int producer = p;
+            new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 1; i <= TASKS_PER_PRODUCER; i++) {
+                        final int sequence = i;
+                        queue.offer(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (sequence != lastRun[producer] + 1) {
+                                    outOfOrder[0] = true;
+                                }
+                                lastRun[producer] = sequence;
+                                runCount[0]++;
+                            }
+                        });
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        while (done.getCount() > 0) {
+            queue.runAll();
+        }
+        queue.runAll();
+        long elapsed = System.nanoTime() - start;
+
+        String result = String.format("%s: %d tasks from %d threads in %.1f ms%s", name,
+                runCount[0], PRODUCERS, elapsed / 1000000.0,
+                outOfOrder[0] || runCount[0] != PRODUCERS * TASKS_PER_PRODUCER ? " FAILED" : "");
+        Log.i(TAG, result);
+        return result;
+    }
+
+    @Override
+    protected void onPostExecute(final String result) {
+        Toast.makeText(mContext, result, Toast.LENGTH_LONG).show();
+    }
+
+    private interface Queue {
+        void offer(Runnable task);
+
+        void runAll();
+    }
+
+    private static class LockFreeQueue implements Queue {
+        private final GPUImageTaskQueue mQueue = new GPUImageTaskQueue();
+
+        @Override
+        public void offer(final Runnable task) {
+            mQueue.offer(task);
+        }
+
+        @Override
+        public void runAll() {
+            mQueue.runAll();
+        }
+    }
+
+    private static class LockedQueue implements Queue {
+        private final LinkedList<Runnable> mQueue = new LinkedList<Runnable>();
+
+        @Override
+        public void offer(final Runnable task) {
+            synchronized (mQueue) {
+                mQueue.add(task);
+            }
+        }
+
+        @Override
+        public void runAll() {
+            synchronized (mQueue) {
+                while (!mQueue.isEmpty()) {
+                    mQueue.poll().run();
+                }
+            }
+        }
+    }
+}
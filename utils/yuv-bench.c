@@ -0,0 +1,225 @@
+/*
+ * Host side benchmark of the native YUV converter, which also checks that it
+ * matches the original scalar converter bit for bit.
+ *
+ * cc -O3 -I library/jni -o yuv-bench utils/yuv-bench.c library/jni/yuv-convert.c -lpthread
+ * ./yuv-bench [width height iterations]
+ */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+
+#include "yuv-convert.h"
+
+// The original per pixel converter of yuv-decoder.c, without JNI
+static void reference_rbga(const signed char * yuv, int w, int h, int * rgbData)
+{
+    int sz = w * h;
+    int i, j, Y, Cr = 0, Cb = 0, pixPtr, jDiv2, R, G, B, cOff;
+
+    for (j = 0; j < h; j++) {
+        pixPtr = j * w;
+        jDiv2 = j >> 1;
+        for (i = 0; i < w; i++) {
+            Y = yuv[pixPtr];
+            if (Y < 0) Y += 255;
+            if ((i & 0x1) != 1) {
+                cOff = sz + jDiv2 * w + (i >> 1) * 2;
+                Cb = yuv[cOff];
+                if (Cb < 0) Cb += 127; else Cb -= 128;
+                Cr = yuv[cOff + 1];
+                if (Cr < 0) Cr += 127; else Cr -= 128;
+            }
+            Y = Y + (Y >> 3) + (Y >> 5) + (Y >> 7);
+            R = Y + (Cr << 1) + (Cr >> 6);
+            if (R < 0) R = 0; else if (R > 255) R = 255;
+            G = Y - Cb + (Cb >> 3) + (Cb >> 4) - (Cr >> 1) + (Cr >> 3);
+            if (G < 0) G = 0; else if (G > 255) G = 255;
+            B = Y + Cb + (Cb >> 1) + (Cb >> 4) + (Cb >> 5);
+            if (B < 0) B = 0; else if (B > 255) B = 255;
+            rgbData[pixPtr++] = 0xff000000 + (R << 16) + (G << 8) + B;
+        }
+    }
+}
+
+static double now(void)
+{
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec + ts.tv_nsec / 1e9;
+}
+
+static void fill(unsigned char * data, long size, unsigned seed)
+{
+    long i;
+    for (i = 0; i < size; i++) {
+        seed = seed * 1103515245 + 12345;
+        data[i] = (unsigned char) (seed >> 16);
+    }
+}
+
+// Every byte value in every position, plus random frames of several sizes
+static int check_exact(void)
+{
+    static const int sizes[][2] = {{2, 2}, {16, 2}, {18, 4}, {34, 7}, {256, 256}, {640, 480}, {1278, 722}};
+    int failures = 0;
+    unsigned s;
+    for (s = 0; s < sizeof(sizes) / sizeof(sizes[0]); s++) {
+        int w = sizes[s][0];
+        int h = sizes[s][1];
+        long size = (long) w * h * 3 / 2 + w;
+        unsigned char * yuv = malloc(size);
+        int * expected = malloc((long) w * h * 4);
+        int * actual = malloc((long) w * h * 4);
+        yuv_frame frame;
+        int pass;
+
+        for (pass = 0; pass < 4; pass++) {
+            if (pass == 0) {
+                long i;
+                for (i = 0; i < size; i++) {
+                    yuv[i] = (unsigned char) (i * 7 + (i >> 8));
+                }
+            } else {
+                fill(yuv, size, pass * 7919 + s);
+            }
+            reference_rbga((const signed char *) yuv, w, h, expected);
+
+            yuv_frame_init(&frame, yuv, YUV_FORMAT_NV21, w, h, w, w);
+            frame.out = (uint8_t *) actual;
+            frame.out_stride = w * 4;
+            frame.out_order = RGB_ORDER_RGBA;
+            memset(actual, 0, (long) w * h * 4);
+            yuv_convert(&frame);
+
+            if (memcmp(expected, actual, (long) w * h * 4) != 0) {
+                long i;
+                for (i = 0; i < (long) w * h && expected[i] == actual[i]; i++) {
+                }
+                printf("MISMATCH %dx%d pass %d at pixel %ld: %08x != %08x\n",
+                       w, h, pass, i, expected[i], actual[i]);
+                failures++;
+            }
+        }
+        free(yuv);
+        free(expected);
+        free(actual);
+    }
+    return failures;
+}
+
+// NV12 and I420 with padded rows have to give the same pixels as NV21
+static int check_layouts(void)
+{
+    int w = 322, h = 242, pad = 30;
+    int cw = w / 2, ch = h / 2;
+    int y_stride = w + pad, uv_stride = w + pad;
+    unsigned char * nv21 = malloc((long) w * h * 3 / 2);
+    unsigned char * nv12 = calloc((long) y_stride * h + (long) uv_stride * ch, 1);
+    unsigned char * i420 = calloc((long) y_stride * h + (long) uv_stride * ch * 2, 1);
+    uint8_t * expected = malloc((long) w * h * 4);
+    uint8_t * actual = malloc((long) w * h * 4);
+    yuv_frame frame;
+    int failures = 0;
+    int x, y;
+
+    fill(nv21, (long) w * h * 3 / 2, 42);
+    for (y = 0; y < h; y++) {
+        memcpy(nv12 + (long) y * y_stride, nv21 + (long) y * w, w);
+        memcpy(i420 + (long) y * y_stride, nv21 + (long) y * w, w);
+    }
+    for (y = 0; y < ch; y++) {
+        for (x = 0; x < cw; x++) {
+            unsigned char v = nv21[w * h + y * w + x * 2];
+            unsigned char u = nv21[w * h + y * w + x * 2 + 1];
+            nv12[(long) y_stride * h + y * uv_stride + x * 2] = u;
+            nv12[(long) y_stride * h + y * uv_stride + x * 2 + 1] = v;
+            i420[(long) y_stride * h + y * uv_stride + x] = u;
+            i420[(long) y_stride * h + (long) uv_stride * ch + y * uv_stride + x] = v;
+        }
+    }
+
+    yuv_frame_init(&frame, nv21, YUV_FORMAT_NV21, w, h, w, w);
+    frame.out = expected;
+    frame.out_stride = w * 4;
+    frame.out_order = RGB_ORDER_RGBA;
+    yuv_convert(&frame);
+
+    yuv_frame_init(&frame, nv12, YUV_FORMAT_NV12, w, h, y_stride, uv_stride);
+    frame.out = actual;
+    frame.out_stride = w * 4;
+    frame.out_order = RGB_ORDER_RGBA;
+    yuv_convert(&frame);
+    if (memcmp(expected, actual, (long) w * h * 4) != 0) {
+        printf("MISMATCH NV12\n");
+        failures++;
+    }
+
+    yuv_frame_init(&frame, i420, YUV_FORMAT_I420, w, h, y_stride, uv_stride);
+    frame.out = actual;
+    frame.out_stride = w * 4;
+    frame.out_order = RGB_ORDER_RGBA;
+    yuv_convert(&frame);
+    if (memcmp(expected, actual, (long) w * h * 4) != 0) {
+        printf("MISMATCH I420\n");
+        failures++;
+    }
+
+    free(nv21);
+    free(nv12);
+    free(i420);
+    free(expected);
+    free(actual);
+    return failures;
+}
+
+int main(int argc, char ** argv)
+{
+    int w = argc > 3 ? atoi(argv[1]) : 1920;
+    int h = argc > 3 ? atoi(argv[2]) : 1080;
+    int iterations = argc > 3 ? atoi(argv[3]) : 50;
+    unsigned char * yuv = malloc((long) w * h * 3 / 2);
+    int * out = malloc((long) w * h * 4);
+    yuv_frame frame;
+    double start, reference, single, threaded;
+    int i;
+
+    int failures = check_exact() + check_layouts();
+    printf("bit exactness: %s\n", failures == 0 ? "OK" : "FAILED");
+
+    fill(yuv, (long) w * h * 3 / 2, 1);
+    yuv_frame_init(&frame, yuv, YUV_FORMAT_NV21, w, h, w, w);
+    frame.out = (uint8_t *) out;
+    frame.out_stride = w * 4;
+    frame.out_order = RGB_ORDER_RGBA;
+
+    start = now();
+    for (i = 0; i < iterations; i++) {
+        reference_rbga((const signed char *) yuv, w, h, out);
+    }
+    reference = (now() - start) / iterations;
+
+    start = now();
+    for (i = 0; i < iterations; i++) {
+        yuv_convert_rows(&frame, 0, h);
+    }
+    single = (now() - start) / iterations;
+
+    yuv_convert(&frame);
+    start = now();
+    for (i = 0; i < iterations; i++) {
+        yuv_convert(&frame);
+    }
+    threaded = (now() - start) / iterations;
+
+    printf("%dx%d NV21, %d iterations\n", w, h, iterations);
+    printf("reference  %8.3f ms\n", reference * 1000);
+    printf("vectorized %8.3f ms  (%.1fx)\n", single * 1000, reference / single);
+    printf("threaded   %8.3f ms  (%.1fx)\n", threaded * 1000, reference / threaded);
+
+    free(yuv);
+    free(out);
+    return failures == 0 ? 0 : 1;
+}